@@ -34,8 +34,11 @@ import net.md_5.bungee.api.ChatColor;
 
 import nl.rutgerkok.topographica.config.Config;
 import nl.rutgerkok.topographica.config.WorldConfig;
+import nl.rutgerkok.topographica.image.TileStore;
 import nl.rutgerkok.topographica.marker.MarkerCollection;
+import nl.rutgerkok.topographica.render.ServerTaskList;
 import nl.rutgerkok.topographica.webserver.IntPair;
+import nl.rutgerkok.topographica.webserver.QueueFullAction;
 import nl.rutgerkok.topographica.webserver.ServerInfo;
 import nl.rutgerkok.topographica.webserver.WebPlayer;
 import nl.rutgerkok.topographica.webserver.WebWorld;
@@ -83,10 +86,12 @@ final class LiveServerInfo extends ServerInfo implements Listener {
         private final String worldName;
         private final MarkerCollection markers = new MarkerCollection();
         private final WorldConfig worldConfig;
+        private final int zoomLevels;
 
-        CachedWorld(World world, WorldConfig worldConfig) {
+        CachedWorld(World world, WorldConfig worldConfig, int zoomLevels) {
             this.worldName = world.getName();
             this.worldConfig = Objects.requireNonNull(worldConfig, "worldConfig");
+            this.zoomLevels = zoomLevels;
         }
 
         @Override
@@ -133,6 +138,11 @@ final class LiveServerInfo extends ServerInfo implements Listener {
             return new int[] { vector.getBlockX(), vector.getBlockY(), vector.getBlockZ() };
         }
 
+        @Override
+        public int getZoomLevels() {
+            return zoomLevels;
+        }
+
         @Override
         public int hashCode() {
             return worldName.hashCode();
@@ -141,6 +151,7 @@ final class LiveServerInfo extends ServerInfo implements Listener {
 
     private final Plugin plugin;
     private final Config config;
+    private final ServerTaskList serverTaskList;
 
     private final ConcurrentMap<UUID, CachedPlayer> players = new ConcurrentHashMap<>(64, 0.75f, 1);
     private final ConcurrentMap<UUID, CachedWorld> worlds = new ConcurrentHashMap<>(4, 0.75f, 1);
@@ -189,9 +200,10 @@ final class LiveServerInfo extends ServerInfo implements Listener {
 
     };
 
-    LiveServerInfo(Plugin plugin, Config config) {
+    LiveServerInfo(Plugin plugin, Config config, ServerTaskList serverTaskList) {
         this.plugin = Objects.requireNonNull(plugin, "plugin");
         this.config = Objects.requireNonNull(config, "config");
+        this.serverTaskList = Objects.requireNonNull(serverTaskList, "serverTaskList");
 
         plugin.getServer().getScheduler().runTaskTimer(plugin, this.playerPositionUpdater, 1, 20 * 10);
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
@@ -200,16 +212,38 @@ final class LiveServerInfo extends ServerInfo implements Listener {
         for (World world : plugin.getServer().getWorlds()) {
             WorldConfig worldConfig = this.config.getWorldConfig(world);
             if (worldConfig.isEnabled()) {
-                this.worlds.put(world.getUID(), new CachedWorld(world, worldConfig));
+                this.worlds.put(world.getUID(),
+                        new CachedWorld(world, worldConfig, serverTaskList.getZoomLevels(world)));
             }
         }
     }
 
+    @Override
+    public long getImageCacheBytes() {
+        return config.getWebConfig().getImageCacheBytes();
+    }
+
+    @Override
+    public int getImageMaxAgeSeconds() {
+        return config.getWebConfig().getImageMaxAgeSeconds();
+    }
+
     @Override
     public Path getImagesFolder() {
         return config.getWebConfig().getImagesFolder();
     }
 
+    @Override
+    public int getMaxConcurrentDiskReads() {
+        return config.getWebConfig().getMaxConcurrentDiskReads();
+    }
+
+    @Override
+    public Optional<TileStore> getOpenTileStore(Path worldFolder) {
+        // Opening doesn't access the disk
+        return Optional.of(getTileStore(worldFolder));
+    }
+
     @Override
     public Collection<? extends WebPlayer> getPlayers(WebWorld world) {
         String worldName = ((CachedWorld) world).worldName;
@@ -227,6 +261,32 @@ final class LiveServerInfo extends ServerInfo implements Listener {
         return config.getWebConfig().getPort();
     }
 
+    @Override
+    public QueueFullAction getQueueFullAction() {
+        return config.getWebConfig().getQueueFullAction();
+    }
+
+    @Override
+    public int getRequestQueueSize() {
+        return config.getWebConfig().getRequestQueueSize();
+    }
+
+    @Override
+    public int getRequestThreads() {
+        return config.getWebConfig().getRequestThreads();
+    }
+
+    @Override
+    public int getStaticFileMaxAgeSeconds() {
+        return config.getWebConfig().getStaticFileMaxAgeSeconds();
+    }
+
+    @Override
+    public TileStore getTileStore(Path worldFolder) {
+        // No need to detect the storage
+        return config.getTileConfig().openTileStore(worldFolder);
+    }
+
     /**
      * Gets the web info of the given world.
      *
@@ -280,7 +340,7 @@ final class LiveServerInfo extends ServerInfo implements Listener {
         World world = event.getWorld();
         WorldConfig worldConfig = this.config.getWorldConfig(world);
         if (worldConfig.isEnabled()) {
-            this.worlds.put(world.getUID(), new CachedWorld(world, worldConfig));
+            this.worlds.put(world.getUID(), new CachedWorld(world, worldConfig, serverTaskList.getZoomLevels(world)));
         }
     }
 
@@ -1,10 +1,12 @@
 package nl.rutgerkok.topographica;
 
+import java.io.IOException;
 import java.net.BindException;
 import java.nio.file.Path;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.logging.Level;
 
 import org.bukkit.World;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -14,6 +16,7 @@ import nl.rutgerkok.topographica.config.Config;
 import nl.rutgerkok.topographica.event.BlockListener;
 import nl.rutgerkok.topographica.event.LogToPlayerSender;
 import nl.rutgerkok.topographica.render.ChunkQueuePersistance;
+import nl.rutgerkok.topographica.render.RenderQueueJournal;
 import nl.rutgerkok.topographica.render.ServerDrawTask;
 import nl.rutgerkok.topographica.render.ServerTaskList;
 import nl.rutgerkok.topographica.util.ChunkSnapshotGetter;
@@ -24,13 +27,35 @@ import nl.rutgerkok.topographica.webserver.WebWorld;
 
 public class Topographica extends JavaPlugin {
 
+    /**
+     * Changes to the render queue are written to disk this often.
+     */
+    private static final long JOURNAL_COMMIT_TICKS = 20;
+
+    /**
+     * Once the journal grows beyond this size, it's replaced by a new
+     * snapshot.
+     */
+    private static final long MAX_JOURNAL_BYTES = 4 * 1024 * 1024;
+
     private WebServer webServer;
     private ServerTaskList serverTaskList;
     private Config config;
-    private ChunkQueuePersistance chunkQueuePersistance;
+    private RenderQueueJournal journal;
     private LiveServerInfo serverInfo;
     private ServerDrawTask drawTask;
 
+    private void commitJournal() {
+        try {
+            journal.commit();
+            if (journal.getJournalSize() > MAX_JOURNAL_BYTES) {
+                journal.compact(serverTaskList);
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Failed to write the render queue journal", e);
+        }
+    }
+
     private WebServer enableWebServer(StartupLog startupLog, Config config, ServerInfo serverInfo) {
         Objects.requireNonNull(startupLog, "startupLog");
         Objects.requireNonNull(config, "config");
@@ -71,7 +96,17 @@ public class Topographica extends JavaPlugin {
     @Override
     public void onDisable() {
         drawTask.requestStop();
-        chunkQueuePersistance.saveRegionQueue(serverTaskList);
+        try {
+            drawTask.writePendingFiles();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.compact(serverTaskList);
+            journal.close();
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Failed to write region queue", e);
+        }
         if (webServer != null) {
             webServer.disable();
         }
@@ -79,23 +114,50 @@ public class Topographica extends JavaPlugin {
 
     @Override
     public void onEnable() {
-        Path savedQueueFile = this.getDataFolder().toPath().resolve("pending_regions.txt");
-
         StartupLog startupLog = StartupLog.wrapping(getLogger());
         config = loadConfigs(startupLog);
-        serverInfo = new LiveServerInfo(this, config);
-        webServer = enableWebServer(startupLog, config, serverInfo);
         serverTaskList = new ServerTaskList(config);
+        serverInfo = new LiveServerInfo(this, config, serverTaskList);
+        webServer = enableWebServer(startupLog, config, serverInfo);
 
-        chunkQueuePersistance = new ChunkQueuePersistance(savedQueueFile, this.getLogger());
-        chunkQueuePersistance.loadFromQueue(getServer(), serverTaskList);
+        journal = startJournal(serverTaskList);
         new LogToPlayerSender(startupLog, this).sendExistingWarnings().listenForNewPlayers();
         getServer().getPluginManager().registerEvents(new BlockListener(serverTaskList), this);
-        this.getCommand(this.getName().toLowerCase(Locale.ROOT)).setExecutor(new CommandHandler(serverTaskList));
 
         ChunkSnapshotGetter getter = new ChunkSnapshotGetter(this);
-        drawTask = new ServerDrawTask(serverTaskList, getServer(), getter, config);
+        drawTask = new ServerDrawTask(serverTaskList, getServer(), getter, config, getLogger());
+        this.getCommand(this.getName().toLowerCase(Locale.ROOT))
+                .setExecutor(new CommandHandler(serverTaskList, drawTask, config, Optional.ofNullable(webServer)));
         this.getServer().getScheduler().runTaskAsynchronously(this, drawTask);
+        this.getServer().getScheduler().runTaskTimerAsynchronously(this, this::commitJournal, JOURNAL_COMMIT_TICKS,
+                JOURNAL_COMMIT_TICKS);
+    }
+
+    private RenderQueueJournal startJournal(ServerTaskList serverTaskList) {
+        Path dataFolder = this.getDataFolder().toPath();
+        RenderQueueJournal journal = new RenderQueueJournal(dataFolder, this.getLogger());
+
+        // Older versions saved the queue in a text file
+        Path savedQueueFile = dataFolder.resolve("pending_regions.txt");
+        new ChunkQueuePersistance(savedQueueFile, this.getLogger()).loadFromQueue(journal::addRecovered);
+
+        journal.recover(worldId -> {
+            World world = getServer().getWorld(worldId);
+            if (world == null) {
+                getLogger().info("World with id " + worldId + " is not loaded. Its part of the render queue is kept"
+                        + " until the world is loaded.");
+                return null;
+            }
+            return serverTaskList.getQueueRestorer(world);
+        });
+
+        try {
+            journal.compact(serverTaskList);
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Failed to write region queue", e);
+        }
+        serverTaskList.setJournal(journal);
+        return journal;
     }
 
 }
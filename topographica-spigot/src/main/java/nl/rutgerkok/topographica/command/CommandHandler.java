@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -15,16 +16,21 @@ import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.bukkit.util.StringUtil;
 
+import nl.rutgerkok.topographica.config.Config;
+import nl.rutgerkok.topographica.render.ServerDrawTask;
 import nl.rutgerkok.topographica.render.ServerTaskList;
+import nl.rutgerkok.topographica.webserver.WebServer;
 
 public final class CommandHandler implements TabExecutor {
 
     private final Map<String, SubCommand> subHandlers;
 
-    public CommandHandler(ServerTaskList serverRenderer) {
+    public CommandHandler(ServerTaskList serverRenderer, ServerDrawTask drawTask, Config config,
+            Optional<WebServer> webServer) {
         this.subHandlers = ImmutableMap.<String, SubCommand>builder()
-                .put("status", new StatusCommand(serverRenderer))
+                .put("status", new StatusCommand(serverRenderer, drawTask, webServer))
                 .put("fullrender", new FullRenderCommand(serverRenderer))
+                .put("rebuildzoom", new RebuildZoomCommand(serverRenderer, drawTask))
                 .put("help", new HelpCommand(this))
                 .build();
     }
@@ -0,0 +1,91 @@
+package nl.rutgerkok.topographica.command;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import nl.rutgerkok.topographica.render.ServerDrawTask;
+import nl.rutgerkok.topographica.render.ServerTaskList;
+import nl.rutgerkok.topographica.util.Chat;
+
+final class RebuildZoomCommand extends SubCommand {
+
+    private final ServerTaskList serverRenderer;
+    private final ServerDrawTask drawTask;
+
+    /**
+     * Only one rebuild can run at a time.
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public RebuildZoomCommand(ServerTaskList serverRenderer, ServerDrawTask drawTask) {
+        this.serverRenderer = Objects.requireNonNull(serverRenderer, "serverRenderer");
+        this.drawTask = Objects.requireNonNull(drawTask, "drawTask");
+    }
+
+    @Override
+    void execute(CommandSender sender, String baseLabel, List<String> args) throws CommandUsageException {
+        requireMinMaxSize(args, 0, 1);
+        World world = getWorld(sender);
+        if (args.size() == 1) {
+            world = sender.getServer().getWorld(args.get(0));
+            if (world == null) {
+                sender.sendMessage(ERROR_COLOR + "World \"" + args.get(0) + "\" does not exist.");
+                return;
+            }
+        }
+
+        if (!running.compareAndSet(false, true)) {
+            sender.sendMessage(ERROR_COLOR + "Already rebuilding the zoom levels of a world. Please wait.");
+            return;
+        }
+        rebuildAsync(sender, world);
+        sender.sendMessage("Rebuilding the zoom levels of world " + world.getName()
+                + " from the existing images. You will get a message when this is done.");
+    }
+
+    @Override
+    String getDescription() {
+        return "rebuilds the zoomed out images of a world, without re-rendering.";
+    }
+
+    @Override
+    String getSyntax() {
+        return "[worldname]";
+    }
+
+    private void rebuildAsync(CommandSender sender, World world) {
+        Plugin plugin = JavaPlugin.getProvidingPlugin(getClass());
+        String worldName = world.getName();
+        // Runs on the draw thread, so that no regions are drawn in the meantime
+        drawTask.rebuildZoomLevels(world, serverRenderer.getZoomLevels(world)).whenComplete((result, e) -> {
+            running.set(false);
+            // Messages must be sent from the server thread
+            sender.getServer().getScheduler().runTask(plugin, () -> {
+                if (e != null) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to rebuild zoom levels of world " + worldName, e);
+                    sender.sendMessage(Chat.WARNING_COLOR + "Failed to rebuild zoom levels. " + e.getMessage());
+                    return;
+                }
+                sender.sendMessage(String.format(Locale.ROOT,
+                        "Rebuilt %d zoomed out images from %d images in %.1f seconds (%.0f images per second).",
+                        result.getImagesWritten(), result.getImagesRead(), result.getSeconds(),
+                        result.getImagesPerSecond()));
+            });
+        });
+    }
+
+    @Override
+    List<String> tabComplete(CommandSender sender, List<String> args) {
+        return Collections.emptyList();
+    }
+
+}
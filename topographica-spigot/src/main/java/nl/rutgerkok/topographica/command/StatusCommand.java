@@ -2,23 +2,35 @@ package nl.rutgerkok.topographica.command;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
 
+import com.google.common.cache.CacheStats;
+
 import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 
+import nl.rutgerkok.topographica.render.ServerDrawTask;
 import nl.rutgerkok.topographica.render.ServerTaskList;
 import nl.rutgerkok.topographica.render.WorldTaskList;
+import nl.rutgerkok.topographica.webserver.WebServer;
 
 final class StatusCommand extends SubCommand {
 
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
     private final ServerTaskList serverRenderer;
+    private final ServerDrawTask drawTask;
+    private final Optional<WebServer> webServer;
 
-    public StatusCommand(ServerTaskList serverRenderer) {
+    public StatusCommand(ServerTaskList serverRenderer, ServerDrawTask drawTask, Optional<WebServer> webServer) {
         this.serverRenderer = Objects.requireNonNull(serverRenderer, "serverRenderer");
+        this.drawTask = Objects.requireNonNull(drawTask, "drawTask");
+        this.webServer = Objects.requireNonNull(webServer, "webServer");
     }
 
     @Override
@@ -29,14 +41,45 @@ final class StatusCommand extends SubCommand {
         if (renderers.isEmpty()) {
             sender.sendMessage(MAIN_COLOR + "No active renderers.");
         }
+        long totalRenderNanos = 0;
+        for (WorldTaskList taskList : renderers.values()) {
+            totalRenderNanos += taskList.getRenderNanos();
+        }
         int i = 1;
         for (Entry<UUID, WorldTaskList> entry : renderers.entrySet()) {
             UUID worldId = entry.getKey();
             WorldTaskList taskList = entry.getValue();
+            long sharePercentage = totalRenderNanos == 0 ? 0 : taskList.getRenderNanos() * 100 / totalRenderNanos;
             sender.sendMessage(MAIN_COLOR + i + ". World \"" + getWorldName(sender, worldId) + "\": "
-                    + taskList.calculateRegionsInQueue() + " regions in queue");
+                    + taskList.calculateRegionsInQueue() + " regions in queue, " + sharePercentage
+                    + "% of render time");
             i++;
         }
+
+        CacheStats stats = drawTask.getCanvasCacheStats();
+        sender.sendMessage(MAIN_COLOR + String.format(Locale.ROOT,
+                "Regions in memory: %.1f of %.1f MB used, %.0f%% hit rate (%d hits, %d misses)",
+                drawTask.getCanvasCacheUsedBytes() / BYTES_PER_MEGABYTE,
+                drawTask.getCanvasCacheMaxBytes() / BYTES_PER_MEGABYTE, stats.hitRate() * 100, stats.hitCount(),
+                stats.missCount()));
+        sender.sendMessage(MAIN_COLOR + "Files waiting to be written: " + drawTask.getPendingWrites());
+        sender.sendMessage(MAIN_COLOR + String.format(Locale.ROOT, "Recompressed images: %d, saving %.1f MB%s",
+                drawTask.getRecompressionImages(), drawTask.getRecompressionBytesSaved() / BYTES_PER_MEGABYTE,
+                drawTask.getRecompressionWorld().map(world -> ", now at world \"" + world + "\" zoom level "
+                        + drawTask.getRecompressionZoomLevel()).orElse("")));
+        if (webServer.isPresent()) {
+            CacheStats imageStats = webServer.get().getImageCacheStats();
+            sender.sendMessage(MAIN_COLOR + String.format(Locale.ROOT,
+                    "Map images in memory: %.1f of %.1f MB used, %.0f%% hit rate (%d hits, %d misses)",
+                    webServer.get().getImageCacheUsedBytes() / BYTES_PER_MEGABYTE,
+                    webServer.get().getImageCacheMaxBytes() / BYTES_PER_MEGABYTE, imageStats.hitRate() * 100,
+                    imageStats.hitCount(), imageStats.missCount()));
+            sender.sendMessage(MAIN_COLOR + String.format(Locale.ROOT,
+                    "Web requests: %d answered from memory, %d from disk, %d of %d waiting, queue full %d times",
+                    webServer.get().getAnsweredFromMemory(), webServer.get().getAnsweredFromDisk(),
+                    webServer.get().getRequestsWaiting(), webServer.get().getRequestQueueSize(),
+                    webServer.get().getQueueFullCount()));
+        }
     }
 
     @Override
@@ -39,11 +39,22 @@ public final class Config {
     private final Map<String, WorldConfig> configsByWorld;
     private final WebConfig webConfig;
     private final TimingsConfig timingsConfig;
+    private final TileConfig tileConfig;
 
     public Config(Server server, FileConfiguration config, Path dataFolder, StartupLog log) {
         this.configsByWorld = getWorldConfigs(server, config, log);
         this.webConfig = new WebConfig(config.getConfigurationSection("web-server"), dataFolder, log);
         this.timingsConfig = new TimingsConfig(config.getConfigurationSection("timings"), log);
+        this.tileConfig = new TileConfig(config.getConfigurationSection("tiles"), dataFolder, log);
+    }
+
+    /**
+     * Gets the configuration for the map images.
+     *
+     * @return The configuration.
+     */
+    public TileConfig getTileConfig() {
+        return tileConfig;
     }
 
     /**
@@ -159,6 +170,7 @@ public final class Config {
         wipeConfig(to);
 
         timingsConfig.write(to.createSection("timings"));
+        tileConfig.write(to.createSection("tiles"));
         webConfig.write(to.createSection("web-server"));
 
         ConfigurationSection defaultWorldSection = to.createSection("worlds.default");
@@ -5,6 +5,8 @@ import static nl.rutgerkok.topographica.util.SizeConstants.CHUNK_SIZE_BLOCKS_BIT
 import static nl.rutgerkok.topographica.util.SizeConstants.REGION_SIZE_BLOCKS;
 import static nl.rutgerkok.topographica.util.SizeConstants.REGION_SIZE_BLOCKS_BITS;
 
+import java.util.OptionalInt;
+
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.util.BlockVector;
 
@@ -39,6 +41,25 @@ public final class RenderAreaConfig {
         return new BlockVector(centerX, 65, centerZ);
     }
 
+    /**
+     * Gets how far the area extends from the corner of region 0,0, in regions.
+     * A distance of 1 means that only regions -1..0 are needed in both
+     * directions, a distance of 2 means that regions -2..1 are needed, etc.
+     *
+     * @return The distance, or empty if the area is unlimited.
+     */
+    public OptionalInt getRegionDistance() {
+        if (radius == Integer.MAX_VALUE) {
+            return OptionalInt.empty();
+        }
+        long minX = Math.floorDiv(centerX - radius, REGION_SIZE_BLOCKS);
+        long maxX = Math.floorDiv(centerX + radius, REGION_SIZE_BLOCKS);
+        long minZ = Math.floorDiv(centerZ - radius, REGION_SIZE_BLOCKS);
+        long maxZ = Math.floorDiv(centerZ + radius, REGION_SIZE_BLOCKS);
+        long distance = Math.max(Math.max(-minX, maxX + 1), Math.max(-minZ, maxZ + 1));
+        return OptionalInt.of((int) Math.min(Integer.MAX_VALUE, distance));
+    }
+
     /**
      * Checks if there is any area that should be rendered.
      *
@@ -0,0 +1,190 @@
+package nl.rutgerkok.topographica.config;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import com.google.common.collect.ImmutableBiMap;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import nl.rutgerkok.topographica.image.PngEncoder;
+import nl.rutgerkok.topographica.image.PngEncoder.RowFilter;
+import nl.rutgerkok.topographica.image.TileStorage;
+import nl.rutgerkok.topographica.image.TileStore;
+import nl.rutgerkok.topographica.util.StartupLog;
+
+/**
+ * Settings for the map images.
+ *
+ */
+public final class TileConfig {
+
+    private static final ImmutableBiMap<String, Integer> STRATEGIES = ImmutableBiMap.of(
+            "default", Deflater.DEFAULT_STRATEGY,
+            "filtered", Deflater.FILTERED,
+            "huffman-only", Deflater.HUFFMAN_ONLY);
+
+    private final int canvasCacheMegabytes;
+    private final boolean deduplicate;
+    private final Path pluginDataFolder;
+    private final PngEncoder pngEncoder;
+    private final int pngCompressionLevel;
+    private final int pngCompressionStrategy;
+    private final boolean pngPalette;
+    private final RowFilter pngRowFilter;
+    private final int recompressCpuPercent;
+    private final int recompressMinAgeMinutes;
+    private final TileStorage storage;
+
+    TileConfig(ConfigurationSection config, Path pluginDataFolder, StartupLog log) {
+        this.pluginDataFolder = Objects.requireNonNull(pluginDataFolder, "pluginDataFolder");
+
+        int pngCompressionLevel = config.getInt("png-compression-level");
+        if (pngCompressionLevel < Deflater.NO_COMPRESSION || pngCompressionLevel > Deflater.BEST_COMPRESSION) {
+            log.warn("png-compression-level must be from 0 to 9, so it was changed to 1");
+            pngCompressionLevel = Deflater.BEST_SPEED;
+        }
+
+        String strategyName = config.getString("png-compression-strategy", "").toLowerCase(Locale.ROOT);
+        Integer pngCompressionStrategy = STRATEGIES.get(strategyName);
+        if (pngCompressionStrategy == null) {
+            log.warn("Unknown png-compression-strategy \"" + strategyName + "\", so it was changed to \"default\". "
+                    + "Valid values are " + STRATEGIES.keySet());
+            pngCompressionStrategy = Deflater.DEFAULT_STRATEGY;
+        }
+
+        String rowFilterName = config.getString("png-row-filter", "");
+        RowFilter pngRowFilter;
+        try {
+            pngRowFilter = RowFilter.valueOf(rowFilterName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown png-row-filter \"" + rowFilterName + "\", so it was changed to \"none\"");
+            pngRowFilter = RowFilter.NONE;
+        }
+
+        this.pngCompressionLevel = pngCompressionLevel;
+        this.pngCompressionStrategy = pngCompressionStrategy;
+        this.pngRowFilter = pngRowFilter;
+        this.pngPalette = config.getBoolean("png-palette", true);
+        this.pngEncoder = new PngEncoder(pngCompressionLevel, pngCompressionStrategy, pngRowFilter, pngPalette);
+
+        int canvasCacheMegabytes = config.getInt("canvas-cache-megabytes", 32);
+        if (canvasCacheMegabytes < 0) {
+            log.warn("canvas-cache-megabytes was negative, so it was changed to 0 (no cache)");
+            canvasCacheMegabytes = 0;
+        }
+        this.canvasCacheMegabytes = canvasCacheMegabytes;
+
+        this.deduplicate = config.getBoolean("deduplicate", false);
+
+        String storageName = config.getString("storage", "");
+        TileStorage storage;
+        try {
+            storage = TileStorage.valueOf(storageName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown storage \"" + storageName + "\", so it was changed to \"files\"");
+            storage = TileStorage.FILES;
+        }
+        this.storage = storage;
+
+        int recompressCpuPercent = config.getInt("recompress-cpu-percent", 5);
+        if (recompressCpuPercent < 0 || recompressCpuPercent > 100) {
+            log.warn("recompress-cpu-percent must be from 0 to 100, so it was changed to 5");
+            recompressCpuPercent = 5;
+        }
+        this.recompressCpuPercent = recompressCpuPercent;
+
+        int recompressMinAgeMinutes = config.getInt("recompress-min-age-minutes", 60);
+        if (recompressMinAgeMinutes < 0) {
+            log.warn("recompress-min-age-minutes was negative, so it was changed to 0");
+            recompressMinAgeMinutes = 0;
+        }
+        this.recompressMinAgeMinutes = recompressMinAgeMinutes;
+    }
+
+    /**
+     * Gets how much memory may be used for keeping the images of recently
+     * drawn regions in memory.
+     *
+     * @return The amount of bytes.
+     */
+    public long getCanvasCacheBytes() {
+        return canvasCacheMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Gets the folder where the raw pixels of the images of zoom level 1 are
+     * stored. These are used to redraw parts of an image without decoding the
+     * image. They are not needed by the web server.
+     *
+     * @return The folder.
+     */
+    public Path getPixelsFolder() {
+        return pluginDataFolder.resolve("pixels");
+    }
+
+    /**
+     * Gets the encoder that must be used for writing the map images.
+     *
+     * @return The encoder.
+     */
+    public PngEncoder getPngEncoder() {
+        return pngEncoder;
+    }
+
+    /**
+     * Gets the percentage of the time of the draw thread that may be used for
+     * recompressing the map images when there's nothing to draw.
+     *
+     * @return The percentage, from 0 (disabled) to 100.
+     */
+    public int getRecompressCpuPercent() {
+        return recompressCpuPercent;
+    }
+
+    /**
+     * Gets how long ago an image must have been drawn before it is
+     * recompressed.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getRecompressMinAgeNanos() {
+        return TimeUnit.MINUTES.toNanos(recompressMinAgeMinutes);
+    }
+
+    /**
+     * Gets the file that stores how far recompressing the map images has
+     * progressed.
+     *
+     * @return The file.
+     */
+    public Path getRecompressionFile() {
+        return pluginDataFolder.resolve("recompression.properties");
+    }
+
+    /**
+     * Opens the map images of a world, using the configured storage.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @return The images.
+     */
+    public TileStore openTileStore(Path worldFolder) {
+        return storage.open(worldFolder, pngEncoder, deduplicate);
+    }
+
+    void write(ConfigurationSection config) {
+        config.set("png-compression-level", pngCompressionLevel);
+        config.set("png-compression-strategy", STRATEGIES.inverse().get(pngCompressionStrategy));
+        config.set("png-row-filter", pngRowFilter.name().toLowerCase(Locale.ROOT));
+        config.set("png-palette", pngPalette);
+        config.set("canvas-cache-megabytes", canvasCacheMegabytes);
+        config.set("deduplicate", deduplicate);
+        config.set("storage", storage.name().toLowerCase(Locale.ROOT));
+        config.set("recompress-cpu-percent", recompressCpuPercent);
+        config.set("recompress-min-age-minutes", recompressMinAgeMinutes);
+    }
+}
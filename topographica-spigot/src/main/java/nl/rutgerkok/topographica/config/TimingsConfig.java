@@ -9,24 +9,125 @@ import nl.rutgerkok.topographica.util.StartupLog;
  *
  */
 public final class TimingsConfig {
-    private final double pauseSecondsAfterRenderPass;
+    private final double minSecondsBetweenRenderPasses;
     private final double pauseSecondsAfterChunkLoad;
     private final boolean noPauseAfterChunkLoadWhenNobodyIsOnline;
+    private final double minSecondsAfterLastEdit;
+    private final double maxSecondsAfterFirstEdit;
+    private final int dirtyChunksForRegionRedraw;
+    private final double maxSecondsPerWorldSlice;
+    private final int maxChunksPerWorldSlice;
 
     TimingsConfig(ConfigurationSection config, StartupLog log) {
-        double pauseSecondsAfterRenderPass = config.getDouble("pause-seconds-after-render-pass");
+        // Setting used to be called pause-seconds-after-render-pass
+        double minSecondsBetweenRenderPasses = config.getDouble("min-seconds-between-render-passes",
+                config.getDouble("pause-seconds-after-render-pass", 10));
         double pauseSecondsAfterChunkLoad = config.getDouble("pause-seconds-after-chunk-load");
         noPauseAfterChunkLoadWhenNobodyIsOnline = config.getBoolean("no-pause-after-chunk-load-when-nobody-is-online");
-        if (pauseSecondsAfterRenderPass < 0.5) {
-            log.warn("pause-seconds-after-render-pass was too small, so it was changed to 0.5");
-            pauseSecondsAfterRenderPass = 0.5;
+        double minSecondsAfterLastEdit = config.getDouble("min-seconds-after-last-edit");
+        double maxSecondsAfterFirstEdit = config.getDouble("max-seconds-after-first-edit");
+        int dirtyChunksForRegionRedraw = config.getInt("dirty-chunks-for-region-redraw");
+        double maxSecondsPerWorldSlice = config.getDouble("max-seconds-per-world-slice");
+        int maxChunksPerWorldSlice = config.getInt("max-chunks-per-world-slice");
+        if (minSecondsBetweenRenderPasses < 0) {
+            log.warn("min-seconds-between-render-passes was negative, so it was changed to 0");
+            minSecondsBetweenRenderPasses = 0;
         }
         if (pauseSecondsAfterChunkLoad < 0) {
             log.warn("pause-seconds-after-chunk-load was negative, so it was changed to 0");
             pauseSecondsAfterChunkLoad = 0;
         }
-        this.pauseSecondsAfterRenderPass = pauseSecondsAfterRenderPass;
+        if (minSecondsAfterLastEdit < 0) {
+            log.warn("min-seconds-after-last-edit was negative, so it was changed to 0");
+            minSecondsAfterLastEdit = 0;
+        }
+        if (maxSecondsAfterFirstEdit < minSecondsAfterLastEdit) {
+            log.warn("max-seconds-after-first-edit was smaller than min-seconds-after-last-edit, so it was changed to "
+                    + minSecondsAfterLastEdit);
+            maxSecondsAfterFirstEdit = minSecondsAfterLastEdit;
+        }
+        if (dirtyChunksForRegionRedraw < 1) {
+            log.warn("dirty-chunks-for-region-redraw was too small, so it was changed to 1");
+            dirtyChunksForRegionRedraw = 1;
+        }
+        if (maxSecondsPerWorldSlice < 0) {
+            log.warn("max-seconds-per-world-slice was negative, so it was changed to 0 (no limit)");
+            maxSecondsPerWorldSlice = 0;
+        }
+        if (maxChunksPerWorldSlice < 0) {
+            log.warn("max-chunks-per-world-slice was negative, so it was changed to 0 (no limit)");
+            maxChunksPerWorldSlice = 0;
+        }
+        this.minSecondsBetweenRenderPasses = minSecondsBetweenRenderPasses;
         this.pauseSecondsAfterChunkLoad = pauseSecondsAfterChunkLoad;
+        this.minSecondsAfterLastEdit = minSecondsAfterLastEdit;
+        this.maxSecondsAfterFirstEdit = maxSecondsAfterFirstEdit;
+        this.dirtyChunksForRegionRedraw = dirtyChunksForRegionRedraw;
+        this.maxSecondsPerWorldSlice = maxSecondsPerWorldSlice;
+        this.maxChunksPerWorldSlice = maxChunksPerWorldSlice;
+    }
+
+    /**
+     * Gets how many chunks of a region must be waiting for a redraw before the
+     * whole region is redrawn instead.
+     *
+     * @return Amount of chunks.
+     */
+    public int getDirtyChunksForRegionRedraw() {
+        return dirtyChunksForRegionRedraw;
+    }
+
+    /**
+     * Gets how many chunks a world with a render weight of 1 may draw before
+     * the renderer moves on to the next world. The world gets the rest of its
+     * work done in its next turn.
+     *
+     * @return Amount of chunks, or 0 for no limit.
+     */
+    public int getMaxChunksPerWorldSlice() {
+        return maxChunksPerWorldSlice;
+    }
+
+    /**
+     * Gets the maximum amount of seconds a region can wait for a redraw after
+     * it was first edited, even if it keeps being edited.
+     *
+     * @return Amount of seconds.
+     */
+    public double getMaxSecondsAfterFirstEdit() {
+        return maxSecondsAfterFirstEdit;
+    }
+
+    /**
+     * Gets how many seconds a world with a render weight of 1 may be rendered
+     * before the renderer moves on to the next world. The world gets the rest
+     * of its work done in its next turn.
+     *
+     * @return Amount of seconds, or 0 for no limit.
+     */
+    public double getMaxSecondsPerWorldSlice() {
+        return maxSecondsPerWorldSlice;
+    }
+
+    /**
+     * Gets how many seconds a region must be left alone after its last edit
+     * before it is redrawn.
+     *
+     * @return Amount of seconds.
+     */
+    public double getMinSecondsAfterLastEdit() {
+        return minSecondsAfterLastEdit;
+    }
+
+    /**
+     * Gets how many seconds must at least be between the start of two render
+     * passes. The renderer doesn't wait if the last pass was longer ago, and
+     * it doesn't wake up at all if there is nothing to render.
+     *
+     * @return Amount of seconds.
+     */
+    public double getMinSecondsBetweenRenderPasses() {
+        return minSecondsBetweenRenderPasses;
     }
 
     /**
@@ -45,18 +146,15 @@ public final class TimingsConfig {
         return pauseSecondsAfterChunkLoad;
     }
 
-    /**
-     * Gets how many seconds the renderer should wait after a full render pass.
-     *
-     * @return Amount of seconds.
-     */
-    public double getPauseSecondsAfterRenderPass() {
-        return pauseSecondsAfterRenderPass;
-    }
 
     void write(ConfigurationSection to) {
-        to.set("pause-seconds-after-render-pass", this.pauseSecondsAfterRenderPass);
+        to.set("min-seconds-between-render-passes", this.minSecondsBetweenRenderPasses);
         to.set("pause-seconds-after-chunk-load", this.pauseSecondsAfterChunkLoad);
         to.set("no-pause-after-chunk-load-when-nobody-is-online", this.noPauseAfterChunkLoadWhenNobodyIsOnline);
+        to.set("min-seconds-after-last-edit", this.minSecondsAfterLastEdit);
+        to.set("max-seconds-after-first-edit", this.maxSecondsAfterFirstEdit);
+        to.set("dirty-chunks-for-region-redraw", this.dirtyChunksForRegionRedraw);
+        to.set("max-seconds-per-world-slice", this.maxSecondsPerWorldSlice);
+        to.set("max-chunks-per-world-slice", this.maxChunksPerWorldSlice);
     }
 }
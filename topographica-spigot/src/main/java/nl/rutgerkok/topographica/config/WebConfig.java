@@ -2,19 +2,28 @@ package nl.rutgerkok.topographica.config;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.Locale;
 import java.util.Objects;
 
 import org.bukkit.configuration.ConfigurationSection;
 
 import nl.rutgerkok.topographica.util.StartupLog;
+import nl.rutgerkok.topographica.webserver.QueueFullAction;
 import nl.rutgerkok.topographica.webserver.WebPaths;
 
 public final class WebConfig {
 
+    private final int imageCacheMegabytes;
+    private final int imageMaxAgeSeconds;
+    private final int maxConcurrentDiskReads;
     private final int port;
+    private final QueueFullAction queueFullAction;
+    private final int requestQueueSize;
+    private final int requestThreads;
     private final String webFolder;
     private final Path pluginDataFolder;
     private final boolean internalWebServer;
+    private final int staticFileMaxAgeSeconds;
 
     WebConfig(ConfigurationSection config, Path pluginDataFolder, StartupLog log) {
         this.pluginDataFolder = Objects.requireNonNull(pluginDataFolder);
@@ -28,6 +37,78 @@ public final class WebConfig {
             port = config.getDefaultSection().getInt("port");
         }
         this.port = port;
+
+        int imageMaxAgeSeconds = config.getInt("image-max-age-seconds", 60);
+        if (imageMaxAgeSeconds < 0) {
+            log.warn("image-max-age-seconds was negative, so it was changed to 0");
+            imageMaxAgeSeconds = 0;
+        }
+        this.imageMaxAgeSeconds = imageMaxAgeSeconds;
+
+        int staticFileMaxAgeSeconds = config.getInt("static-file-max-age-seconds", 60 * 60);
+        if (staticFileMaxAgeSeconds < 0) {
+            log.warn("static-file-max-age-seconds was negative, so it was changed to 0");
+            staticFileMaxAgeSeconds = 0;
+        }
+        this.staticFileMaxAgeSeconds = staticFileMaxAgeSeconds;
+
+        int imageCacheMegabytes = config.getInt("image-cache-megabytes", 32);
+        if (imageCacheMegabytes < 0) {
+            log.warn("image-cache-megabytes was negative, so it was changed to 0 (no cache)");
+            imageCacheMegabytes = 0;
+        }
+        this.imageCacheMegabytes = imageCacheMegabytes;
+
+        int maxConcurrentDiskReads = config.getInt("max-concurrent-disk-reads", 4);
+        if (maxConcurrentDiskReads < 1) {
+            log.warn("max-concurrent-disk-reads was less than 1, so it was changed to 1");
+            maxConcurrentDiskReads = 1;
+        }
+        this.maxConcurrentDiskReads = maxConcurrentDiskReads;
+
+        int requestThreads = config.getInt("request-threads", 4);
+        if (requestThreads < 1) {
+            log.warn("request-threads was less than 1, so it was changed to 1");
+            requestThreads = 1;
+        }
+        this.requestThreads = requestThreads;
+
+        int requestQueueSize = config.getInt("request-queue-size", 256);
+        if (requestQueueSize < 1) {
+            log.warn("request-queue-size was less than 1, so it was changed to 1");
+            requestQueueSize = 1;
+        }
+        this.requestQueueSize = requestQueueSize;
+
+        String queueFullActionName = config.getString("request-queue-full", "");
+        QueueFullAction queueFullAction;
+        try {
+            queueFullAction = QueueFullAction.valueOf(queueFullActionName.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown request-queue-full \"" + queueFullActionName + "\", so it was changed to \"reject\"");
+            queueFullAction = QueueFullAction.REJECT;
+        }
+        this.queueFullAction = queueFullAction;
+    }
+
+    /**
+     * Gets how much memory the web server may use for keeping the most
+     * requested map images in memory.
+     *
+     * @return The amount of bytes.
+     */
+    public long getImageCacheBytes() {
+        return imageCacheMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Gets how long web browsers may show a map image without checking
+     * whether it was redrawn.
+     *
+     * @return The time in seconds, 0 if web browsers must always check.
+     */
+    public int getImageMaxAgeSeconds() {
+        return imageMaxAgeSeconds;
     }
 
     /**
@@ -39,6 +120,16 @@ public final class WebConfig {
         return getWebFolder().resolve(WebPaths.IMAGES);
     }
 
+    /**
+     * Gets how many map images the web server may read from disk at the same
+     * time.
+     *
+     * @return The amount, at least 1.
+     */
+    public int getMaxConcurrentDiskReads() {
+        return maxConcurrentDiskReads;
+    }
+
     /**
      * Gets the port on which the web server runs.
      *
@@ -48,6 +139,45 @@ public final class WebConfig {
         return port;
     }
 
+    /**
+     * Gets what the web server does with a request that must be read from
+     * disk when the queue of waiting requests is full.
+     *
+     * @return The action.
+     */
+    public QueueFullAction getQueueFullAction() {
+        return queueFullAction;
+    }
+
+    /**
+     * Gets how many requests that must be read from disk may wait for a
+     * thread.
+     *
+     * @return The amount, at least 1.
+     */
+    public int getRequestQueueSize() {
+        return requestQueueSize;
+    }
+
+    /**
+     * Gets how many threads handle requests that must be read from disk.
+     *
+     * @return The amount, at least 1.
+     */
+    public int getRequestThreads() {
+        return requestThreads;
+    }
+
+    /**
+     * Gets how long web browsers may use the scripts and style sheets of the
+     * map without checking whether they have changed.
+     *
+     * @return The time in seconds, 0 if web browsers must always check.
+     */
+    public int getStaticFileMaxAgeSeconds() {
+        return staticFileMaxAgeSeconds;
+    }
+
     private Path getWebFolder() {
         File webFolder = new File(this.webFolder);
         if (webFolder.isAbsolute()) {
@@ -70,5 +200,12 @@ public final class WebConfig {
         config.set("port", port);
         config.set("web-root", webFolder);
         config.set("internal-web-server", internalWebServer);
+        config.set("image-max-age-seconds", imageMaxAgeSeconds);
+        config.set("static-file-max-age-seconds", staticFileMaxAgeSeconds);
+        config.set("image-cache-megabytes", imageCacheMegabytes);
+        config.set("max-concurrent-disk-reads", maxConcurrentDiskReads);
+        config.set("request-threads", requestThreads);
+        config.set("request-queue-size", requestQueueSize);
+        config.set("request-queue-full", queueFullAction.name().toLowerCase(Locale.ROOT).replace('_', '-'));
     }
 }
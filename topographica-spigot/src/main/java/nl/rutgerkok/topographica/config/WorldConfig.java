@@ -16,6 +16,7 @@ public final class WorldConfig {
     private final ColorConfig colorConfig;
     private final String displayName;
     private final int order;
+    private final int renderWeight;
 
     WorldConfig(World copyDefaultsOrNull, String worldName, ConfigurationSection config, StartupLog log) {
         displayName = config.getString("display-name", worldName);
@@ -32,6 +33,12 @@ public final class WorldConfig {
                 radius);
         colorConfig = new ColorConfig(config.getConfigurationSection("colors"), log);
         order = config.getInt("order", copyDefaultsOrNull == null ? 0 : copyDefaultsOrNull.getEnvironment().ordinal());
+        int renderWeight = config.getInt("render-weight", 1);
+        if (renderWeight < 1) {
+            log.warn("The render-weight " + renderWeight + " in world '" + worldName + "' was too small. Changed it to 1");
+            renderWeight = 1;
+        }
+        this.renderWeight = renderWeight;
     }
 
     /**
@@ -71,6 +78,16 @@ public final class WorldConfig {
         return renderAreaConfig;
     }
 
+    /**
+     * Gets how much rendering time this world gets compared to other worlds. A
+     * world with weight 2 gets twice as much time as a world with weight 1.
+     *
+     * @return The weight, at least 1.
+     */
+    public int getRenderWeight() {
+        return renderWeight;
+    }
+
     /**
      * Returns whether this world must be rendered at all.
      *
@@ -85,6 +102,7 @@ public final class WorldConfig {
             section.set("display-name", displayName);
         }
         section.set("order", order);
+        section.set("render-weight", renderWeight);
         this.renderAreaConfig.write(section);
         colorConfig.write(section.createSection("colors"));
     }
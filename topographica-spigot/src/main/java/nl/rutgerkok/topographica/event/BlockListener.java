@@ -9,6 +9,7 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
 
 import nl.rutgerkok.topographica.render.ServerTaskList;
 
@@ -38,4 +39,9 @@ public final class BlockListener implements Listener {
             this.renderer.askToRenderChunk(event.getChunk());
         }
     }
+
+    @EventHandler
+    public void onWorldLoad(WorldLoadEvent event) {
+        this.renderer.restoreQueue(event.getWorld());
+    }
 }
@@ -8,31 +8,71 @@ import static nl.rutgerkok.topographica.util.SizeConstants.REGION_SIZE_PIXELS_BI
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-
-import javax.imageio.ImageIO;
+import java.util.Optional;
 
 import org.bukkit.Color;
 
+import nl.rutgerkok.topographica.image.TileImages;
+import nl.rutgerkok.topographica.image.TileStore;
+import nl.rutgerkok.topographica.util.Coordinate;
+
+
 public final class Canvas {
 
     /**
-     * Creates a drawing canvas from a region from an existing file. Returns a
-     * new canvas if the file is not readable.
+     * Creates a drawing canvas of a region from its map image. Returns a new
+     * canvas if the image doesn't exist or is not readable.
      *
-     * @param imageFile
-     *            The image file.
+     * @param tileStore
+     *            The map images of the world.
+     * @param regionCoord
+     *            The coordinates of the region.
      * @return The canvas.
      */
-    public static Canvas createFromFile(Path imageFile) {
-        try {
-            return new Canvas(imageFile);
+    public static Canvas createFromTileStore(TileStore tileStore, Coordinate regionCoord) {
+        return tileStore.read(1, regionCoord.x, regionCoord.z).map(Canvas::new).orElseGet(Canvas::new);
+    }
+
+    /**
+     * Creates a drawing canvas from the raw pixels written by
+     * {@link #writeToPixelFile(Path)}. This is a lot faster than decoding an
+     * image.
+     *
+     * @param pixelFile
+     *            The pixel file.
+     * @return The canvas, or empty if the file doesn't exist or is not
+     *         readable.
+     */
+    public static Optional<Canvas> createFromPixelFile(Path pixelFile) {
+        if (!Files.exists(pixelFile)) {
+            return Optional.empty();
+        }
+        Canvas canvas = new Canvas();
+        try (FileChannel channel = FileChannel.open(pixelFile, StandardOpenOption.READ)) {
+            if (channel.size() != SIZE_BYTES) {
+                // Incompletely written
+                return Optional.empty();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE_BYTES);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            buffer.asIntBuffer().get(canvas.pixels);
         } catch (IOException e) {
-            return new Canvas();
+            return Optional.empty();
         }
+        return Optional.of(canvas);
     }
 
     /**
@@ -44,6 +84,13 @@ public final class Canvas {
         return new Canvas();
     }
 
+    /**
+     * Memory used by the pixels of a canvas. This is also the size of a file
+     * written by {@link #writeToPixelFile(Path)}: every pixel is stored as an
+     * int.
+     */
+    static final int SIZE_BYTES = REGION_SIZE_PIXELS * REGION_SIZE_PIXELS * Integer.BYTES;
+
     int REGION_SIZE_BLOCKS_MASK = REGION_SIZE_BLOCKS - 1;
 
     private final BufferedImage image;
@@ -56,32 +103,41 @@ public final class Canvas {
         clearImage();
     }
 
-    private Canvas(Path imageFile) throws IOException {
-        BufferedImage loaded = ImageIO.read(imageFile.toFile());
-        if (loaded.getType() != BufferedImage.TYPE_INT_RGB) {
-            // Convert the image
-            this.image = new BufferedImage(REGION_SIZE_PIXELS, REGION_SIZE_PIXELS, BufferedImage.TYPE_INT_RGB);
-            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-            loaded.getRGB(0, 0, REGION_SIZE_PIXELS, REGION_SIZE_PIXELS, pixels, 0, REGION_SIZE_PIXELS);
-        } else {
-            this.image = loaded;
-            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-        }
-
-        if (this.pixels.length != REGION_SIZE_PIXELS * REGION_SIZE_PIXELS) {
-            throw new IOException("Found image of wrong size");
-        }
-
+    private Canvas(BufferedImage image) {
+        // Always of the correct type and size, see TileStore.read
+        this.image = image;
+        this.pixels = TileImages.getPixels(image);
     }
 
     public void clearImage() {
         Arrays.fill(pixels, Color.BLACK.asRGB());
     }
 
+    /**
+     * Creates a copy of this canvas, which can be modified without affecting
+     * this canvas.
+     *
+     * @return The copy.
+     */
+    Canvas copy() {
+        Canvas copy = new Canvas();
+        System.arraycopy(pixels, 0, copy.pixels, 0, pixels.length);
+        return copy;
+    }
+
     public Graphics2D createGraphics() {
         return image.createGraphics();
     }
 
+    /**
+     * Gets the image that is drawn on.
+     *
+     * @return The image.
+     */
+    BufferedImage getImage() {
+        return image;
+    }
+
     /**
      * Used by the painter to add a pixel.
      *
@@ -98,9 +154,25 @@ public final class Canvas {
         pixels[x | z << REGION_SIZE_PIXELS_BITS] = color.asRGB();
     }
 
-    public void writeToFile(Path file) throws IOException {
+    /**
+     * Writes the raw pixels to a file, so that they can be read again by
+     * {@link #createFromPixelFile(Path)}. Missing directories are created.
+     *
+     * @param file
+     *            The pixel file.
+     * @throws IOException
+     *             If writing fails.
+     */
+    public void writeToPixelFile(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE_BYTES);
+        buffer.asIntBuffer().put(pixels);
         Files.createDirectories(file.getParent());
-        ImageIO.write(image, "PNG", file.toFile());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
     }
 
 }
@@ -0,0 +1,144 @@
+package nl.rutgerkok.topographica.render;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Keeps the canvases of the most recently drawn regions in memory. Regions
+ * around spawn and around bases are edited all the time, so they are redrawn
+ * every render pass. This cache saves reading them from disk again.
+ *
+ * <p>
+ * The canvases are written to their pixel files in the background by a
+ * {@link WriteBehindQueue}. Canvases in this cache are never modified:
+ * {@link #read(Path)} returns a copy.
+ */
+final class CanvasCache {
+
+    /**
+     * Maximum amount of canvases waiting to be written. A canvas takes 1 MiB.
+     */
+    private static final int MAX_PENDING_WRITES = 32;
+
+    private final Cache<Path, Canvas> cache;
+    private final long maxBytes;
+    private final WriteBehindQueue<Path, Canvas> writeQueue;
+
+    /**
+     * Creates a new cache. Canvases are only written in the background after
+     * {@link #start()} is called.
+     *
+     * @param maxBytes
+     *            The maximum amount of memory used by the canvases. If the
+     *            cache is full, the least recently used canvas is removed.
+     *            Canvases that are waiting to be written always stay in
+     *            memory.
+     * @param logger
+     *            Used to report failed writes.
+     */
+    CanvasCache(long maxBytes, Logger logger) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        // Only the draw thread uses this cache, so one segment is enough. This
+        // makes the eviction order exactly least-recently-used
+        this.cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .weigher((Path file, Canvas canvas) -> Canvas.SIZE_BYTES)
+                .recordStats()
+                .build();
+        this.writeQueue = new WriteBehindQueue<>("Topographica pixel writer",
+                (file, canvas) -> canvas.writeToPixelFile(file), MAX_PENDING_WRITES, logger);
+    }
+
+    /**
+     * Gets the maximum amount of memory used by the canvases.
+     *
+     * @return The amount of bytes.
+     */
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the amount of canvases that are waiting to be written.
+     *
+     * @return The amount of canvases.
+     */
+    int getPendingWrites() {
+        return writeQueue.getPendingCount();
+    }
+
+    /**
+     * Gets the hit and miss statistics of this cache.
+     *
+     * @return The statistics.
+     */
+    CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Gets the amount of memory currently used by the canvases.
+     *
+     * @return The amount of bytes.
+     */
+    long getUsedBytes() {
+        return cache.size() * Canvas.SIZE_BYTES;
+    }
+
+    /**
+     * Gets a copy of a canvas in memory.
+     *
+     * @param pixelFile
+     *            The pixel file of the canvas.
+     * @return A copy of the canvas, or empty if the canvas is not in memory.
+     */
+    Optional<Canvas> read(Path pixelFile) {
+        Canvas canvas = cache.getIfPresent(pixelFile);
+        if (canvas == null) {
+            // Maybe evicted, but not yet written
+            return writeQueue.getPending(pixelFile).map(Canvas::copy);
+        }
+        return Optional.of(canvas.copy());
+    }
+
+    /**
+     * Starts writing canvases in the background.
+     */
+    void start() {
+        writeQueue.start();
+    }
+
+    /**
+     * Writes all waiting canvases. Canvases that are written afterwards are
+     * written immediately.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    void stop() throws InterruptedException {
+        writeQueue.stop();
+    }
+
+    /**
+     * Writes a canvas to its pixel file in the background, and keeps it in
+     * memory.
+     *
+     * @param pixelFile
+     *            The pixel file of the canvas.
+     * @param canvas
+     *            The canvas. Must not be modified afterwards.
+     */
+    void write(Path pixelFile, Canvas canvas) {
+        cache.put(pixelFile, canvas);
+        writeQueue.write(pixelFile, canvas);
+    }
+}
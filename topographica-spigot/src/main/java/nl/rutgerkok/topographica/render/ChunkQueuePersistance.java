@@ -1,27 +1,23 @@
 package nl.rutgerkok.topographica.render;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.bukkit.Server;
-import org.bukkit.World;
-
 import nl.rutgerkok.topographica.render.WorldTaskList.DrawInstruction;
 import nl.rutgerkok.topographica.util.Region;
 
 /**
- * Class for saving and loading the rendering queue to/from disk.
+ * Class for loading the rendering queue from the text file that older versions
+ * wrote on shutdown. Nowadays, the queue is kept by {@link RenderQueueJournal}.
  *
  */
 public final class ChunkQueuePersistance {
@@ -47,41 +43,34 @@ public final class ChunkQueuePersistance {
     }
 
     /**
-     * Adds the regions stored in the queue file to the given renderer.
+     * Passes the chunks and regions stored in the queue file to the given
+     * consumer, and deletes the file. Worlds don't need to be loaded.
      *
-     * @param server
-     *            The server, for looking up worlds.
-     * @param renderer
-     *            The renderer.
+     * @param queue
+     *            Receives the world id and the chunk or region.
      */
-    public void loadFromQueue(Server server, ServerTaskList renderer) {
+    public void loadFromQueue(BiConsumer<UUID, DrawInstruction> queue) {
         try (BufferedReader reader = Files.newBufferedReader(savedQueueFile, StandardCharsets.UTF_8)) {
             String line;
-            World world = null;
+            UUID worldId = null;
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith(WORLD_PREFIX)) {
-                    UUID worldId = UUID.fromString(line.substring(WORLD_PREFIX.length()));
-                    world = server.getWorld(worldId);
-                    if (world == null) {
-                        throw new IOException("World with id " + worldId + " is gone. Did you delete a world? If yes,"
-                                + " you can ignore this error.");
-                    }
+                    worldId = UUID.fromString(line.substring(WORLD_PREFIX.length()));
                     continue;
                 }
                 if (line.startsWith("#") || line.isEmpty()) {
                     continue; // Comment
                 }
 
-                if (world == null) {
+                if (worldId == null) {
                     throw new IOException("No world declared for line \"" + line + "\"");
                 }
-                DrawInstruction drawInstruction = parseLine(line);
-                renderer.askToRender(world, drawInstruction);
+                queue.accept(worldId, parseLine(line));
             }
             Files.deleteIfExists(savedQueueFile);
         } catch (NoSuchFileException e) {
             // Ignore
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             logger.log(Level.SEVERE, "Failed to load region queue", e);
             createBackup();
         }
@@ -111,43 +100,4 @@ public final class ChunkQueuePersistance {
 
     }
 
-    /**
-     * Saves all regions in the rendering queue to a file.
-     *
-     * @param renderer
-     *            The renderer.
-     */
-    public void saveRegionQueue(ServerTaskList renderer) {
-        try {
-            Files.createDirectories(savedQueueFile.getParent());
-            try (BufferedWriter writer = Files.newBufferedWriter(savedQueueFile,
-                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                for (Entry<UUID, WorldTaskList> entry : renderer.getActiveTaskLists().entrySet()) {
-                    WorldTaskList taskList = entry.getValue();
-                    writeWorldHeader(writer, entry.getKey(), taskList);
-
-                    for (DrawInstruction region : taskList.getQueueSnapshot()) {
-                        if (region.isRegion) {
-                            writer.write("region ");
-                        } else {
-                            writer.write("chunk ");
-                        }
-                        writer.write(String.valueOf(region.x));
-                        writer.write(',');
-                        writer.write(String.valueOf(region.z));
-                        writer.newLine();
-                    }
-                }
-            }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Failed to write region queue", e);
-        }
-    }
-
-    private void writeWorldHeader(BufferedWriter writer, UUID world, WorldTaskList worldRenderer) throws IOException {
-        writer.write(WORLD_PREFIX);
-        writer.write(world.toString());
-        writer.newLine();
-    }
-
 }
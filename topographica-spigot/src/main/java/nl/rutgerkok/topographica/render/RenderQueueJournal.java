@@ -0,0 +1,829 @@
+package nl.rutgerkok.topographica.render;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import nl.rutgerkok.topographica.render.WorldTaskList.DrawInstruction;
+import nl.rutgerkok.topographica.render.WorldTaskList.QueuedRegionVisitor;
+import nl.rutgerkok.topographica.util.ChunkBitmap;
+import nl.rutgerkok.topographica.util.Coordinate;
+import nl.rutgerkok.topographica.util.Region;
+
+/**
+ * Keeps the rendering queue on disk, so that it survives crashes. Every
+ * addition to and removal from the queue is appended to a journal file. The
+ * records are buffered in memory and written in groups by {@link #commit()},
+ * which also flushes the file to the disk. Once in a while the whole queue is
+ * written to a snapshot file by {@link #compact(ServerTaskList)}, after which
+ * a new journal is started.
+ *
+ * <p>
+ * Both files consist of a header followed by frames. A frame consists of its
+ * length, a CRC32 checksum and then the records. A frame that was only partly
+ * written when the server crashed fails the checksum, so it is ignored
+ * together with everything after it.
+ *
+ * <p>
+ * The journal contains a record for every change. The snapshot contains a
+ * record for every region in the queue, with a bitmap of the chunks that must
+ * be redrawn, so that even a queue of millions of chunks stays small.
+ *
+ * <p>
+ * Snapshots and journals have a generation number. The journal of generation
+ * N contains all changes since just before snapshot N was taken, so on startup
+ * snapshot N is read, followed by the journals of generation N and up.
+ *
+ * <p>
+ * The queue of a world that is not loaded is kept in every snapshot, until
+ * the world is loaded again. Worlds managed by other plugins are often loaded
+ * after this plugin is enabled, or unloaded and loaded again later.
+ */
+public final class RenderQueueJournal {
+
+    /**
+     * The state of a single region, used while recovering.
+     */
+    private static class RecoveredRegion {
+        private boolean full;
+        private final long[] chunks = new long[ChunkBitmap.LENGTH_IN_LONGS];
+
+        private boolean isEmpty() {
+            return !full && ChunkBitmap.nextSetBit(chunks, 0) == -1;
+        }
+    }
+
+    /**
+     * Writes the regions of a single world to a snapshot, split into frames.
+     */
+    private static class SnapshotWriter implements QueuedRegionVisitor {
+        private final FileChannel channel;
+        private final UUID worldId;
+        private ByteArrayDataOutput frame = ByteStreams.newDataOutput();
+        private int frameSize = 0;
+
+        private SnapshotWriter(FileChannel channel, UUID worldId) {
+            this.channel = Objects.requireNonNull(channel, "channel");
+            this.worldId = Objects.requireNonNull(worldId, "worldId");
+        }
+
+        private void flush() throws IOException {
+            if (frameSize > 0) {
+                writeFully(channel, createFrame(frame.toByteArray()));
+                frame = ByteStreams.newDataOutput();
+                frameSize = 0;
+            }
+        }
+
+        @Override
+        public void visit(int regionX, int regionZ, boolean full, long[] chunks) {
+            if (frameSize == 0) {
+                writeWorldRecord(frame, worldId);
+                frameSize += WORLD_RECORD_SIZE;
+            }
+            writeRecord(frame, RECORD_REGION, regionX, regionZ);
+            frame.writeByte(full ? REGION_FLAG_FULL : 0);
+            frameSize += RECORD_SIZE + 1;
+            if (!full) {
+                for (long bits : chunks) {
+                    frame.writeLong(bits);
+                }
+                frameSize += ChunkBitmap.LENGTH_IN_LONGS * Long.BYTES;
+            }
+            if (frameSize >= SNAPSHOT_FRAME_SIZE) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    private static final int JOURNAL_MAGIC = 0x54514a4c; // "TQJL"
+    private static final int SNAPSHOT_MAGIC = 0x5451534e; // "TQSN"
+    private static final int JOURNAL_VERSION = 1;
+    /**
+     * Version 1 stored snapshots as a list of enqueue records. Version 2 uses
+     * region records, which are a lot smaller for large queues.
+     */
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    /**
+     * Frames larger than this are considered damaged.
+     */
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Snapshots are split into frames of about this size.
+     */
+    private static final int SNAPSHOT_FRAME_SIZE = 64 * 1024;
+
+    private static final byte RECORD_WORLD = 1;
+    private static final byte RECORD_ENQUEUE_CHUNK = 2;
+    private static final byte RECORD_ENQUEUE_REGION = 3;
+    private static final byte RECORD_COMPLETE_CHUNK = 4;
+    private static final byte RECORD_COMPLETE_REGION = 5;
+    /**
+     * Region in a snapshot. After the coordinates, there is a byte with
+     * flags. Unless the region is full, 16 longs with the chunk bitmap
+     * follow.
+     */
+    private static final byte RECORD_REGION = 6;
+    private static final int REGION_FLAG_FULL = 1;
+    private static final int WORLD_RECORD_SIZE = 17;
+    private static final int RECORD_SIZE = 9;
+
+    private static final String SNAPSHOT_FILE_NAME = "render_queue.snapshot";
+    private static final String JOURNAL_PREFIX = "render_queue-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Adds a region to the given queue. If the region is already in the
+     * queue, both are combined.
+     *
+     * @param world
+     *            The queue of a world.
+     * @param regionX
+     *            Region x.
+     * @param regionZ
+     *            Region z.
+     * @param full
+     *            True if the whole region must be redrawn.
+     * @param chunks
+     *            If not full: the chunks that must be redrawn.
+     */
+    private static void addRegion(Map<Coordinate, RecoveredRegion> world, int regionX, int regionZ, boolean full,
+            long[] chunks) {
+        RecoveredRegion region = world.computeIfAbsent(new Coordinate(regionX, regionZ),
+                coord -> new RecoveredRegion());
+        if (full) {
+            region.full = true;
+            Arrays.fill(region.chunks, 0);
+        } else if (!region.full) {
+            for (int i = 0; i < region.chunks.length; i++) {
+                region.chunks[i] |= chunks[i];
+            }
+        }
+        if (region.isEmpty()) {
+            world.remove(new Coordinate(regionX, regionZ));
+        }
+    }
+
+    private static void applyRecords(byte[] payload, Map<UUID, Map<Coordinate, RecoveredRegion>> state)
+            throws IOException {
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(payload));
+        Map<Coordinate, RecoveredRegion> world = null;
+        while (stream.available() > 0) {
+            byte type = stream.readByte();
+            if (type == RECORD_WORLD) {
+                UUID worldId = new UUID(stream.readLong(), stream.readLong());
+                world = state.computeIfAbsent(worldId, id -> new LinkedHashMap<>());
+                continue;
+            }
+            int x = stream.readInt();
+            int z = stream.readInt();
+            if (world == null) {
+                throw new IOException("No world declared for record " + type);
+            }
+            switch (type) {
+                case RECORD_ENQUEUE_CHUNK:
+                    enqueue(world, DrawInstruction.ofChunk(x, z));
+                    break;
+                case RECORD_ENQUEUE_REGION:
+                    enqueue(world, DrawInstruction.ofRegion(Region.of(x, z)));
+                    break;
+                case RECORD_COMPLETE_CHUNK: {
+                    Coordinate regionCoord = new Coordinate(x >> 5, z >> 5);
+                    RecoveredRegion region = world.get(regionCoord);
+                    if (region != null) {
+                        int index = ChunkBitmap.getIndex(x, z);
+                        region.chunks[index >> 6] &= ~(1L << index);
+                        if (region.isEmpty()) {
+                            world.remove(regionCoord);
+                        }
+                    }
+                    break;
+                }
+                case RECORD_COMPLETE_REGION:
+                    world.remove(new Coordinate(x, z));
+                    break;
+                case RECORD_REGION: {
+                    int flags = stream.readUnsignedByte();
+                    boolean full = (flags & REGION_FLAG_FULL) != 0;
+                    long[] chunks = null;
+                    if (!full) {
+                        chunks = new long[ChunkBitmap.LENGTH_IN_LONGS];
+                        for (int i = 0; i < chunks.length; i++) {
+                            chunks[i] = stream.readLong();
+                        }
+                    }
+                    // A world can be in a snapshot twice: while its kept queue
+                    // is moved back into its task list, both are written
+                    addRegion(world, x, z, full, chunks);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown record type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Reads the header of a file.
+     *
+     * @param stream
+     *            The file.
+     * @param expectedMagic
+     *            The magic number the file must start with.
+     * @param maxVersion
+     *            The newest supported version of the file format.
+     * @return The generation of the file.
+     * @throws IOException
+     *             If the header is invalid, or if reading fails.
+     */
+    private static long checkHeader(DataInputStream stream, int expectedMagic, int maxVersion) throws IOException {
+        if (stream.readInt() != expectedMagic) {
+            throw new IOException("Not a render queue file");
+        }
+        int version = stream.readInt();
+        if (version < 1 || version > maxVersion) {
+            throw new IOException("Unknown render queue file version: " + version);
+        }
+        return stream.readLong();
+    }
+
+    private static ByteBuffer createFrame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer createHeader(int magic, int version, long generation) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(magic);
+        header.putInt(version);
+        header.putLong(generation);
+        header.flip();
+        return header;
+    }
+
+    private static void enqueue(Map<Coordinate, RecoveredRegion> world, DrawInstruction drawInstruction) {
+        RecoveredRegion region = world.computeIfAbsent(
+                new Coordinate(drawInstruction.getRegionX(), drawInstruction.getRegionZ()),
+                coord -> new RecoveredRegion());
+        if (drawInstruction.isRegion) {
+            region.full = true;
+            Arrays.fill(region.chunks, 0);
+        } else if (!region.full) {
+            int index = ChunkBitmap.getIndex(drawInstruction.x, drawInstruction.z);
+            region.chunks[index >> 6] |= 1L << index;
+        }
+    }
+
+    /**
+     * Reads a single frame.
+     *
+     * @param stream
+     *            The stream to read from.
+     * @return The contents of the frame, or null if the end of the stream was
+     *         reached or if the frame is damaged.
+     * @throws IOException
+     *             If reading fails.
+     */
+    private static byte[] readFrame(DataInputStream stream) throws IOException {
+        try {
+            int length = stream.readInt();
+            int checksum = stream.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            stream.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return payload;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void visitAll(Map<Coordinate, RecoveredRegion> world, QueuedRegionVisitor visitor) {
+        for (Entry<Coordinate, RecoveredRegion> regionEntry : world.entrySet()) {
+            Coordinate regionCoord = regionEntry.getKey();
+            RecoveredRegion region = regionEntry.getValue();
+            visitor.visit(regionCoord.x, regionCoord.z, region.full, region.chunks);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeRecord(ByteArrayDataOutput output, byte type, int x, int z) {
+        output.writeByte(type);
+        output.writeInt(x);
+        output.writeInt(z);
+    }
+
+    private static void writeWorldRecord(ByteArrayDataOutput output, UUID worldId) {
+        output.writeByte(RECORD_WORLD);
+        output.writeLong(worldId.getMostSignificantBits());
+        output.writeLong(worldId.getLeastSignificantBits());
+    }
+
+    private final Path folder;
+    private final Logger logger;
+
+    /**
+     * Lock for the files. Held while writing to disk.
+     */
+    private final Object fileLock = new Object();
+    /**
+     * Lock for the pending records. Only held for a short time, as the main
+     * thread needs to acquire it for every change to the queue.
+     */
+    private final Object bufferLock = new Object();
+
+    /**
+     * The current journal, or null if no journal was started yet. Guarded by
+     * {@link #fileLock}.
+     */
+    private FileChannel journalChannel;
+    /**
+     * Guarded by {@link #fileLock}.
+     */
+    private long generation = 0;
+
+    /**
+     * Chunks and regions added by {@link #addRecovered(UUID, DrawInstruction)},
+     * for the next {@link #recover(Function)}. Only used on startup.
+     */
+    private final Map<UUID, Map<Coordinate, RecoveredRegion>> recovered = new LinkedHashMap<>();
+
+    /**
+     * The queues of worlds that are not loaded, by world id. Written to every
+     * snapshot, until {@link #recoverWorld(UUID, QueuedRegionVisitor)} is
+     * called for the world. Guarded by {@link #fileLock}.
+     */
+    private final Map<UUID, Map<Coordinate, RecoveredRegion>> unloadedWorlds = new LinkedHashMap<>();
+
+    /**
+     * Guarded by {@link #bufferLock}.
+     */
+    private ByteArrayDataOutput pendingRecords = ByteStreams.newDataOutput();
+    /**
+     * The world of the last record in {@link #pendingRecords}, or null if no
+     * world was written yet. Guarded by {@link #bufferLock}.
+     */
+    private UUID pendingWorld;
+    /**
+     * Guarded by {@link #bufferLock}.
+     */
+    private int pendingRecordCount = 0;
+
+    /**
+     * Creates a new journal. Call {@link #recover(Function)} and then
+     * {@link #compact(ServerTaskList)} to start using it.
+     *
+     * @param folder
+     *            The folder to store the files in.
+     * @param logger
+     *            Logger for reporting damaged files.
+     */
+    public RenderQueueJournal(Path folder, Logger logger) {
+        this.folder = Objects.requireNonNull(folder, "folder");
+        this.logger = Objects.requireNonNull(logger, "logger");
+    }
+
+    private void addRecord(UUID worldId, byte type, int x, int z) {
+        synchronized (bufferLock) {
+            if (!worldId.equals(pendingWorld)) {
+                writeWorldRecord(pendingRecords, worldId);
+                pendingWorld = worldId;
+            }
+            writeRecord(pendingRecords, type, x, z);
+            pendingRecordCount++;
+        }
+    }
+
+    /**
+     * Adds a chunk or region to the queue that the next
+     * {@link #recover(Function)} passes on. Used for the queue file of older
+     * versions.
+     *
+     * @param worldId
+     *            The world.
+     * @param drawInstruction
+     *            The chunk or region.
+     */
+    public void addRecovered(UUID worldId, DrawInstruction drawInstruction) {
+        enqueue(recovered.computeIfAbsent(worldId, id -> new LinkedHashMap<>()), drawInstruction);
+    }
+
+    /**
+     * Commits all pending records and closes the journal. Records that are
+     * added afterwards are not saved.
+     *
+     * @throws IOException
+     *             If writing fails.
+     */
+    public void close() throws IOException {
+        synchronized (fileLock) {
+            commit();
+            if (journalChannel != null) {
+                journalChannel.close();
+                journalChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Writes all pending records to the journal, and waits until they are
+     * stored on the disk. Does nothing if no journal was started yet.
+     *
+     * @throws IOException
+     *             If writing fails.
+     */
+    public void commit() throws IOException {
+        synchronized (fileLock) {
+            if (journalChannel == null) {
+                return;
+            }
+            byte[] payload;
+            synchronized (bufferLock) {
+                if (pendingRecordCount == 0) {
+                    return;
+                }
+                payload = pendingRecords.toByteArray();
+                pendingRecords = ByteStreams.newDataOutput();
+                pendingWorld = null;
+                pendingRecordCount = 0;
+            }
+            writeFully(journalChannel, createFrame(payload));
+            journalChannel.force(false);
+        }
+    }
+
+    /**
+     * Writes the given queue to a new snapshot, and starts a new journal.
+     * Older journals are deleted.
+     *
+     * @param queue
+     *            The queue, by world id. Each value passes the regions in the
+     *            queue of that world to the given visitor.
+     * @throws IOException
+     *             If writing fails.
+     */
+    void compact(Map<UUID, ? extends Consumer<QueuedRegionVisitor>> queue) throws IOException {
+        compact(() -> queue);
+    }
+
+    /**
+     * Writes the queue to a new snapshot, and starts a new journal. Older
+     * journals are deleted.
+     *
+     * @param queue
+     *            Gets the queue, by world id. Called after the new journal is
+     *            started.
+     * @throws IOException
+     *             If writing fails.
+     */
+    private void compact(Supplier<Map<UUID, ? extends Consumer<QueuedRegionVisitor>>> queue) throws IOException {
+        synchronized (fileLock) {
+            Files.createDirectories(folder);
+
+            // Start the new journal before looking at the queue, so that
+            // changes made while the snapshot is being written are in the new
+            // journal
+            commit();
+            long newGeneration = generation + 1;
+            FileChannel newJournal = openJournal(newGeneration);
+            if (journalChannel != null) {
+                journalChannel.close();
+            }
+            journalChannel = newJournal;
+            generation = newGeneration;
+
+            writeSnapshot(queue.get(), newGeneration);
+            for (Entry<Long, Path> journal : findJournals().headMap(newGeneration, false).entrySet()) {
+                Files.deleteIfExists(journal.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes the current queue to a new snapshot, and starts a new journal.
+     * Older journals are deleted.
+     *
+     * @param serverTaskList
+     *            The queue.
+     * @throws IOException
+     *             If writing fails.
+     */
+    public void compact(ServerTaskList serverTaskList) throws IOException {
+        compact(() -> Maps.transformValues(serverTaskList.getActiveTaskLists(),
+                taskList -> (Consumer<QueuedRegionVisitor>) taskList::forEachQueuedRegion));
+    }
+
+    private NavigableMap<Long, Path> findJournals() throws IOException {
+        NavigableMap<Long, Path> journals = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder,
+                JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String generation = fileName.substring(JOURNAL_PREFIX.length(),
+                        fileName.length() - JOURNAL_SUFFIX.length());
+                try {
+                    journals.put(Long.parseLong(generation), file);
+                } catch (NumberFormatException e) {
+                    // Not one of our files
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // No folder, so no journals
+        }
+        return journals;
+    }
+
+    private Path getJournalFile(long generation) {
+        return folder.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Gets the size of the current journal file. Used to decide when it's
+     * time for a {@link #compact(ServerTaskList)}.
+     *
+     * @return The size in bytes, or 0 if no journal was started yet.
+     * @throws IOException
+     *             If reading the size fails.
+     */
+    public long getJournalSize() throws IOException {
+        synchronized (fileLock) {
+            if (journalChannel == null) {
+                return 0;
+            }
+            return journalChannel.size();
+        }
+    }
+
+    /**
+     * Keeps the queue of a world that was unloaded. It's written to every
+     * snapshot, until the world is loaded again and
+     * {@link #recoverWorld(UUID, QueuedRegionVisitor)} is called.
+     *
+     * @param worldId
+     *            The world.
+     * @param queue
+     *            Passes the regions in the queue of the world to the given
+     *            visitor.
+     */
+    public void keepUnloadedWorld(UUID worldId, Consumer<QueuedRegionVisitor> queue) {
+        synchronized (fileLock) {
+            Map<Coordinate, RecoveredRegion> world = unloadedWorlds.computeIfAbsent(worldId,
+                    id -> new LinkedHashMap<>());
+            queue.accept((regionX, regionZ, full, chunks) -> addRegion(world, regionX, regionZ, full, chunks));
+            if (world.isEmpty()) {
+                unloadedWorlds.remove(worldId);
+            }
+        }
+    }
+
+    /**
+     * Adds a record that the given chunk or region was drawn, so that it is
+     * no longer in the queue.
+     *
+     * @param worldId
+     *            The world.
+     * @param drawInstruction
+     *            The chunk or region.
+     */
+    public void logCompleted(UUID worldId, DrawInstruction drawInstruction) {
+        addRecord(worldId, drawInstruction.isRegion ? RECORD_COMPLETE_REGION : RECORD_COMPLETE_CHUNK,
+                drawInstruction.x, drawInstruction.z);
+    }
+
+    /**
+     * Adds a record that the given chunk or region was added to the queue.
+     *
+     * @param worldId
+     *            The world.
+     * @param drawInstruction
+     *            The chunk or region.
+     */
+    public void logEnqueued(UUID worldId, DrawInstruction drawInstruction) {
+        addRecord(worldId, drawInstruction.isRegion ? RECORD_ENQUEUE_REGION : RECORD_ENQUEUE_CHUNK,
+                drawInstruction.x, drawInstruction.z);
+    }
+
+    private FileChannel openJournal(long generation) throws IOException {
+        FileChannel channel = FileChannel.open(getJournalFile(generation), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            writeFully(channel, createHeader(JOURNAL_MAGIC, JOURNAL_VERSION, generation));
+            channel.force(true);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads all frames in the given file, until the end of the file or until
+     * a damaged frame.
+     *
+     * @param stream
+     *            The file, positioned after the header.
+     * @param state
+     *            The frames are applied to this state.
+     * @return True if the end of the file was reached, false if a damaged
+     *         frame was found.
+     * @throws IOException
+     *             If reading fails, or if a frame contains invalid records.
+     */
+    private boolean readFrames(DataInputStream stream, Map<UUID, Map<Coordinate, RecoveredRegion>> state)
+            throws IOException {
+        while (true) {
+            byte[] payload = readFrame(stream);
+            if (payload == null) {
+                return stream.read() == -1;
+            }
+            applyRecords(payload, state);
+        }
+    }
+
+    private void readJournal(Path file, long generation, Map<UUID, Map<Coordinate, RecoveredRegion>> state) {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (checkHeader(stream, JOURNAL_MAGIC, JOURNAL_VERSION) != generation) {
+                throw new IOException("Generation in file name and in file don't match");
+            }
+            if (!readFrames(stream, state)) {
+                // Expected after a crash, the last changes simply weren't
+                // committed yet
+                logger.info("Ignored the last, incomplete changes in " + file.getFileName());
+            }
+        } catch (EOFException e) {
+            // Crashed while the header was being written, so file is empty
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to read " + file.getFileName() + ", part of the render queue is lost", e);
+        }
+    }
+
+    /**
+     * Reads the snapshot.
+     *
+     * @param state
+     *            The snapshot is added to this state.
+     * @return The generation of the snapshot, or 0 if there is none.
+     */
+    private long readSnapshot(Map<UUID, Map<Coordinate, RecoveredRegion>> state) {
+        Path file = folder.resolve(SNAPSHOT_FILE_NAME);
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long generation = checkHeader(stream, SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+            if (!readFrames(stream, state)) {
+                logger.severe("The render queue snapshot is damaged, part of the render queue is lost");
+            }
+            return generation;
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to read the render queue snapshot", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the snapshot and the journals, and passes everything that was
+     * still in the queue to the visitors. Damaged parts are skipped.
+     *
+     * @param queue
+     *            Gets the visitor for the regions of the given world id. May
+     *            return null for a world that isn't loaded. The queue of that
+     *            world is then kept, see
+     *            {@link #keepUnloadedWorld(UUID, Consumer)}.
+     */
+    public void recover(Function<UUID, QueuedRegionVisitor> queue) {
+        Map<UUID, Map<Coordinate, RecoveredRegion>> state = new LinkedHashMap<>(recovered);
+        recovered.clear();
+        long snapshotGeneration = readSnapshot(state);
+        long lastGeneration = snapshotGeneration;
+        try {
+            for (Entry<Long, Path> journal : findJournals().tailMap(snapshotGeneration, true).entrySet()) {
+                readJournal(journal.getValue(), journal.getKey(), state);
+                lastGeneration = journal.getKey();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to look for render queue journals", e);
+        }
+        synchronized (fileLock) {
+            generation = Math.max(generation, lastGeneration);
+        }
+
+        for (Entry<UUID, Map<Coordinate, RecoveredRegion>> world : state.entrySet()) {
+            if (world.getValue().isEmpty()) {
+                continue;
+            }
+            QueuedRegionVisitor visitor = queue.apply(world.getKey());
+            if (visitor == null) {
+                keepUnloadedWorld(world.getKey(), unloadedVisitor -> visitAll(world.getValue(), unloadedVisitor));
+                continue;
+            }
+            visitAll(world.getValue(), visitor);
+        }
+    }
+
+    /**
+     * Moves the queue that was kept for the given world while it wasn't
+     * loaded back into the queue.
+     *
+     * @param worldId
+     *            The world.
+     * @param queue
+     *            Receives the regions that were kept.
+     * @return True if anything was kept for the world, false otherwise.
+     */
+    public boolean recoverWorld(UUID worldId, QueuedRegionVisitor queue) {
+        synchronized (fileLock) {
+            // While the lock is held, no snapshot can be written that has
+            // neither the kept queue nor the restored task list
+            Map<Coordinate, RecoveredRegion> world = unloadedWorlds.remove(worldId);
+            if (world == null) {
+                return false;
+            }
+            visitAll(world, queue);
+            return true;
+        }
+    }
+
+    private void writeSnapshot(Map<UUID, ? extends Consumer<QueuedRegionVisitor>> queue, long generation)
+            throws IOException {
+        Path snapshotFile = folder.resolve(SNAPSHOT_FILE_NAME);
+        Path tempFile = folder.resolve(SNAPSHOT_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, createHeader(SNAPSHOT_MAGIC, SNAPSHOT_VERSION, generation));
+            for (Entry<UUID, ? extends Consumer<QueuedRegionVisitor>> world : queue.entrySet()) {
+                SnapshotWriter writer = new SnapshotWriter(channel, world.getKey());
+                try {
+                    world.getValue().accept(writer);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                writer.flush();
+            }
+            for (Entry<UUID, Map<Coordinate, RecoveredRegion>> world : unloadedWorlds.entrySet()) {
+                SnapshotWriter writer = new SnapshotWriter(channel, world.getKey());
+                try {
+                    visitAll(world.getValue(), writer);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                writer.flush();
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
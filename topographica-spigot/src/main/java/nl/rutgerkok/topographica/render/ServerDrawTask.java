@@ -1,23 +1,40 @@
 package nl.rutgerkok.topographica.render;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.google.common.cache.CacheStats;
 
 import org.bukkit.ChunkSnapshot;
 import org.bukkit.Server;
 import org.bukkit.World;
 
 import nl.rutgerkok.topographica.config.Config;
+import nl.rutgerkok.topographica.config.TimingsConfig;
 import nl.rutgerkok.topographica.config.WorldConfig;
+import nl.rutgerkok.topographica.image.PyramidBuilder;
+import nl.rutgerkok.topographica.image.TileStore;
 import nl.rutgerkok.topographica.render.WorldTaskList.DrawContext;
+import nl.rutgerkok.topographica.render.WorldTaskList.DrawInstruction;
 import nl.rutgerkok.topographica.util.ChunkSnapshotGetter;
 import nl.rutgerkok.topographica.util.ChunkSnapshotGetter.ChunkResult;
 import nl.rutgerkok.topographica.util.Coordinate;
@@ -32,24 +49,65 @@ public class ServerDrawTask implements Runnable {
 
         private volatile boolean mustStop = false;
         private final ChunkGetter chunkGetter;
-        private final Path mapFolder;
+        private final Path pixelsFolder;
         private final ChunkRenderer renderer;
+        private final Consumer<DrawInstruction> drawnListener;
+        private final Consumer<DrawInstruction> queuedAgainListener;
+        private final CanvasCache canvasCache;
+        private final TileCache tileCache;
+        private final TileStore tileStore;
+
+        /**
+         * The turn of this world ends after this time or after this amount of
+         * chunks. Zero means no limit.
+         */
+        private final long sliceStartNanos;
+        private final long maxSliceNanos;
+        private final int maxSliceChunks;
+        private int chunksDrawn = 0;
 
-        RenderingDrawContext(ChunkGetter chunkGetter, Path mapFolder, ChunkRenderer renderer) {
+        RenderingDrawContext(ChunkGetter chunkGetter, TileStore tileStore, Path pixelsFolder, ChunkRenderer renderer,
+                Consumer<DrawInstruction> drawnListener, Consumer<DrawInstruction> queuedAgainListener,
+                CanvasCache canvasCache, TileCache tileCache, long maxSliceNanos, int maxSliceChunks) {
             this.chunkGetter = Objects.requireNonNull(chunkGetter, "chunkGetter");
-            this.mapFolder = Objects.requireNonNull(mapFolder, "mapFolder");
+            this.tileStore = Objects.requireNonNull(tileStore, "tileStore");
+            this.pixelsFolder = Objects.requireNonNull(pixelsFolder, "pixelsFolder");
             this.renderer = Objects.requireNonNull(renderer, "renderer");
+            this.drawnListener = Objects.requireNonNull(drawnListener, "drawnListener");
+            this.queuedAgainListener = Objects.requireNonNull(queuedAgainListener, "queuedAgainListener");
+            this.canvasCache = Objects.requireNonNull(canvasCache, "canvasCache");
+            this.tileCache = Objects.requireNonNull(tileCache, "tileCache");
+            this.sliceStartNanos = System.nanoTime();
+            this.maxSliceNanos = maxSliceNanos;
+            this.maxSliceChunks = maxSliceChunks;
         }
 
         @Override
         public void drawChunk(Canvas canvas, int chunkX, int chunkZ) {
+            chunksDrawn++;
             chunkGetter.getChunk(chunkX, chunkZ).ifPresent(chunk -> renderer.render(chunk, canvas));
         }
 
+        private Path getPixelFile(Coordinate regionCoord) {
+            return pixelsFolder.resolve("r." + regionCoord.x + "." + regionCoord.z + ".bin");
+        }
+
         @Override
-        public Path getSaveFile(Coordinate scaledCoords, int zoomLevel) {
-            return mapFolder.resolve("zoom-" + zoomLevel)
-                    .resolve("r." + scaledCoords.x + "." + scaledCoords.z + ".png");
+        public void markDrawn(DrawInstruction drawInstruction) {
+            drawnListener.accept(drawInstruction);
+        }
+
+        @Override
+        public void markQueuedAgain(DrawInstruction drawInstruction) {
+            queuedAgainListener.accept(drawInstruction);
+        }
+
+        @Override
+        public boolean mustPause() {
+            if (maxSliceChunks > 0 && chunksDrawn >= maxSliceChunks) {
+                return true;
+            }
+            return maxSliceNanos > 0 && System.nanoTime() - sliceStartNanos >= maxSliceNanos;
         }
 
         @Override
@@ -57,6 +115,26 @@ public class ServerDrawTask implements Runnable {
             return mustStop;
         }
 
+        @Override
+        public Canvas readCanvas(Coordinate regionCoord) {
+            Path pixelFile = getPixelFile(regionCoord);
+            Optional<Canvas> canvas = canvasCache.read(pixelFile);
+            if (canvas.isPresent()) {
+                return canvas.get();
+            }
+            canvas = Canvas.createFromPixelFile(pixelFile);
+            if (canvas.isPresent()) {
+                return canvas.get();
+            }
+            // Drawn by an older version, or the pixel files were removed
+            return Canvas.createFromTileStore(tileStore, regionCoord);
+        }
+
+        @Override
+        public Optional<BufferedImage> readTile(Coordinate scaledCoords, int zoomLevel) {
+            return tileCache.read(tileStore, zoomLevel, scaledCoords);
+        }
+
         /**
          * Requests a stop of this renderer.
          */
@@ -64,6 +142,17 @@ public class ServerDrawTask implements Runnable {
             this.mustStop = true;
         }
 
+        @Override
+        public void writeCanvas(Coordinate regionCoord, Canvas canvas) {
+            canvasCache.write(getPixelFile(regionCoord), canvas);
+            writeTile(regionCoord, 1, canvas.getImage());
+        }
+
+        @Override
+        public void writeTile(Coordinate scaledCoords, int zoomLevel, BufferedImage image) {
+            tileCache.write(tileStore, zoomLevel, scaledCoords, image);
+        }
+
     }
 
     private class SimpleChunkGetter implements ChunkGetter {
@@ -102,19 +191,228 @@ public class ServerDrawTask implements Runnable {
     private final Config config;
     private final Server server;
     private final ChunkSnapshotGetter serverThreadGetter;
+    private final CanvasCache canvasCache;
+    private final TileCache tileCache;
+    private final TileRecompressor recompressor;
+
+    /**
+     * Stores of the map images, by world folder. Only used by the draw thread.
+     * The same instance must be used for every draw round, otherwise images
+     * can't be found in the {@link #tileCache}.
+     */
+    private final Map<Path, TileStore> tileStores = new HashMap<>();
+
+    /**
+     * Tasks that must run on the draw thread, in between two draw rounds.
+     */
+    private final Queue<Runnable> drawThreadTasks = new ConcurrentLinkedQueue<>();
 
     /**
      * May be null.
      */
     private volatile RenderingDrawContext currentContext;
     private volatile boolean mustStop = false;
+    private int roundNumber = 0;
 
     public ServerDrawTask(ServerTaskList serverTaskList, Server server,
-            ChunkSnapshotGetter serverThreadGetter, Config config) {
+            ChunkSnapshotGetter serverThreadGetter, Config config, Logger logger) {
         this.serverTaskList = Objects.requireNonNull(serverTaskList, "serverTaskList");
         this.server = Objects.requireNonNull(server, "server");
         this.serverThreadGetter = Objects.requireNonNull(serverThreadGetter, "serverThreadGetter");
         this.config = Objects.requireNonNull(config, "config");
+        this.canvasCache = new CanvasCache(config.getTileConfig().getCanvasCacheBytes(), logger);
+        this.tileCache = new TileCache(config.getTileConfig().getRecompressMinAgeNanos(), logger);
+        this.recompressor = new TileRecompressor(config.getTileConfig().getRecompressionFile(),
+                config.getWebConfig().getImagesFolder(), this::getTileStore, tileCache,
+                config.getTileConfig().getRecompressMinAgeNanos(), config.getTileConfig().getRecompressCpuPercent(),
+                logger);
+    }
+
+    /**
+     * Gives every world a turn to draw the things that are ready for drawing.
+     * Each world can draw until its time or chunk budget for this turn is used
+     * up, so that a large render of one world doesn't hold up the other
+     * worlds.
+     *
+     * @return True if at least one world used up its budget, and therefore
+     *         probably has more work that is ready for drawing.
+     */
+    private boolean drawRound() {
+        List<Entry<UUID, WorldTaskList>> entries = new ArrayList<>(
+                serverTaskList.getActiveTaskLists().entrySet());
+        if (entries.isEmpty()) {
+            return false;
+        }
+
+        // Start with a different world each round, so that no world always
+        // needs to wait for all others
+        Collections.rotate(entries, -(roundNumber++ % entries.size()));
+
+        TimingsConfig timings = config.getTimingsConfig();
+        boolean anyPaused = false;
+        for (Entry<UUID, WorldTaskList> entry : entries) {
+            UUID worldId = entry.getKey();
+            WorldTaskList worldTaskList = entry.getValue();
+            World world = server.getWorld(worldId);
+            if (world == null) {
+                // World is unloaded
+                serverTaskList.removeTaskList(worldId);
+                continue;
+            }
+
+            WorldConfig worldConfig = config.getWorldConfig(world);
+            ChunkGetter chunkGetter = new SimpleChunkGetter(world);
+            ChunkRenderer chunkRenderer = new ChunkRenderer(worldConfig);
+            Path folder = config.getWebConfig().getImagesFolder().resolve(world.getName());
+            TileStore tileStore = getTileStore(folder);
+            Path pixelsFolder = config.getTileConfig().getPixelsFolder().resolve(world.getName());
+            int weight = worldConfig.getRenderWeight();
+            RenderingDrawContext context = new RenderingDrawContext(chunkGetter, tileStore, pixelsFolder, chunkRenderer,
+                    drawInstruction -> serverTaskList.markDrawn(worldId, drawInstruction),
+                    drawInstruction -> serverTaskList.markQueuedAgain(worldId, drawInstruction), canvasCache, tileCache,
+                    (long) (timings.getMaxSecondsPerWorldSlice() * 1_000_000_000) * weight,
+                    timings.getMaxChunksPerWorldSlice() * weight);
+
+            currentContext = context;
+            if (mustStop) {
+                // If requestStop() was called just before
+                // this.currentContext was set, then
+                // this.currentContext would never be notified of the stop
+                // request
+                return false;
+            }
+            long startNanos = System.nanoTime();
+            try {
+                worldTaskList.drawAll(context);
+            } catch (IOException e) {
+                throw new RuntimeException("Map renderer crashed", e);
+            } finally {
+                worldTaskList.addRenderNanos(System.nanoTime() - startNanos);
+            }
+            if (context.mustPause()) {
+                anyPaused = true;
+            }
+        }
+        return anyPaused;
+    }
+
+    /**
+     * Gets the maximum amount of memory used by the canvases of recently drawn
+     * regions.
+     *
+     * @return The amount of bytes.
+     */
+    public long getCanvasCacheMaxBytes() {
+        return canvasCache.getMaxBytes();
+    }
+
+    /**
+     * Gets the hit and miss statistics of the canvases of recently drawn
+     * regions that are kept in memory.
+     *
+     * @return The statistics.
+     */
+    public CacheStats getCanvasCacheStats() {
+        return canvasCache.getStats();
+    }
+
+    /**
+     * Gets the amount of memory currently used by the canvases of recently
+     * drawn regions.
+     *
+     * @return The amount of bytes.
+     */
+    public long getCanvasCacheUsedBytes() {
+        return canvasCache.getUsedBytes();
+    }
+
+    /**
+     * Gets the amount of map images and pixel files that are waiting to be
+     * written to disk.
+     *
+     * @return The amount of files.
+     */
+    public int getPendingWrites() {
+        return canvasCache.getPendingWrites() + tileCache.getPendingWrites();
+    }
+
+    /**
+     * Gets how many bytes were saved by recompressing the map images, in
+     * total.
+     *
+     * @return The amount of bytes.
+     */
+    public long getRecompressionBytesSaved() {
+        return recompressor.getBytesSaved();
+    }
+
+    /**
+     * Gets how many map images were made smaller by recompressing them, in
+     * total.
+     *
+     * @return The amount of images.
+     */
+    public long getRecompressionImages() {
+        return recompressor.getImagesRecompressed();
+    }
+
+    /**
+     * Gets the world whose map images are being recompressed.
+     *
+     * @return The name of the world, or empty if nothing is being
+     *         recompressed.
+     */
+    public Optional<String> getRecompressionWorld() {
+        return recompressor.getWorld();
+    }
+
+    /**
+     * Gets the zoom level whose map images are being recompressed.
+     *
+     * @return The zoom level.
+     */
+    public int getRecompressionZoomLevel() {
+        return recompressor.getZoomLevel();
+    }
+
+    private TileStore getTileStore(Path worldFolder) {
+        return tileStores.computeIfAbsent(worldFolder, config.getTileConfig()::openTileStore);
+    }
+
+    /**
+     * Rebuilds the zoomed out images of a world from the images of zoom level
+     * 1. This runs on the draw thread, so no regions are drawn in the
+     * meantime. Images that are still waiting to be written are written
+     * first, so that no outdated zoomed out image is written afterwards.
+     *
+     * @param world
+     *            The world.
+     * @param zoomLevels
+     *            The amount of zoom levels of the world.
+     * @return Completed with the result once the rebuild is done.
+     */
+    public CompletableFuture<PyramidBuilder.Result> rebuildZoomLevels(World world, int zoomLevels) {
+        Path worldFolder = config.getWebConfig().getImagesFolder().resolve(world.getName());
+        CompletableFuture<PyramidBuilder.Result> future = new CompletableFuture<>();
+        drawThreadTasks.add(() -> {
+            // Leave one core for the server thread
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+            try {
+                tileCache.flush();
+                future.complete(new PyramidBuilder(getTileStore(worldFolder), zoomLevels).build(pool));
+            } catch (InterruptedException e) {
+                future.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                // The images in memory are outdated now
+                tileCache.invalidateAll();
+                pool.shutdown();
+            }
+        });
+        serverTaskList.wakeUpWaitingThreads();
+        return future;
     }
 
     public void requestStop() {
@@ -123,55 +421,66 @@ public class ServerDrawTask implements Runnable {
         if (context != null) {
             context.requestStop();
         }
+        serverTaskList.wakeUpWaitingThreads();
     }
 
     @Override
     public void run() {
-        while (!mustStop) {
-            for (Iterator<Entry<UUID, WorldTaskList>> it = serverTaskList.getActiveTaskLists().entrySet().iterator(); it
-                    .hasNext();) {
-                Entry<UUID, WorldTaskList> entry = it.next();
-                UUID worldId = entry.getKey();
-                WorldTaskList worldTaskList = entry.getValue();
-                World world = server.getWorld(worldId);
-                if (world == null) {
-                    // World is unloaded
-                    it.remove();
-                    continue;
-                }
+        long minNanosBetweenPasses = (long) (config.getTimingsConfig().getMinSecondsBetweenRenderPasses()
+                * 1_000_000_000);
+        long lastPassStart = System.nanoTime() - minNanosBetweenPasses;
+        canvasCache.start();
+        tileCache.start();
+        try {
+            while (!mustStop) {
+                runDrawThreadTasks();
 
-                WorldConfig worldConfig = config.getWorldConfig(world);
-                ChunkGetter chunkGetter = new SimpleChunkGetter(world);
-                ChunkRenderer chunkRenderer = new ChunkRenderer(worldConfig);
-                Path folder = config.getWebConfig().getImagesFolder().resolve(world.getName());
-                RenderingDrawContext context = new RenderingDrawContext(chunkGetter, folder, chunkRenderer);
-
-                currentContext = context;
-                if (mustStop) {
-                    // If requestStop() was called just before
-                    // this.currentContext was set, then
-                    // this.currentContext would never be notified of the stop
-                    // request
-                    break;
-                }
-                try {
-                    worldTaskList.drawAll(context);
-                } catch (IOException e) {
-                    throw new RuntimeException("Map renderer crashed", e);
+                // Wait until something is ready for drawing, and until enough
+                // time has passed since the last render pass
+                long now = System.nanoTime();
+                long waitNanos = Math.max(serverTaskList.getNanosUntilReady(),
+                        lastPassStart + minNanosBetweenPasses - now);
+                if (waitNanos > 0) {
+                    // Use the spare time, then wait. Woken up early if new
+                    // tasks are added, which may be ready sooner
+                    long recompressNanos = recompressor.recompressIfDue();
+                    serverTaskList.awaitNewTasks(Math.min(waitNanos, recompressNanos));
+                    continue;
                 }
 
-                try {
-                    // Sleep between world renders, so that our infinite loop
-                    // doesn't take all CPU
-                    sleepSeconds(config.getTimingsConfig().getPauseSecondsAfterRenderPass());
-                } catch (InterruptedException e) {
-                    if (mustStop) {
-                        break;
-                    }
+                lastPassStart = now;
+                while (drawRound() && !mustStop) {
+                    // Some worlds had to pause, so immediately give all worlds
+                    // another turn
+                    runDrawThreadTasks();
                 }
             }
+        } catch (InterruptedException e) {
+            // Stop rendering
         }
         currentContext = null;
+        recompressor.saveProgress();
+    }
+
+    private void runDrawThreadTasks() {
+        Runnable task;
+        while ((task = drawThreadTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Writes all map images and pixel files that are still waiting to be
+     * written. Afterwards, files are written immediately by the draw thread.
+     * Must be called when the plugin is disabled, after
+     * {@link #requestStop()}.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting for the files to be written.
+     */
+    public void writePendingFiles() throws InterruptedException {
+        canvasCache.stop();
+        tileCache.stop();
     }
 
 }
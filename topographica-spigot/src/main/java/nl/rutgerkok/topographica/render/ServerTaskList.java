@@ -5,6 +5,9 @@ import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -13,9 +16,13 @@ import org.bukkit.World;
 import org.bukkit.block.Block;
 
 import nl.rutgerkok.topographica.config.Config;
+import nl.rutgerkok.topographica.config.RenderAreaConfig;
 import nl.rutgerkok.topographica.config.WorldConfig;
 import nl.rutgerkok.topographica.render.WorldTaskList.DrawInstruction;
+import nl.rutgerkok.topographica.render.WorldTaskList.QueuedRegionVisitor;
+import nl.rutgerkok.topographica.util.ChunkBitmap;
 import nl.rutgerkok.topographica.util.Region;
+import nl.rutgerkok.topographica.util.ZoomLevels;
 
 /**
  * The class that is responsible for rendering all worlds on the server.
@@ -26,6 +33,19 @@ public class ServerTaskList {
     private final ConcurrentMap<UUID, WorldTaskList> taskLists = new ConcurrentHashMap<>();
     private final Config config;
 
+    private final Lock newTasksLock = new ReentrantLock();
+    private final Condition newTasksCondition = newTasksLock.newCondition();
+    /**
+     * Set to true when tasks are added, set to false again by
+     * {@link #awaitNewTasks(long)}. Guarded by {@link #newTasksLock}.
+     */
+    private boolean hasNewTasks = false;
+
+    /**
+     * Journal that keeps the queue on disk, may be null.
+     */
+    private volatile RenderQueueJournal journal;
+
     public ServerTaskList(Config config) {
         this.config = Objects.requireNonNull(config, "config");
     }
@@ -41,6 +61,11 @@ public class ServerTaskList {
     public void askToRender(World world, DrawInstruction drawInstruction) {
         WorldTaskList renderer = getTaskList(world);
         renderer.requestRedraw(drawInstruction);
+        RenderQueueJournal journal = this.journal;
+        if (journal != null) {
+            journal.logEnqueued(world.getUID(), drawInstruction);
+        }
+        wakeUpWaitingThreads();
     }
 
     /**
@@ -63,6 +88,35 @@ public class ServerTaskList {
         this.askToRender(chunk.getWorld(), DrawInstruction.ofChunk(chunk.getX(), chunk.getZ()));
     }
 
+    /**
+     * Puts the given chunks of a region in the queue for rendering. Used for
+     * chunks that were already in the queue before a restart, so they are
+     * drawn without waiting until the region is no longer being edited.
+     *
+     * @param world
+     *            The world.
+     * @param region
+     *            The region.
+     * @param chunks
+     *            The chunks, in the layout of {@link ChunkBitmap}.
+     */
+    public void askToRenderChunks(World world, Region region, long[] chunks) {
+        WorldTaskList renderer = getTaskList(world);
+        renderer.requestRedraw(region, chunks);
+        RenderQueueJournal journal = this.journal;
+        if (journal != null) {
+            int regionStartChunkX = region.getRegionX() << 5;
+            int regionStartChunkZ = region.getRegionZ() << 5;
+            for (int index = ChunkBitmap.nextSetBit(chunks, 0); index != -1; index = ChunkBitmap
+                    .nextSetBit(chunks, index + 1)) {
+                journal.logEnqueued(world.getUID(), DrawInstruction.ofChunk(
+                        regionStartChunkX + ChunkBitmap.getLocalX(index),
+                        regionStartChunkZ + ChunkBitmap.getLocalZ(index)));
+            }
+        }
+        wakeUpWaitingThreads();
+    }
+
     /**
      * Puts a single region in the queue for rendering.
      *
@@ -75,6 +129,33 @@ public class ServerTaskList {
         askToRender(world, DrawInstruction.ofRegion(region));
     }
 
+    /**
+     * Waits until new tasks are added, {@link #wakeUpWaitingThreads()} is
+     * called or the given time has elapsed, whichever comes first.
+     *
+     * @param maxNanos
+     *            Maximum waiting time in nanoseconds.
+     * @return True if woken up early, false if the waiting time elapsed.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public boolean awaitNewTasks(long maxNanos) throws InterruptedException {
+        newTasksLock.lock();
+        try {
+            long remainingNanos = maxNanos;
+            while (!hasNewTasks) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = newTasksCondition.awaitNanos(remainingNanos);
+            }
+            hasNewTasks = false;
+            return true;
+        } finally {
+            newTasksLock.unlock();
+        }
+    }
+
     /**
      * Gets an immutable list of all registered renderers.
      *
@@ -84,13 +165,49 @@ public class ServerTaskList {
         return ImmutableMap.copyOf(taskLists);
     }
 
+    /**
+     * Calculates how long it takes until something in any of the task lists is
+     * ready for drawing.
+     *
+     * @return The time in nanoseconds, 0 if something is ready now, or
+     *         {@link Long#MAX_VALUE} if nothing is queued.
+     */
+    public long getNanosUntilReady() {
+        long now = System.nanoTime();
+        long nanos = Long.MAX_VALUE;
+        for (WorldTaskList taskList : taskLists.values()) {
+            nanos = Math.min(nanos, taskList.getNanosUntilReady(now));
+        }
+        return nanos;
+    }
+
+    /**
+     * Gets a visitor that puts the regions it receives back in the queue of
+     * the given world. Used to restore the queue after a restart.
+     *
+     * @param world
+     *            The world.
+     * @return The visitor.
+     */
+    public QueuedRegionVisitor getQueueRestorer(World world) {
+        Objects.requireNonNull(world, "world");
+        return (regionX, regionZ, full, chunks) -> {
+            if (full) {
+                askToRenderRegion(world, Region.of(regionX, regionZ));
+            } else {
+                askToRenderChunks(world, Region.of(regionX, regionZ), chunks);
+            }
+        };
+    }
+
     private WorldTaskList getTaskList(World world) {
         UUID uuid = world.getUID();
         WorldTaskList renderer = taskLists.get(uuid); // A
         if (renderer == null) {
             // Ok, create one
             WorldConfig worldConfig = config.getWorldConfig(world);
-            renderer = new WorldTaskList(worldConfig.getRenderArea());
+            RenderAreaConfig renderArea = worldConfig.getRenderArea();
+            renderer = new WorldTaskList(renderArea, config.getTimingsConfig(), ZoomLevels.forWorld(world, renderArea));
             WorldTaskList justAdded = taskLists.putIfAbsent(uuid, renderer); // B
             if (justAdded != null) {
                 // Interesting, another thread just created a renderer between A
@@ -101,4 +218,108 @@ public class ServerTaskList {
         return renderer;
     }
 
+    /**
+     * Gets the amount of zoom levels of the map of the given world. This
+     * amount is calculated once, when the world is first used, so that the
+     * web map and the renderer agree on it.
+     *
+     * @param world
+     *            The world.
+     * @return The amount of zoom levels.
+     */
+    public int getZoomLevels(World world) {
+        return getTaskList(world).getZoomLevels();
+    }
+
+    /**
+     * Called when a chunk or region has been drawn.
+     *
+     * @param worldId
+     *            Id of the world.
+     * @param drawInstruction
+     *            The chunk or region.
+     */
+    void markDrawn(UUID worldId, DrawInstruction drawInstruction) {
+        RenderQueueJournal journal = this.journal;
+        if (journal != null) {
+            journal.logCompleted(worldId, drawInstruction);
+        }
+    }
+
+    /**
+     * Called when a chunk or region that was just drawn is in the queue
+     * again, because it was edited while it was drawn.
+     *
+     * @param worldId
+     *            Id of the world.
+     * @param drawInstruction
+     *            The chunk or region.
+     */
+    void markQueuedAgain(UUID worldId, DrawInstruction drawInstruction) {
+        RenderQueueJournal journal = this.journal;
+        if (journal != null) {
+            journal.logEnqueued(worldId, drawInstruction);
+        }
+    }
+
+    /**
+     * Removes the task list of a world, for example because the world was
+     * unloaded. The journal keeps the queue of the world, until
+     * {@link #restoreQueue(World)} is called when the world is loaded again.
+     *
+     * @param worldId
+     *            Id of the world.
+     */
+    public void removeTaskList(UUID worldId) {
+        WorldTaskList taskList = taskLists.get(worldId);
+        if (taskList == null) {
+            return;
+        }
+        RenderQueueJournal journal = this.journal;
+        if (journal != null) {
+            // Kept before the task list is removed, so that every snapshot
+            // contains the queue
+            journal.keepUnloadedWorld(worldId, taskList::forEachQueuedRegion);
+        }
+        taskLists.remove(worldId, taskList);
+    }
+
+    /**
+     * Puts the queue that the journal kept for the given world while it was
+     * unloaded back in the queue.
+     *
+     * @param world
+     *            The world, which was just loaded.
+     */
+    public void restoreQueue(World world) {
+        RenderQueueJournal journal = this.journal;
+        if (journal != null) {
+            journal.recoverWorld(world.getUID(), getQueueRestorer(world));
+        }
+    }
+
+    /**
+     * Sets the journal that all changes to the queue are written to.
+     *
+     * @param journal
+     *            The journal, or null to stop writing changes.
+     */
+    public void setJournal(RenderQueueJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Wakes up all threads that are waiting in {@link #awaitNewTasks(long)}.
+     * Called automatically when new tasks are added.
+     */
+    public void wakeUpWaitingThreads() {
+        newTasksLock.lock();
+        try {
+            hasNewTasks = true;
+            newTasksCondition.signalAll();
+        } finally {
+            newTasksLock.unlock();
+        }
+    }
+
 }
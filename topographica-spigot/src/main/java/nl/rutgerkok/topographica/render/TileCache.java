@@ -0,0 +1,230 @@
+package nl.rutgerkok.topographica.render;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import nl.rutgerkok.topographica.image.TileStore;
+import nl.rutgerkok.topographica.util.Coordinate;
+
+/**
+ * Keeps the most recently written or read map images in memory. Drawing a
+ * zoomed out image requires the four images of the zoom level below, which
+ * were usually written just before. This cache saves decoding them from disk
+ * again.
+ *
+ * <p>
+ * Images are written in the background by a {@link WriteBehindQueue}. Images
+ * in this cache must not be modified anymore.
+ */
+final class TileCache {
+
+    /**
+     * A single image in a store.
+     */
+    private static final class Tile {
+        private final TileStore store;
+        private final int x;
+        private final int z;
+        private final int zoomLevel;
+
+        private Tile(TileStore store, int zoomLevel, Coordinate scaledCoords) {
+            this.store = Objects.requireNonNull(store, "store");
+            this.zoomLevel = zoomLevel;
+            this.x = scaledCoords.x;
+            this.z = scaledCoords.z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Tile)) {
+                return false;
+            }
+            Tile other = (Tile) obj;
+            return store == other.store && zoomLevel == other.zoomLevel && x == other.x && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(store) * 31 + zoomLevel) * 31 + x) * 31 + z;
+        }
+
+        @Override
+        public String toString() {
+            return "zoom-" + zoomLevel + "/r." + x + "." + z;
+        }
+    }
+
+    /**
+     * Maximum amount of images in the cache. An image takes 256 KiB.
+     */
+    private static final int MAX_TILES = 64;
+
+    /**
+     * Maximum amount of images waiting to be written.
+     */
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private final Cache<Tile, BufferedImage> cache = CacheBuilder.newBuilder().maximumSize(MAX_TILES).build();
+
+    /**
+     * When the images were last written, oldest first. Only contains the
+     * images written in the last {@link #recentWriteNanos}. Only used by the
+     * draw thread.
+     */
+    private final Map<Tile, Long> recentWrites = new LinkedHashMap<>();
+    private final long recentWriteNanos;
+    private final WriteBehindQueue<Tile, BufferedImage> writeQueue;
+
+    /**
+     * Creates a new cache. Images are only written in the background after
+     * {@link #start()} is called.
+     *
+     * @param recentWriteNanos
+     *            How long an image counts as recently written, see
+     *            {@link #isRecentlyWritten(TileStore, int, Coordinate)}.
+     * @param logger
+     *            Used to report failed writes.
+     */
+    TileCache(long recentWriteNanos, Logger logger) {
+        this.recentWriteNanos = recentWriteNanos;
+        this.writeQueue = new WriteBehindQueue<>("Topographica image writer",
+                (tile, image) -> tile.store.write(tile.zoomLevel, tile.x, tile.z, image), MAX_PENDING_WRITES,
+                logger);
+    }
+
+    /**
+     * Waits until all images that are waiting have been written.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    void flush() throws InterruptedException {
+        writeQueue.flush();
+    }
+
+    /**
+     * Gets the amount of images that are waiting to be written.
+     *
+     * @return The amount of images.
+     */
+    int getPendingWrites() {
+        return writeQueue.getPendingCount();
+    }
+
+    /**
+     * Checks whether an image was written recently, or is still waiting to be
+     * written. Must be called from the draw thread.
+     *
+     * @param store
+     *            The store of the world.
+     * @param zoomLevel
+     *            The zoom level.
+     * @param scaledCoords
+     *            The coordinates of the image.
+     * @return True if the image was written using this cache in the time
+     *         given to the constructor, false otherwise.
+     */
+    boolean isRecentlyWritten(TileStore store, int zoomLevel, Coordinate scaledCoords) {
+        Tile tile = new Tile(store, zoomLevel, scaledCoords);
+        if (writeQueue.getPending(tile).isPresent()) {
+            return true;
+        }
+        removeOldWrites();
+        return recentWrites.containsKey(tile);
+    }
+
+    /**
+     * Reads an image, from memory if possible, otherwise from the store.
+     *
+     * @param store
+     *            The store of the world. Images are only found in memory if
+     *            they were read or written using the same instance.
+     * @param zoomLevel
+     *            The zoom level.
+     * @param scaledCoords
+     *            The coordinates of the image.
+     * @return The image, always of {@link BufferedImage#TYPE_INT_RGB}, or empty
+     *         if the image doesn't exist or is not readable.
+     */
+    Optional<BufferedImage> read(TileStore store, int zoomLevel, Coordinate scaledCoords) {
+        Tile tile = new Tile(store, zoomLevel, scaledCoords);
+        BufferedImage image = cache.getIfPresent(tile);
+        if (image != null) {
+            return Optional.of(image);
+        }
+        Optional<BufferedImage> pending = writeQueue.getPending(tile);
+        if (pending.isPresent()) {
+            return pending;
+        }
+        Optional<BufferedImage> read = store.read(zoomLevel, tile.x, tile.z);
+        read.ifPresent(readImage -> cache.put(tile, readImage));
+        return read;
+    }
+
+    /**
+     * Removes all images from memory. Must be called after the images on disk
+     * have been changed by something else than this cache.
+     */
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private void removeOldWrites() {
+        long now = System.nanoTime();
+        Iterator<Long> iterator = recentWrites.values().iterator();
+        while (iterator.hasNext() && now - iterator.next() > recentWriteNanos) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Starts writing images in the background.
+     */
+    void start() {
+        writeQueue.start();
+    }
+
+    /**
+     * Writes all waiting images. Images that are written afterwards are
+     * written immediately.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    void stop() throws InterruptedException {
+        writeQueue.stop();
+    }
+
+    /**
+     * Writes an image to the store in the background, and keeps it in memory.
+     * Must be called from the draw thread.
+     *
+     * @param store
+     *            The store of the world.
+     * @param zoomLevel
+     *            The zoom level.
+     * @param scaledCoords
+     *            The coordinates of the image.
+     * @param image
+     *            The image, of {@link BufferedImage#TYPE_INT_RGB}. Must not be
+     *            modified afterwards.
+     */
+    void write(TileStore store, int zoomLevel, Coordinate scaledCoords, BufferedImage image) {
+        Tile tile = new Tile(store, zoomLevel, scaledCoords);
+        cache.put(tile, image);
+        writeQueue.write(tile, image);
+
+        // Moves the image to the end
+        recentWrites.remove(tile);
+        recentWrites.put(tile, System.nanoTime());
+        removeOldWrites();
+    }
+}
@@ -0,0 +1,440 @@
+package nl.rutgerkok.topographica.render;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import com.google.common.primitives.Longs;
+
+import nl.rutgerkok.topographica.image.PngEncoder;
+import nl.rutgerkok.topographica.image.PngEncoder.RowFilter;
+import nl.rutgerkok.topographica.image.TileImages;
+import nl.rutgerkok.topographica.image.TileStore;
+import nl.rutgerkok.topographica.image.TileVersions;
+import nl.rutgerkok.topographica.util.Coordinate;
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Encodes the map images again with the best possible compression, while the
+ * renderer has nothing else to do. While rendering, images are written with
+ * the configured (usually fast) compression, as they are often redrawn soon
+ * afterwards. Images that stay the same for months are better stored as small
+ * as possible, as every visitor of the map downloads them.
+ *
+ * <p>
+ * All images of all worlds are visited one by one, one image for every call
+ * to {@link #recompressIfDue()}. The position is saved to a file, so that
+ * recompressing continues where it left off after a restart. Once all images
+ * have been visited, the next pass starts after
+ * {@link #PASS_INTERVAL_MILLIS}.
+ *
+ * <p>
+ * Must only be used by the draw thread. As the draw thread is the only thread
+ * that writes images, an image can't be redrawn while it is being
+ * recompressed.
+ */
+final class TileRecompressor {
+
+    /**
+     * All images are encoded using each of these encoders, and the smallest
+     * result is kept. The row filter only matters for images with more than
+     * 256 colors.
+     */
+    private static final PngEncoder[] ENCODERS = { PngEncoder.SMALLEST,
+            new PngEncoder(Deflater.BEST_COMPRESSION, Deflater.FILTERED, RowFilter.ADAPTIVE, true) };
+
+    /**
+     * PNG files smaller than this are skipped, as there is little to gain.
+     * Images of a single color are always smaller than this.
+     */
+    private static final int MIN_PNG_BYTES = 1024;
+
+    /**
+     * Time between the end of a pass over all images and the start of the
+     * next.
+     */
+    private static final long PASS_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final long SAVE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private volatile long bytesSaved = 0;
+    private final int cpuPercent;
+    private final Path imagesFolder;
+
+    /**
+     * Sorted coordinates of the images of the current zoom level, or null if
+     * not listed yet.
+     */
+    private long[] images;
+    private volatile long imagesRecompressed = 0;
+    private long lastImage;
+    private long lastSaveNanos = System.nanoTime();
+    /**
+     * When the images of each world were last written before this server
+     * started, by world name. The tile cache only knows about the images
+     * written since then.
+     */
+    private final Map<String, Long> lastWriteBeforeStartMillis = new HashMap<>();
+    private boolean loaded = false;
+    private final Logger logger;
+    private final long minAgeMillis;
+    private int nextIndex;
+    private long nextRunNanos = System.nanoTime();
+
+    /**
+     * When the last pass finished, or 0 if a pass is in progress.
+     */
+    private long passFinishedMillis = 0;
+    private boolean started = false;
+    private final Path stateFile;
+    private boolean stateChanged = false;
+    private final TileCache tileCache;
+    private final Function<Path, TileStore> tileStores;
+    private volatile String world = "";
+    private volatile int zoomLevel = 1;
+
+    /**
+     * Creates a new recompressor.
+     *
+     * @param stateFile
+     *            File that stores the position and the statistics.
+     * @param imagesFolder
+     *            Folder containing the images folders of all worlds.
+     * @param tileStores
+     *            Gets the store of an images folder. Must return the same
+     *            store as used for drawing, otherwise
+     *            {@link TileCache#isRecentlyWritten(TileStore, int, Coordinate)}
+     *            doesn't work.
+     * @param tileCache
+     *            Used to skip images that were written recently.
+     * @param minAgeNanos
+     *            How long an image counts as recently written, the same as
+     *            used for the tile cache.
+     * @param cpuPercent
+     *            Percentage of the time of the draw thread that may be used,
+     *            from 0 (disabled) to 100.
+     * @param logger
+     *            Used to report errors.
+     */
+    TileRecompressor(Path stateFile, Path imagesFolder, Function<Path, TileStore> tileStores, TileCache tileCache,
+            long minAgeNanos, int cpuPercent, Logger logger) {
+        if (cpuPercent < 0 || cpuPercent > 100) {
+            throw new IllegalArgumentException("Invalid percentage: " + cpuPercent);
+        }
+        this.stateFile = Objects.requireNonNull(stateFile, "stateFile");
+        this.imagesFolder = Objects.requireNonNull(imagesFolder, "imagesFolder");
+        this.tileStores = Objects.requireNonNull(tileStores, "tileStores");
+        this.tileCache = Objects.requireNonNull(tileCache, "tileCache");
+        this.minAgeMillis = TimeUnit.NANOSECONDS.toMillis(minAgeNanos);
+        this.cpuPercent = cpuPercent;
+        this.logger = Objects.requireNonNull(logger, "logger");
+    }
+
+    private void finishPass() {
+        moveTo("", 1);
+        passFinishedMillis = System.currentTimeMillis();
+        saveProgress();
+    }
+
+    /**
+     * Gets how many bytes were saved by recompressing, in total.
+     *
+     * @return The amount of bytes.
+     */
+    long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * Gets how many images were made smaller by recompressing, in total.
+     *
+     * @return The amount of images.
+     */
+    long getImagesRecompressed() {
+        return imagesRecompressed;
+    }
+    /**
+     * Gets when an image of the given world was last written before this
+     * server started. The versions file of the world is appended to whenever
+     * an image is written, so its modification time is used. Looked up only
+     * once for every world, as the renderer writes to the file afterwards.
+     *
+     * @param world
+     *            Name of the world.
+     * @return The time in milliseconds, or 0 if no images were written.
+     */
+    private long getLastWriteBeforeStartMillis(String world) {
+        Long cached = lastWriteBeforeStartMillis.get(world);
+        if (cached != null) {
+            return cached;
+        }
+        long lastWrite = 0;
+        if (!world.isEmpty()) {
+            try {
+                lastWrite = Files.getLastModifiedTime(imagesFolder.resolve(world).resolve(TileVersions.FILE_NAME))
+                        .toMillis();
+            } catch (IOException e) {
+                // No images written yet
+            }
+        }
+        lastWriteBeforeStartMillis.put(world, lastWrite);
+        return lastWrite;
+    }
+
+
+    /**
+     * Gets the world that is being recompressed.
+     *
+     * @return The name of the world, or empty if there's no pass in progress.
+     */
+    Optional<String> getWorld() {
+        String world = this.world;
+        return world.isEmpty() ? Optional.empty() : Optional.of(world);
+    }
+
+    /**
+     * Gets the zoom level that is being recompressed.
+     *
+     * @return The zoom level.
+     */
+    int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    private void listImages() throws IOException {
+        Optional<String> currentWorld = listWorlds().stream().filter(name -> name.compareTo(world) >= 0)
+                .findFirst();
+        if (!currentWorld.isPresent()) {
+            finishPass();
+            return;
+        }
+        if (!currentWorld.get().equals(world)) {
+            // World was deleted, or the pass just started
+            moveTo(currentWorld.get(), 1);
+        }
+
+        long[] images = Longs.toArray(tileStores.apply(imagesFolder.resolve(world)).getImages(zoomLevel));
+        if (images.length == 0) {
+            // Past the most zoomed out level
+            moveToNextWorld();
+            return;
+        }
+        Arrays.sort(images);
+        int index = started ? Arrays.binarySearch(images, lastImage) : -1;
+        this.nextIndex = index >= 0 ? index + 1 : -(index + 1);
+        this.images = images;
+    }
+
+    private List<String> listWorlds() throws IOException {
+        List<String> worlds = new ArrayList<>();
+        if (!Files.isDirectory(imagesFolder)) {
+            return worlds;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(imagesFolder, Files::isDirectory)) {
+            for (Path folder : stream) {
+                worlds.add(folder.getFileName().toString());
+            }
+        }
+        Collections.sort(worlds);
+        return worlds;
+    }
+
+    private void loadProgress() {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            world = properties.getProperty("world", "");
+            zoomLevel = Integer.parseInt(properties.getProperty("zoom-level", "1"));
+            String lastImage = properties.getProperty("last-image");
+            if (lastImage != null) {
+                String[] coords = lastImage.split(",");
+                this.lastImage = IntPair.toLong(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]));
+                this.started = true;
+            }
+            passFinishedMillis = Long.parseLong(properties.getProperty("pass-finished", "0"));
+            bytesSaved = Long.parseLong(properties.getProperty("bytes-saved", "0"));
+            imagesRecompressed = Long.parseLong(properties.getProperty("images-recompressed", "0"));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to read " + stateFile
+                    + ", so recompressing the map images starts from the beginning", e);
+            moveTo("", 1);
+            passFinishedMillis = 0;
+        }
+    }
+
+    private void moveTo(String world, int zoomLevel) {
+        this.world = world;
+        this.zoomLevel = zoomLevel;
+        this.started = false;
+        this.images = null;
+        this.stateChanged = true;
+    }
+
+    private void moveToNextWorld() throws IOException {
+        Optional<String> nextWorld = listWorlds().stream().filter(name -> name.compareTo(world) > 0).findFirst();
+        if (nextWorld.isPresent()) {
+            moveTo(nextWorld.get(), 1);
+        } else {
+            finishPass();
+        }
+    }
+
+    private void recompress(TileStore store, int x, int z) throws IOException {
+        if (tileCache.isRecentlyWritten(store, zoomLevel, new Coordinate(x, z))) {
+            // Likely to be redrawn soon
+            return;
+        }
+        Optional<ByteBuffer> png = store.readPng(zoomLevel, x, z);
+        if (!png.isPresent() || png.get().remaining() < MIN_PNG_BYTES) {
+            return;
+        }
+        Optional<BufferedImage> image = store.read(zoomLevel, x, z);
+        if (!image.isPresent()) {
+            return;
+        }
+
+        int[] pixels = TileImages.getPixels(image.get());
+        byte[] smallest = null;
+        for (PngEncoder encoder : ENCODERS) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(png.get().remaining());
+            encoder.write(pixels, TileImages.SIZE_PIXELS, TileImages.SIZE_PIXELS, stream);
+            if (smallest == null || stream.size() < smallest.length) {
+                smallest = stream.toByteArray();
+            }
+        }
+        int saved = png.get().remaining() - smallest.length;
+        if (saved <= 0) {
+            // Already recompressed
+            return;
+        }
+        store.writePng(zoomLevel, x, z, smallest);
+        bytesSaved += saved;
+        imagesRecompressed++;
+    }
+
+    /**
+     * Recompresses the next image, unless that would exceed the time budget.
+     * Must only be called when the draw thread has nothing else to do.
+     *
+     * @return Time in nanoseconds until this method has something to do
+     *         again, or {@link Long#MAX_VALUE} if recompressing is disabled.
+     */
+    long recompressIfDue() {
+        if (cpuPercent == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (!loaded) {
+            loadProgress();
+            loaded = true;
+        }
+        long startNanos = System.nanoTime();
+        if (nextRunNanos - startNanos > 0) {
+            return nextRunNanos - startNanos;
+        }
+        if (passFinishedMillis != 0) {
+            long waitMillis = passFinishedMillis + PASS_INTERVAL_MILLIS - System.currentTimeMillis();
+            if (waitMillis > 0) {
+                return TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            }
+            passFinishedMillis = 0;
+        }
+        long waitMillis = getLastWriteBeforeStartMillis(world) + minAgeMillis - System.currentTimeMillis();
+        if (waitMillis > 0) {
+            // Images drawn just before the restart are likely to be redrawn
+            // soon, and the tile cache doesn't know which ones they are
+            return TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        }
+
+        try {
+            recompressNext();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to recompress map images of world " + world + ", zoom level "
+                    + zoomLevel + "; skipping to the next world", e);
+            images = null;
+            try {
+                moveToNextWorld();
+            } catch (IOException e1) {
+                finishPass();
+            }
+        }
+
+        long endNanos = System.nanoTime();
+        nextRunNanos = endNanos + (endNanos - startNanos) * (100 - cpuPercent) / cpuPercent;
+        if (endNanos - lastSaveNanos > SAVE_INTERVAL_NANOS) {
+            saveProgress();
+        }
+        return nextRunNanos - endNanos;
+    }
+
+    private void recompressNext() throws IOException {
+        if (images == null) {
+            listImages();
+            return;
+        }
+        if (nextIndex >= images.length) {
+            moveTo(world, zoomLevel + 1);
+            return;
+        }
+        long image = images[nextIndex++];
+        lastImage = image;
+        started = true;
+        stateChanged = true;
+        recompress(tileStores.apply(imagesFolder.resolve(world)), IntPair.getX(image), IntPair.getZ(image));
+    }
+
+    /**
+     * Saves the position and the statistics, if they have changed.
+     */
+    void saveProgress() {
+        lastSaveNanos = System.nanoTime();
+        if (!stateChanged) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("world", world);
+        properties.setProperty("zoom-level", String.valueOf(zoomLevel));
+        if (started) {
+            properties.setProperty("last-image", IntPair.getX(lastImage) + "," + IntPair.getZ(lastImage));
+        }
+        properties.setProperty("pass-finished", String.valueOf(passFinishedMillis));
+        properties.setProperty("bytes-saved", String.valueOf(bytesSaved));
+        properties.setProperty("images-recompressed", String.valueOf(imagesRecompressed));
+
+        Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(stateFile.getParent());
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                properties.store(writer, "Progress of recompressing the map images");
+            }
+            Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stateChanged = false;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + stateFile, e);
+        }
+    }
+}
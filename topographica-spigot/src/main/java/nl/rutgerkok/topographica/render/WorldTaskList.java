@@ -1,26 +1,25 @@
 package nl.rutgerkok.topographica.render;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import javax.imageio.ImageIO;
-
 import nl.rutgerkok.topographica.config.RenderAreaConfig;
-import nl.rutgerkok.topographica.util.ConcurrentHashSet;
+import nl.rutgerkok.topographica.config.TimingsConfig;
+import nl.rutgerkok.topographica.image.Downsampler;
+import nl.rutgerkok.topographica.image.TileImages;
+import nl.rutgerkok.topographica.util.ChunkBitmap;
 import nl.rutgerkok.topographica.util.Coordinate;
 import nl.rutgerkok.topographica.util.Region;
-import nl.rutgerkok.topographica.util.SizeConstants;
 
 public class WorldTaskList {
 
@@ -39,15 +38,32 @@ public class WorldTaskList {
         void drawChunk(Canvas canvas, int chunkX, int chunkZ);
 
         /**
-         * Gets the save location for the image of the given coords.
+         * Called after a chunk or region was drawn and the image was saved, so
+         * that it is no longer in the queue.
          *
-         * @param scaledCoords
-         *            The coordinates.
-         * @param zoomLevel
-         *            The zoom level.
-         * @return The save location.
+         * @param drawInstruction
+         *            The chunk or region.
+         */
+        void markDrawn(DrawInstruction drawInstruction);
+
+        /**
+         * Called after {@link #markDrawn(DrawInstruction)} for a chunk or
+         * region that was edited again while it was drawn, so that it is in
+         * the queue again.
+         *
+         * @param drawInstruction
+         *            The chunk or region.
+         */
+        void markQueuedAgain(DrawInstruction drawInstruction);
+
+        /**
+         * Returns true if this world has used up its turn, so that other
+         * worlds can be drawn first. The region that is currently being drawn
+         * is still finished, so that no work is lost.
+         *
+         * @return True if drawing must pause.
          */
-        Path getSaveFile(Coordinate scaledCoords, int zoomLevel);
+        boolean mustPause();
 
         /**
          * Returns true if the server is stopping, and the plugin therefore
@@ -56,6 +72,58 @@ public class WorldTaskList {
          * @return True if the server is stopping.
          */
         boolean mustStop();
+
+        /**
+         * Reads the canvas of a region, so that parts of it can be redrawn.
+         * Uses the raw pixels saved by {@link #writeCanvas(Coordinate, Canvas)}
+         * if possible, as decoding the image is a lot slower.
+         *
+         * @param regionCoord
+         *            The region coordinates.
+         * @return The canvas, or a new canvas if nothing was saved yet.
+         */
+        Canvas readCanvas(Coordinate regionCoord);
+
+        /**
+         * Reads the image of the given coords. Recently written images are
+         * kept in memory, so that they don't need to be read from disk again.
+         *
+         * @param scaledCoords
+         *            The coordinates.
+         * @param zoomLevel
+         *            The zoom level.
+         * @return The image, of {@link BufferedImage#TYPE_INT_RGB}, or empty if
+         *         there is no (readable) image yet.
+         */
+        Optional<BufferedImage> readTile(Coordinate scaledCoords, int zoomLevel);
+
+        /**
+         * Saves the canvas of a region, both as raw pixels and as the image of
+         * zoom level 1.
+         *
+         * @param regionCoord
+         *            The region coordinates.
+         * @param canvas
+         *            The canvas. Must not be modified afterwards.
+         * @throws IOException
+         *             If writing fails.
+         */
+        void writeCanvas(Coordinate regionCoord, Canvas canvas) throws IOException;
+
+        /**
+         * Saves the image of the given coords.
+         *
+         * @param scaledCoords
+         *            The coordinates.
+         * @param zoomLevel
+         *            The zoom level.
+         * @param image
+         *            The image, of {@link BufferedImage#TYPE_INT_RGB}. Must not
+         *            be modified afterwards.
+         * @throws IOException
+         *             If writing fails.
+         */
+        void writeTile(Coordinate scaledCoords, int zoomLevel, BufferedImage image) throws IOException;
     }
 
     /**
@@ -100,6 +168,30 @@ public class WorldTaskList {
         }
     }
 
+    /**
+     * Receives the regions in the queue.
+     *
+     * @see WorldTaskList#forEachQueuedRegion(QueuedRegionVisitor)
+     */
+    public interface QueuedRegionVisitor {
+
+        /**
+         * Called for a region that is in the queue.
+         *
+         * @param regionX
+         *            Region x.
+         * @param regionZ
+         *            Region z.
+         * @param full
+         *            True if the whole region must be redrawn.
+         * @param chunks
+         *            If not full: the chunks that must be redrawn, in the
+         *            layout of {@link ChunkBitmap}. Only valid during this
+         *            call.
+         */
+        void visit(int regionX, int regionZ, boolean full, long[] chunks);
+    }
+
     private interface RegionTaskTree {
 
         /**
@@ -111,22 +203,37 @@ public class WorldTaskList {
         int calculateRegionsInQueue();
 
         /**
-         * Draws everything that's currently queued.
+         * Draws everything that's currently queued and ready for drawing.
+         * Regions that are still being edited are left in the queue.
          *
          * @param context
          *            Drawing context.
+         * @return True if at least one image was (re)drawn, false otherwise.
          * @throws IOException
          *             If writing to a file fails.
          */
-        void drawAll(DrawContext context) throws IOException;
+        boolean drawAll(DrawContext context) throws IOException;
 
         /**
-         * Adds all pending tasks to the given list.
+         * Passes all regions in the queue to the given visitor.
          *
-         * @param list
-         *            The list.
+         * @param visitor
+         *            The visitor.
+         * @param buffer
+         *            Buffer for the chunk bitmaps.
          */
-        void getQueueSnapshot(List<DrawInstruction> list);
+        void forEachQueuedRegion(QueuedRegionVisitor visitor, long[] buffer);
+
+        /**
+         * Calculates how long it takes until something in this tree is ready
+         * for drawing.
+         *
+         * @param now
+         *            The current time, from {@link System#nanoTime()}.
+         * @return The time in nanoseconds, 0 if something is ready now, or
+         *         {@link Long#MAX_VALUE} if the tree is empty.
+         */
+        long getNanosUntilReady(long now);
 
         /**
          * Quickly checks if this task list is empty.
@@ -135,6 +242,21 @@ public class WorldTaskList {
          */
         boolean isEmpty();
 
+        /**
+         * Adds a task to redraw the given chunks. The chunks were already
+         * waiting before, for example before a restart, so they don't wait
+         * until the region is no longer being edited.
+         *
+         * @param regionX
+         *            Region x.
+         * @param regionZ
+         *            Region z.
+         * @param chunks
+         *            The chunks in the region, in the layout of
+         *            {@link ChunkBitmap}.
+         */
+        void requestChunksRedraw(int regionX, int regionZ, long[] chunks);
+
         /**
          * Adds a task to redraw the given chunk or region.
          *
@@ -152,12 +274,22 @@ public class WorldTaskList {
 
         private final Coordinate regionCoord;
         private final RenderAreaConfig renderArea;
+        private final TimingsConfig timings;
 
-        private final Set<Coordinate> chunks = ConcurrentHashSet.create();
+        private final ChunkBitmap chunks = new ChunkBitmap();
         private volatile boolean drawAll = false;
 
-        public SingleRegionTaskTree(RenderAreaConfig renderArea, int regionX, int regionZ) {
+        /**
+         * Time ({@link System#nanoTime()}) of the first edit since the last
+         * redraw, and of the last edit. Used to wait with redrawing until a
+         * region is no longer being edited.
+         */
+        private volatile long firstEditNanos;
+        private volatile long lastEditNanos;
+
+        public SingleRegionTaskTree(RenderAreaConfig renderArea, TimingsConfig timings, int regionX, int regionZ) {
             this.renderArea = Objects.requireNonNull(renderArea, "renderArea");
+            this.timings = Objects.requireNonNull(timings, "timings");
             this.regionCoord = new Coordinate(regionX, regionZ);
         }
 
@@ -169,18 +301,41 @@ public class WorldTaskList {
             return 1;
         }
 
+        private void checkRegion(int regionX, int regionZ) {
+            if (regionX != this.regionCoord.x || regionZ != this.regionCoord.z) {
+                throw new IllegalArgumentException("Wrong region: " + regionX + "," + regionZ);
+            }
+        }
+
         @Override
-        public void drawAll(DrawContext context) throws IOException {
-            Path saveFile = context.getSaveFile(regionCoord, 1);
-            Canvas canvas = Canvas.createFromFile(saveFile);
-            if (drawAll) {
+        public boolean drawAll(DrawContext context) throws IOException {
+            if (isEmpty() || !isReadyForDrawing(System.nanoTime())) {
+                return false;
+            }
+
+            Canvas canvas = context.readCanvas(regionCoord);
+
+            // Taken out of the queue before drawing, so that edits made while
+            // drawing stay in the queue
+            boolean drawingAll = drawAll;
+            long[] toDraw = new long[ChunkBitmap.LENGTH_IN_LONGS];
+            if (drawingAll) {
+                drawAll = false;
+            } else {
+                chunks.copyTo(toDraw);
+                chunks.removeAll(toDraw);
+            }
+
+            List<DrawInstruction> drawn = new ArrayList<>();
+            int regionStartChunkX = regionCoord.x << 5;
+            int regionStartChunkZ = regionCoord.z << 5;
+            if (drawingAll) {
                 // Drawing all chunks in the region
-                int regionStartChunkX = regionCoord.x << 5;
-                int regionStartChunkZ = regionCoord.z << 5;
                 for (int localChunkX = 0; localChunkX < 32; localChunkX++) {
                     for (int localChunkZ = 0; localChunkZ < 32; localChunkZ++) {
                         if (context.mustStop()) {
-                            return;
+                            putBack(drawingAll, toDraw);
+                            return false;
                         }
                         int chunkX = regionStartChunkX + localChunkX;
                         int chunkZ = regionStartChunkZ + localChunkZ;
@@ -190,44 +345,154 @@ public class WorldTaskList {
                         context.drawChunk(canvas, chunkX, chunkZ);
                     }
                 }
-                drawAll = false;
+                drawn.add(DrawInstruction.ofRegion(Region.of(regionCoord.x, regionCoord.z)));
             } else {
                 // Drawing only the specified chunks from the region
-                for (Iterator<Coordinate> it = chunks.iterator(); it.hasNext();) {
+                for (int index = ChunkBitmap.nextSetBit(toDraw, 0); index != -1; index = ChunkBitmap
+                        .nextSetBit(toDraw, index + 1)) {
                     if (context.mustStop()) {
-                        return;
+                        putBack(drawingAll, toDraw);
+                        return false;
                     }
-                    Coordinate chunk = it.next();
-                    context.drawChunk(canvas, chunk.x, chunk.z);
-                    it.remove();
+                    int chunkX = regionStartChunkX + ChunkBitmap.getLocalX(index);
+                    int chunkZ = regionStartChunkZ + ChunkBitmap.getLocalZ(index);
+                    context.drawChunk(canvas, chunkX, chunkZ);
+                    drawn.add(DrawInstruction.ofChunk(chunkX, chunkZ));
                 }
             }
 
-            if (!context.mustStop()) {
+            if (context.mustStop()) {
                 // Only write if task hasn't been aborted
-                canvas.writeToFile(saveFile);
+                putBack(drawingAll, toDraw);
+                return false;
+            }
+            context.writeCanvas(regionCoord, canvas);
+            for (DrawInstruction drawInstruction : drawn) {
+                context.markDrawn(drawInstruction);
             }
+            markQueuedAgain(context, drawn);
+            return true;
         }
 
         @Override
-        public void getQueueSnapshot(List<DrawInstruction> list) {
-            if (this.drawAll) {
-                list.add(DrawInstruction.ofRegion(Region.of(this.regionCoord.x, this.regionCoord.z)));
-            } else {
-                for (Coordinate chunk : chunks) {
-                    list.add(DrawInstruction.ofChunk(chunk.x, chunk.z));
-                }
+        public void forEachQueuedRegion(QueuedRegionVisitor visitor, long[] buffer) {
+            boolean full = this.drawAll;
+            chunks.copyTo(buffer);
+            if (full || ChunkBitmap.nextSetBit(buffer, 0) != -1) {
+                visitor.visit(regionCoord.x, regionCoord.z, full, buffer);
             }
         }
 
+        @Override
+        public long getNanosUntilReady(long now) {
+            if (isEmpty()) {
+                return Long.MAX_VALUE;
+            }
+            long untilQuiet = lastEditNanos + toNanos(timings.getMinSecondsAfterLastEdit()) - now;
+            long untilDeadline = firstEditNanos + toNanos(timings.getMaxSecondsAfterFirstEdit()) - now;
+            return Math.max(0, Math.min(untilQuiet, untilDeadline));
+        }
+
+
         @Override
         public boolean isEmpty() {
             return !drawAll && chunks.isEmpty();
         }
 
+        /**
+         * Checks whether the region has been left alone for long enough, or has
+         * been waiting for too long already.
+         *
+         * @param now
+         *            The current time, from {@link System#nanoTime()}.
+         * @return True if the region can be drawn now.
+         */
+        private boolean isReadyForDrawing(long now) {
+            return getNanosUntilReady(now) == 0;
+        }
+
+        /**
+         * Reports the drawn chunks and regions that were edited again while
+         * drawing. Their edits were recorded before they were marked as
+         * drawn, so they need to be recorded again. Edits made after this
+         * check are recorded after it anyway.
+         *
+         * @param context
+         *            The context.
+         * @param drawn
+         *            The chunks and regions that were marked as drawn.
+         */
+        private void markQueuedAgain(DrawContext context, List<DrawInstruction> drawn) {
+            if (drawAll) {
+                context.markQueuedAgain(DrawInstruction.ofRegion(Region.of(regionCoord.x, regionCoord.z)));
+                return;
+            }
+            long[] queued = new long[ChunkBitmap.LENGTH_IN_LONGS];
+            chunks.copyTo(queued);
+            for (DrawInstruction drawInstruction : drawn) {
+                if (drawInstruction.isRegion) {
+                    for (int index = ChunkBitmap.nextSetBit(queued, 0); index != -1; index = ChunkBitmap
+                            .nextSetBit(queued, index + 1)) {
+                        context.markQueuedAgain(DrawInstruction.ofChunk(
+                                (regionCoord.x << 5) + ChunkBitmap.getLocalX(index),
+                                (regionCoord.z << 5) + ChunkBitmap.getLocalZ(index)));
+                    }
+                } else {
+                    int index = ChunkBitmap.getIndex(drawInstruction.x, drawInstruction.z);
+                    if ((queued[index >> 6] & (1L << index)) != 0) {
+                        context.markQueuedAgain(drawInstruction);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Puts what was taken out of the queue for drawing back, after drawing
+         * was aborted.
+         *
+         * @param drawingAll
+         *            True if the whole region was being drawn.
+         * @param toDraw
+         *            Otherwise, the chunks that were being drawn.
+         */
+        private void putBack(boolean drawingAll, long[] toDraw) {
+            if (drawingAll) {
+                drawAll = true;
+            } else {
+                chunks.addAll(toDraw);
+            }
+        }
+
+        private void recordEdit(long now) {
+            if (isEmpty()) {
+                this.firstEditNanos = now;
+            }
+            this.lastEditNanos = now;
+        }
+
+        private void redrawAllIfManyChunks() {
+            if (chunks.size() >= timings.getDirtyChunksForRegionRedraw()) {
+                // So many chunks have changed, just redraw everything
+                this.drawAll = true;
+                this.chunks.clear();
+            }
+        }
+
         private void requestChunkRedraw(int chunkX, int chunkZ) {
+            recordEdit(System.nanoTime());
+            if (!this.drawAll) {
+                chunks.add(chunkX, chunkZ);
+                redrawAllIfManyChunks();
+            }
+        }
+
+        @Override
+        public void requestChunksRedraw(int regionX, int regionZ, long[] chunks) {
+            checkRegion(regionX, regionZ);
+            skipEditDelay(System.nanoTime());
             if (!this.drawAll) {
-                chunks.add(new Coordinate(chunkX, chunkZ));
+                this.chunks.addAll(chunks);
+                redrawAllIfManyChunks();
             }
         }
 
@@ -241,12 +506,25 @@ public class WorldTaskList {
         }
 
         private void requestRegionRedraw(int regionX, int regionZ) {
-            if (regionX != this.regionCoord.x || regionZ != this.regionCoord.z) {
-                throw new IllegalArgumentException("Wrong region: " + regionX + "," + regionZ);
-            }
+            checkRegion(regionX, regionZ);
+            // Requested region redraws (for example from a full render) don't
+            // come from edits, so they don't need to wait
+            skipEditDelay(System.nanoTime());
             this.drawAll = true;
             this.chunks.clear();
         }
+
+        /**
+         * Makes the region ready for drawing right away, for requests that
+         * don't come from edits.
+         *
+         * @param now
+         *            The current time, from {@link System#nanoTime()}.
+         */
+        private void skipEditDelay(long now) {
+            this.firstEditNanos = now - toNanos(timings.getMaxSecondsAfterFirstEdit());
+            this.lastEditNanos = now - toNanos(timings.getMinSecondsAfterLastEdit());
+        }
     }
 
     private static class SuperRegionTaskTree implements RegionTaskTree {
@@ -262,12 +540,18 @@ public class WorldTaskList {
          */
         private final RenderAreaConfig renderArea;
 
-        private SuperRegionTaskTree(RenderAreaConfig renderArea, int zoomLevel) {
+        /**
+         * Used to decide when edited regions can be drawn.
+         */
+        private final TimingsConfig timings;
+
+        private SuperRegionTaskTree(RenderAreaConfig renderArea, TimingsConfig timings, int zoomLevel) {
             if (zoomLevel <= 0) {
                 throw new IllegalArgumentException("Invalid zoomLevel: " + zoomLevel);
             }
             this.zoomLevel = zoomLevel;
             this.renderArea = Objects.requireNonNull(renderArea, "renderArea");
+            this.timings = Objects.requireNonNull(timings, "timings");
         }
 
         @Override
@@ -284,21 +568,44 @@ public class WorldTaskList {
             if (nextZoomLevel == 1) {
                 // No super region needed for next zoom, it's just a single
                 // region now
-                return new SingleRegionTaskTree(renderArea, regionLocation.x, regionLocation.z);
+                return new SingleRegionTaskTree(renderArea, timings, regionLocation.x, regionLocation.z);
             }
-            return new ZoomingRegionTaskTree(renderArea, regionLocation, nextZoomLevel);
+            return new ZoomingRegionTaskTree(renderArea, timings, regionLocation, nextZoomLevel);
         }
 
         @Override
-        public void drawAll(DrawContext context) throws IOException {
-            for (Iterator<RegionTaskTree> it = this.children.values().iterator(); it.hasNext();) {
-                RegionTaskTree tree = it.next();
+        public boolean drawAll(DrawContext context) throws IOException {
+            Set<Coordinate> drawnChildren = new HashSet<>();
+            return drawChildren(context, drawnChildren) && !drawnChildren.isEmpty();
+        }
+
+        /**
+         * Draws everything that's currently queued and ready for drawing in
+         * the children.
+         *
+         * @param context
+         *            Drawing context.
+         * @param drawnChildren
+         *            The coordinates of the children that (re)drew at least
+         *            one image are added to this set.
+         * @return False if drawing was aborted because the server is
+         *         stopping, true otherwise.
+         * @throws IOException
+         *             If writing to a file fails.
+         */
+        protected boolean drawChildren(DrawContext context, Set<Coordinate> drawnChildren) throws IOException {
+            for (Iterator<Entry<Coordinate, RegionTaskTree>> it = this.children.entrySet().iterator(); it
+                    .hasNext();) {
+                Entry<Coordinate, RegionTaskTree> child = it.next();
+                RegionTaskTree tree = child.getValue();
                 if (context.mustStop()) {
-                    return;
+                    return false;
+                }
+                if (tree.drawAll(context)) {
+                    drawnChildren.add(child.getKey());
                 }
-                tree.drawAll(context);
                 if (context.mustStop()) {
-                    return;
+                    return false;
                 }
 
                 if (tree.isEmpty()) {
@@ -307,23 +614,50 @@ public class WorldTaskList {
                     // remove it.
                     it.remove();
                 }
+                if (context.mustPause()) {
+                    // Turn of this world is over, continue next turn. The
+                    // images that were drawn are still reported, so that the
+                    // zoomed out images are up to date
+                    break;
+                }
             }
-
+            return true;
         }
 
         @Override
-        public void getQueueSnapshot(List<DrawInstruction> list) {
+        public void forEachQueuedRegion(QueuedRegionVisitor visitor, long[] buffer) {
             // Ask the children to see which regions are in the queue
             for (RegionTaskTree child : this.children.values()) {
-                child.getQueueSnapshot(list);
+                child.forEachQueuedRegion(visitor, buffer);
             }
         }
 
+        @Override
+        public long getNanosUntilReady(long now) {
+            long nanos = Long.MAX_VALUE;
+            for (RegionTaskTree child : this.children.values()) {
+                nanos = Math.min(nanos, child.getNanosUntilReady(now));
+                if (nanos == 0) {
+                    break;
+                }
+            }
+            return nanos;
+        }
+
+
         @Override
         public boolean isEmpty() {
             return children.isEmpty();
         }
 
+        @Override
+        public void requestChunksRedraw(int regionX, int regionZ, long[] chunks) {
+            int superRegionX = regionX >> (zoomLevel - 2);
+            int superRegionZ = regionZ >> (zoomLevel - 2);
+            children.computeIfAbsent(new Coordinate(superRegionX, superRegionZ), this::createChild)
+                    .requestChunksRedraw(regionX, regionZ, chunks);
+        }
+
         @Override
         public void requestRedraw(DrawInstruction drawInstruction) {
             int regionX = drawInstruction.getRegionX();
@@ -343,95 +677,93 @@ public class WorldTaskList {
          */
         private final Coordinate coord;
 
-        private ZoomingRegionTaskTree(RenderAreaConfig renderArea, Coordinate coord, int zoomLevel) {
-            super(renderArea, zoomLevel);
+        private ZoomingRegionTaskTree(RenderAreaConfig renderArea, TimingsConfig timings, Coordinate coord,
+                int zoomLevel) {
+            super(renderArea, timings, zoomLevel);
             this.coord = Objects.requireNonNull(coord, "coord");
         }
 
         @Override
-        public void drawAll(DrawContext context) throws IOException {
-            super.drawAll(context);
+        public boolean drawAll(DrawContext context) throws IOException {
+            Set<Coordinate> drawnChildren = new HashSet<>();
+            if (!drawChildren(context, drawnChildren) || drawnChildren.isEmpty()) {
+                // Nothing changed, so no need to redraw the zoomed out image
+                return false;
+            }
 
             // Draw zoomed out image
-            if (!context.mustStop()) {
-                drawZoomedOutImage(context);
+            if (context.mustStop()) {
+                return false;
             }
+            drawZoomedOutImage(context, drawnChildren);
+            return true;
         }
 
-        private void drawZoomedOutImage(DrawContext context) throws IOException {
-            BufferedImage zoomedOut = new BufferedImage(SizeConstants.REGION_SIZE_PIXELS,
-                    SizeConstants.REGION_SIZE_PIXELS, BufferedImage.TYPE_INT_RGB);
-            Graphics2D zoomedOutGraphics = zoomedOut.createGraphics();
-            boolean successful = false;
-            try {
-
-                BufferedImage subImage;
-
-                // Top left
-                Coordinate coordinate = new Coordinate(this.coord.x * 2, this.coord.z * 2);
-                try {
-                    subImage = ImageIO.read(context.getSaveFile(coordinate, zoomLevel - 1).toFile());
-                    zoomedOutGraphics.drawImage(subImage, 0, 0, SizeConstants.REGION_SIZE_PIXELS / 2,
-                            SizeConstants.REGION_SIZE_PIXELS / 2,
-                            0, 0, SizeConstants.REGION_SIZE_PIXELS, SizeConstants.REGION_SIZE_PIXELS, null);
-                } catch (IOException e) {
-                    // Ignore
-                }
-
-                // Top right
-                coordinate = new Coordinate(coordinate.x + 1, coordinate.z);
-                try {
-                    subImage = ImageIO.read(context.getSaveFile(coordinate, zoomLevel - 1).toFile());
-                    zoomedOutGraphics.drawImage(subImage, SizeConstants.REGION_SIZE_PIXELS / 2, 0,
-                            SizeConstants.REGION_SIZE_PIXELS,
-                            SizeConstants.REGION_SIZE_PIXELS / 2,
-                            0, 0, SizeConstants.REGION_SIZE_PIXELS, SizeConstants.REGION_SIZE_PIXELS, null);
-                } catch (IOException e) {
-                    // Ignore
-                }
-
-                // Bottom right
-                coordinate = new Coordinate(coordinate.x, coordinate.z + 1);
-                try {
-                    subImage = ImageIO.read(context.getSaveFile(coordinate, zoomLevel - 1).toFile());
-                    zoomedOutGraphics.drawImage(subImage, SizeConstants.REGION_SIZE_PIXELS / 2,
-                            SizeConstants.REGION_SIZE_PIXELS / 2, SizeConstants.REGION_SIZE_PIXELS,
-                            SizeConstants.REGION_SIZE_PIXELS, 0, 0, SizeConstants.REGION_SIZE_PIXELS,
-                            SizeConstants.REGION_SIZE_PIXELS, null);
-                } catch (IOException e) {
-                    // Ignore
-                }
+        private void drawZoomedOutImage(DrawContext context, Set<Coordinate> drawnChildren) throws IOException {
+            BufferedImage zoomedOut = TileImages.createImage();
+            int[] pixels = TileImages.getPixels(zoomedOut);
 
-                // Bottom left
-                coordinate = new Coordinate(coordinate.x - 1, coordinate.z);
-                try {
-                    subImage = ImageIO.read(context.getSaveFile(coordinate, zoomLevel - 1).toFile());
-                    zoomedOutGraphics.drawImage(subImage, 0,
-                            SizeConstants.REGION_SIZE_PIXELS / 2, SizeConstants.REGION_SIZE_PIXELS / 2,
-                            SizeConstants.REGION_SIZE_PIXELS, 0, 0, SizeConstants.REGION_SIZE_PIXELS,
-                            SizeConstants.REGION_SIZE_PIXELS, null);
-                } catch (IOException e) {
-                    // Ignore
+            Optional<BufferedImage> oldImage = Optional.empty();
+            if (drawnChildren.size() < 4) {
+                oldImage = context.readTile(coord, zoomLevel);
+            }
+            if (oldImage.isPresent()) {
+                // Only update the parts of the old image that have changed
+                // (the old image itself may not be modified, it can be in use
+                // by the cache)
+                System.arraycopy(TileImages.getPixels(oldImage.get()), 0, pixels, 0, pixels.length);
+                for (Coordinate child : drawnChildren) {
+                    int[] subImage = context.readTile(child, zoomLevel - 1).map(TileImages::getPixels).orElse(null);
+                    Downsampler.downsampleQuadrant(subImage, child.x & 1, child.z & 1, pixels);
                 }
-                successful = true;
-            } finally {
-                // Dispose graphics, write result to file
-                zoomedOutGraphics.dispose();
-                if (successful) {
-                    Path saveFile = context.getSaveFile(coord, zoomLevel);
-                    Files.createDirectories(saveFile.getParent());
-                    ImageIO.write(zoomedOut, "PNG", saveFile.toFile());
+            } else {
+                int[][] subImages = new int[4][];
+                for (int i = 0; i < subImages.length; i++) {
+                    // Top left, top right, bottom left, bottom right
+                    Coordinate child = new Coordinate(this.coord.x * 2 + (i & 1), this.coord.z * 2 + (i >> 1));
+                    subImages[i] = context.readTile(child, zoomLevel - 1).map(TileImages::getPixels).orElse(null);
                 }
+                Downsampler.downsample(subImages[0], subImages[1], subImages[2], subImages[3], pixels);
             }
+            context.writeTile(coord, zoomLevel, zoomedOut);
         }
     }
 
+    private static long toNanos(double seconds) {
+        return (long) (seconds * 1_000_000_000);
+    }
+
     private final SuperRegionTaskTree root;
     private final RenderAreaConfig renderArea;
+    private final int zoomLevels;
+
+    /**
+     * Total time spent on drawing this world. Only updated by the drawing
+     * thread.
+     */
+    private volatile long renderNanos = 0;
 
-    public WorldTaskList(RenderAreaConfig renderArea) {
+    /**
+     * Creates a new task list.
+     *
+     * @param renderArea
+     *            The area of the world that must be rendered.
+     * @param timings
+     *            Used to decide when edited regions can be drawn.
+     * @param zoomLevels
+     *            The amount of zoom levels, see
+     *            {@link nl.rutgerkok.topographica.util.ZoomLevels}.
+     */
+    public WorldTaskList(RenderAreaConfig renderArea, TimingsConfig timings, int zoomLevels) {
+        if (zoomLevels <= 0) {
+            throw new IllegalArgumentException("Invalid zoomLevels: " + zoomLevels);
+        }
         this.renderArea = Objects.requireNonNull(renderArea, "renderArea");
-        this.root = new SuperRegionTaskTree(renderArea, 5);
+        this.zoomLevels = zoomLevels;
+
+        // The root itself doesn't draw an image, so it needs to be one level
+        // higher than the most zoomed out level
+        this.root = new SuperRegionTaskTree(renderArea, timings, zoomLevels + 1);
     }
 
     /**
@@ -443,19 +775,71 @@ public class WorldTaskList {
         return root.calculateRegionsInQueue();
     }
 
+    /**
+     * Adds the given time to the total time spent on drawing this world.
+     *
+     * @param nanos
+     *            The time in nanoseconds.
+     */
+    void addRenderNanos(long nanos) {
+        this.renderNanos += nanos;
+    }
+
+    /**
+     * Draws everything that is ready for drawing, until
+     * {@link DrawContext#mustPause()} returns true.
+     *
+     * @param context
+     *            The drawing context.
+     * @throws IOException
+     *             If writing to a file fails.
+     */
     void drawAll(DrawContext context) throws IOException {
         root.drawAll(context);
     }
 
     /**
-     * Gets everything that's currently in the queue.
+     * Passes all regions that are currently in the queue to the given visitor.
+     * Changes made to the queue in the meantime may or may not be visible.
      *
-     * @return Everything that's in the queue.
+     * @param visitor
+     *            The visitor.
      */
-    public List<DrawInstruction> getQueueSnapshot() {
-        List<DrawInstruction> list = new ArrayList<>();
-        root.getQueueSnapshot(list);
-        return Collections.unmodifiableList(list);
+    public void forEachQueuedRegion(QueuedRegionVisitor visitor) {
+        root.forEachQueuedRegion(visitor, new long[ChunkBitmap.LENGTH_IN_LONGS]);
+    }
+
+    /**
+     * Calculates how long it takes until something in this task list is ready
+     * for drawing.
+     *
+     * @param now
+     *            The current time, from {@link System#nanoTime()}.
+     * @return The time in nanoseconds, 0 if something is ready now, or
+     *         {@link Long#MAX_VALUE} if nothing is queued.
+     */
+    long getNanosUntilReady(long now) {
+        return root.getNanosUntilReady(now);
+    }
+
+    /**
+     * Gets the total time that was spent on drawing this world since the
+     * server started.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getRenderNanos() {
+        return renderNanos;
+    }
+
+    /**
+     * Gets the amount of zoom levels. Level 1 has one image per region, every
+     * next level has one image for every 2x2 images of the level below.
+     *
+     * @return The amount of zoom levels.
+     */
+    public int getZoomLevels() {
+        return zoomLevels;
     }
 
     /**
@@ -477,4 +861,34 @@ public class WorldTaskList {
         root.requestRedraw(drawInstruction);
     }
 
+    /**
+     * Puts in a request to (re)draw the given chunks of a region. Unlike
+     * edited chunks, these chunks are drawn without waiting until the region
+     * is no longer being edited.
+     *
+     * @param region
+     *            The region.
+     * @param chunks
+     *            The chunks in the region, in the layout of
+     *            {@link ChunkBitmap}.
+     */
+    void requestRedraw(Region region, long[] chunks) {
+        long[] toDraw = chunks.clone();
+        int regionStartChunkX = region.getRegionX() << 5;
+        int regionStartChunkZ = region.getRegionZ() << 5;
+        boolean anyChunk = false;
+        for (int index = ChunkBitmap.nextSetBit(toDraw, 0); index != -1; index = ChunkBitmap.nextSetBit(toDraw,
+                index + 1)) {
+            if (renderArea.shouldRenderChunk(regionStartChunkX + ChunkBitmap.getLocalX(index),
+                    regionStartChunkZ + ChunkBitmap.getLocalZ(index))) {
+                anyChunk = true;
+            } else {
+                toDraw[index >> 6] &= ~(1L << index);
+            }
+        }
+        if (anyChunk) {
+            root.requestChunksRedraw(region.getRegionX(), region.getRegionZ(), toDraw);
+        }
+    }
+
 }
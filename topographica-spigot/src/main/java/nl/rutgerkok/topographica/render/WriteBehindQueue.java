@@ -0,0 +1,280 @@
+package nl.rutgerkok.topographica.render;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes files on a background thread, so that a slow disk doesn't hold up the
+ * renderer. If a file is written again before the previous write has started,
+ * only the newest contents are written.
+ *
+ * <p>
+ * Until a file has been written, its contents can be looked up using
+ * {@link #getPending(Object)}, as the file on disk is still outdated.
+ *
+ * <p>
+ * At most a fixed amount of files can wait. If the disk can't keep up,
+ * {@link #write(Object, Object)} waits for room, so that the waiting contents
+ * don't use up all memory.
+ *
+ * @param <K>
+ *            Type of the key that identifies a file, like {@link Path}. Must
+ *            implement {@link Object#equals(Object)} and
+ *            {@link Object#hashCode()}.
+ * @param <T>
+ *            Type of the file contents. Must not be modified after being
+ *            passed to {@link #write(Object, Object)}.
+ */
+final class WriteBehindQueue<K, T> {
+
+    /**
+     * Writes a single file.
+     *
+     * @param <K>
+     *            Type of the key that identifies a file.
+     * @param <T>
+     *            Type of the file contents.
+     */
+    @FunctionalInterface
+    interface FileWriter<K, T> {
+        /**
+         * Writes the file.
+         *
+         * @param file
+         *            The file.
+         * @param contents
+         *            The contents.
+         * @throws IOException
+         *             If writing fails.
+         */
+        void write(K file, T contents) throws IOException;
+    }
+
+    private final Object lock = new Object();
+    private final Logger logger;
+    private final String name;
+    private final FileWriter<K, T> writer;
+    private final int maxPending;
+
+    /**
+     * Files waiting to be written, oldest first.
+     */
+    private final Map<K, T> pending = new LinkedHashMap<>();
+
+    /**
+     * The file that is being written right now, or null.
+     */
+    private K writingFile;
+    private T writingContents;
+
+    /**
+     * After stopping, files are written immediately on the calling thread, but
+     * only once the background thread has written all files that were already
+     * waiting. Otherwise an older version of a file could be written last.
+     */
+    private boolean stopped = false;
+    private boolean drained = false;
+    private Thread thread;
+
+    /**
+     * Creates a new queue. Files are only written in the background after
+     * {@link #start()} is called.
+     *
+     * @param name
+     *            Name of the background thread.
+     * @param writer
+     *            Writes a single file.
+     * @param maxPending
+     *            Maximum amount of files waiting to be written.
+     * @param logger
+     *            Used to report failed writes.
+     */
+    WriteBehindQueue(String name, FileWriter<K, T> writer, int maxPending, Logger logger) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending: " + maxPending);
+        }
+        this.name = Objects.requireNonNull(name, "name");
+        this.writer = Objects.requireNonNull(writer, "writer");
+        this.maxPending = maxPending;
+        this.logger = Objects.requireNonNull(logger, "logger");
+    }
+
+    /**
+     * Waits until all files that are waiting have been written. Files that
+     * are added in the meantime are waited for too.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    void flush() throws InterruptedException {
+        synchronized (lock) {
+            if (thread == null) {
+                // Never started, so files are written immediately or never
+                return;
+            }
+            while ((!pending.isEmpty() || writingFile != null) && !drained) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Gets the amount of files that are waiting to be written.
+     *
+     * @return The amount of files.
+     */
+    int getPendingCount() {
+        synchronized (lock) {
+            return pending.size() + (writingFile == null ? 0 : 1);
+        }
+    }
+
+    /**
+     * Gets the contents of a file that was not written to disk yet.
+     *
+     * @param file
+     *            The file.
+     * @return The contents, or empty if the file on disk is up to date.
+     */
+    Optional<T> getPending(K file) {
+        synchronized (lock) {
+            T contents = pending.get(file);
+            if (contents == null && file.equals(writingFile)) {
+                contents = writingContents;
+            }
+            return Optional.ofNullable(contents);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            K file;
+            T contents;
+            synchronized (lock) {
+                while (pending.isEmpty() && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Let write() write files immediately
+                        drained = true;
+                        lock.notifyAll();
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    // Stopped, and everything has been written
+                    drained = true;
+                    lock.notifyAll();
+                    return;
+                }
+                Iterator<Entry<K, T>> iterator = pending.entrySet().iterator();
+                Entry<K, T> oldest = iterator.next();
+                iterator.remove();
+                lock.notifyAll(); // There's room for another file
+                file = oldest.getKey();
+                contents = oldest.getValue();
+                writingFile = file;
+                writingContents = contents;
+            }
+
+            writeNow(file, contents);
+
+            synchronized (lock) {
+                writingFile = null;
+                writingContents = null;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts writing files in the background. Does nothing if the queue was
+     * already stopped.
+     */
+    void start() {
+        synchronized (lock) {
+            if (thread != null) {
+                throw new IllegalStateException("Already started");
+            }
+            if (stopped) {
+                return;
+            }
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Writes all waiting files and stops the background thread. Files that
+     * are written afterwards are written immediately.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting for the files to be written.
+     */
+    void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (lock) {
+            stopped = true;
+            thread = this.thread;
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            thread.join();
+        } else {
+            // Never started, so write everything on this thread
+            run();
+        }
+    }
+
+    /**
+     * Writes a file in the background. Replaces the contents of the same file
+     * if that file has not been written yet. If too many files are waiting
+     * already, this method waits until one has been written.
+     *
+     * @param file
+     *            The file.
+     * @param contents
+     *            The contents. Must not be modified afterwards.
+     */
+    void write(K file, T contents) {
+        Objects.requireNonNull(file, "file");
+        Objects.requireNonNull(contents, "contents");
+        synchronized (lock) {
+            if (!stopped || (thread != null && !drained)) {
+                // Replacing a waiting file doesn't need room
+                while (pending.size() >= maxPending && !pending.containsKey(file) && thread != null && !drained) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Add the file anyway, so that it isn't lost
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                // Keeps the original position in the queue if the file was
+                // already waiting
+                pending.put(file, contents);
+                lock.notifyAll();
+                return;
+            }
+        }
+        writeNow(file, contents);
+    }
+
+    private void writeNow(K file, T contents) {
+        try {
+            writer.write(file, contents);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package nl.rutgerkok.topographica.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe set of chunks within a single region, stored as one bit per
+ * chunk. Bit {@code z * 32 + x} stands for the chunk at local coordinates x,
+ * z. The same layout is used for the plain {@code long[]} bitmaps that can be
+ * exchanged with this class.
+ *
+ */
+public final class ChunkBitmap {
+
+    /**
+     * The amount of longs needed to store a bitmap of a full region.
+     */
+    public static final int LENGTH_IN_LONGS = SizeConstants.REGION_SIZE_CHUNKS * SizeConstants.REGION_SIZE_CHUNKS
+            / Long.SIZE;
+
+    /**
+     * Gets the index of the bit for the given chunk.
+     *
+     * @param chunkX
+     *            Chunk x, may be local or absolute.
+     * @param chunkZ
+     *            Chunk z, may be local or absolute.
+     * @return The index, from 0 to 1023.
+     */
+    public static int getIndex(int chunkX, int chunkZ) {
+        int mask = SizeConstants.REGION_SIZE_CHUNKS - 1;
+        return ((chunkZ & mask) << SizeConstants.REGION_SIZE_CHUNKS_BITS) | (chunkX & mask);
+    }
+
+    /**
+     * Gets the local chunk x of the bit with the given index.
+     *
+     * @param index
+     *            The index.
+     * @return Local chunk x, from 0 to 31.
+     */
+    public static int getLocalX(int index) {
+        return index & (SizeConstants.REGION_SIZE_CHUNKS - 1);
+    }
+
+    /**
+     * Gets the local chunk z of the bit with the given index.
+     *
+     * @param index
+     *            The index.
+     * @return Local chunk z, from 0 to 31.
+     */
+    public static int getLocalZ(int index) {
+        return index >> SizeConstants.REGION_SIZE_CHUNKS_BITS;
+    }
+
+    /**
+     * Gets the index of the next set bit in the given plain bitmap.
+     *
+     * @param bitmap
+     *            The bitmap.
+     * @param fromIndex
+     *            The index to start searching at (inclusive).
+     * @return The index, or -1 if there are no more set bits.
+     */
+    public static int nextSetBit(long[] bitmap, int fromIndex) {
+        int longIndex = fromIndex >> 6;
+        if (longIndex >= bitmap.length) {
+            return -1;
+        }
+        long word = bitmap[longIndex] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (longIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            longIndex++;
+            if (longIndex == bitmap.length) {
+                return -1;
+            }
+            word = bitmap[longIndex];
+        }
+    }
+
+    private final AtomicLongArray bits = new AtomicLongArray(LENGTH_IN_LONGS);
+
+    /**
+     * Adds a chunk.
+     *
+     * @param chunkX
+     *            Chunk x.
+     * @param chunkZ
+     *            Chunk z.
+     */
+    public void add(int chunkX, int chunkZ) {
+        int index = getIndex(chunkX, chunkZ);
+        long mask = 1L << index;
+        int longIndex = index >> 6;
+        long old;
+        do {
+            old = bits.get(longIndex);
+        } while ((old & mask) == 0 && !bits.compareAndSet(longIndex, old, old | mask));
+    }
+
+    /**
+     * Adds all chunks of the given plain bitmap.
+     *
+     * @param bitmap
+     *            The bitmap.
+     */
+    public void addAll(long[] bitmap) {
+        for (int i = 0; i < LENGTH_IN_LONGS; i++) {
+            long toAdd = bitmap[i];
+            long old;
+            do {
+                old = bits.get(i);
+            } while ((old | toAdd) != old && !bits.compareAndSet(i, old, old | toAdd));
+        }
+    }
+
+    /**
+     * Removes all chunks.
+     */
+    public void clear() {
+        for (int i = 0; i < LENGTH_IN_LONGS; i++) {
+            bits.set(i, 0);
+        }
+    }
+
+    /**
+     * Copies the current contents to the given plain bitmap.
+     *
+     * @param bitmap
+     *            The bitmap, must have a length of {@link #LENGTH_IN_LONGS}.
+     */
+    public void copyTo(long[] bitmap) {
+        for (int i = 0; i < LENGTH_IN_LONGS; i++) {
+            bitmap[i] = bits.get(i);
+        }
+    }
+
+    /**
+     * Checks whether there are no chunks in this set.
+     *
+     * @return True if there are no chunks.
+     */
+    public boolean isEmpty() {
+        for (int i = 0; i < LENGTH_IN_LONGS; i++) {
+            if (bits.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the chunk with the given index.
+     *
+     * @param index
+     *            The index, see {@link #getIndex(int, int)}.
+     */
+    public void remove(int index) {
+        long mask = 1L << index;
+        int longIndex = index >> 6;
+        long old;
+        do {
+            old = bits.get(longIndex);
+        } while ((old & mask) != 0 && !bits.compareAndSet(longIndex, old, old & ~mask));
+    }
+
+    /**
+     * Removes all chunks of the given plain bitmap.
+     *
+     * @param bitmap
+     *            The bitmap.
+     */
+    public void removeAll(long[] bitmap) {
+        for (int i = 0; i < LENGTH_IN_LONGS; i++) {
+            long toRemove = bitmap[i];
+            long old;
+            do {
+                old = bits.get(i);
+            } while ((old & toRemove) != 0 && !bits.compareAndSet(i, old, old & ~toRemove));
+        }
+    }
+
+    /**
+     * Counts the chunks in this set.
+     *
+     * @return The amount of chunks.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < LENGTH_IN_LONGS; i++) {
+            size += Long.bitCount(bits.get(i));
+        }
+        return size;
+    }
+}
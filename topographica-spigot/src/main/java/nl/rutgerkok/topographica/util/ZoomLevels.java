@@ -0,0 +1,84 @@
+package nl.rutgerkok.topographica.util;
+
+import java.io.IOException;
+import java.util.OptionalInt;
+import java.util.stream.Stream;
+
+import org.bukkit.World;
+
+import nl.rutgerkok.topographica.config.RenderAreaConfig;
+
+/**
+ * Calculates how many zoom levels the map of a world needs. Zoom level 1 has
+ * one image per region, every next zoom level has one image per 2x2 images of
+ * the level below. The most zoomed out level should cover the world in just a
+ * few images.
+ *
+ */
+public final class ZoomLevels {
+
+    /**
+     * Used if the size of the world is unknown.
+     */
+    public static final int DEFAULT_ZOOM_LEVELS = 4;
+
+    /**
+     * Enough to cover the whole world within the world border of Minecraft,
+     * which is 30 million blocks from the center.
+     */
+    public static final int MAX_ZOOM_LEVELS = 17;
+
+    /**
+     * Calculates the amount of zoom levels needed for the given distance. The
+     * most zoomed out level will then have at most 2x2 images.
+     *
+     * @param regionDistance
+     *            See {@link RenderAreaConfig#getRegionDistance()}.
+     * @return The amount of zoom levels.
+     */
+    public static int forRegionDistance(int regionDistance) {
+        if (regionDistance <= 1) {
+            return 1;
+        }
+        int zoomLevels = 1 + Integer.SIZE - Integer.numberOfLeadingZeros(regionDistance - 1);
+        return Math.min(MAX_ZOOM_LEVELS, zoomLevels);
+    }
+
+    /**
+     * Calculates the amount of zoom levels needed for the given world. If the
+     * render area is limited, the zoom levels are based on that area.
+     * Otherwise they are based on the region files that currently exist. Must
+     * be called again after the world has grown a lot, in order to add extra
+     * zoom levels.
+     *
+     * @param world
+     *            The world.
+     * @param renderArea
+     *            The render area of the world.
+     * @return The amount of zoom levels.
+     */
+    public static int forWorld(World world, RenderAreaConfig renderArea) {
+        OptionalInt regionDistance = renderArea.getRegionDistance();
+        if (regionDistance.isPresent()) {
+            return forRegionDistance(regionDistance.getAsInt());
+        }
+
+        try (Stream<Region> regions = RegionFilesFinder.getRegions(world)) {
+            regionDistance = regions
+                    .mapToInt(region -> Math.max(Math.max(-region.getRegionX(), region.getRegionX() + 1),
+                            Math.max(-region.getRegionZ(), region.getRegionZ() + 1)))
+                    .max();
+        } catch (IOException e) {
+            return DEFAULT_ZOOM_LEVELS;
+        }
+        if (!regionDistance.isPresent()) {
+            // Nothing explored yet
+            return DEFAULT_ZOOM_LEVELS;
+        }
+        return forRegionDistance(regionDistance.getAsInt());
+    }
+
+    private ZoomLevels() {
+        // No instances
+    }
+}
@@ -0,0 +1,336 @@
+package nl.rutgerkok.topographica.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.rutgerkok.topographica.render.WorldTaskList.DrawInstruction;
+import nl.rutgerkok.topographica.render.WorldTaskList.QueuedRegionVisitor;
+import nl.rutgerkok.topographica.util.ChunkBitmap;
+import nl.rutgerkok.topographica.util.Coordinate;
+import nl.rutgerkok.topographica.util.Region;
+
+public class RenderQueueJournalTest {
+
+    /**
+     * {@link DrawInstruction} doesn't implement equals and hashCode, so this
+     * class is used instead.
+     */
+    private static class DrawInstructionKey {
+        private final boolean isRegion;
+        private final int x;
+        private final int z;
+
+        private DrawInstructionKey(boolean isRegion, int x, int z) {
+            this.isRegion = isRegion;
+            this.x = x;
+            this.z = z;
+        }
+
+        private DrawInstructionKey(DrawInstruction drawInstruction) {
+            this(drawInstruction.isRegion, drawInstruction.x, drawInstruction.z);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DrawInstructionKey)) {
+                return false;
+            }
+            DrawInstructionKey other = (DrawInstructionKey) obj;
+            return isRegion == other.isRegion && x == other.x && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (isRegion ? 1 : 0) + 31 * x + 961 * z;
+        }
+
+        @Override
+        public String toString() {
+            return (isRegion ? "region " : "chunk ") + x + "," + z;
+        }
+    }
+
+    /**
+     * Simple model of the queue, to compare the journal with.
+     */
+    private static class ExpectedQueue {
+        private final Map<UUID, Set<DrawInstructionKey>> worlds = new HashMap<>();
+
+        private void apply(UUID worldId, DrawInstruction drawInstruction, boolean completed) {
+            Set<DrawInstructionKey> queue = worlds.computeIfAbsent(worldId, id -> new HashSet<>());
+            DrawInstructionKey key = new DrawInstructionKey(drawInstruction);
+            if (drawInstruction.isRegion) {
+                queue.removeIf(other -> !other.isRegion && other.x >> 5 == key.x && other.z >> 5 == key.z);
+                if (completed) {
+                    queue.remove(key);
+                } else {
+                    queue.add(key);
+                }
+            } else {
+                if (completed) {
+                    queue.remove(key);
+                } else if (!queue.contains(new DrawInstructionKey(true, key.x >> 5, key.z >> 5))) {
+                    queue.add(key);
+                }
+            }
+        }
+
+        private ExpectedQueue copy() {
+            ExpectedQueue copy = new ExpectedQueue();
+            for (Map.Entry<UUID, Set<DrawInstructionKey>> entry : worlds.entrySet()) {
+                copy.worlds.put(entry.getKey(), new HashSet<>(entry.getValue()));
+            }
+            return copy;
+        }
+
+        private Set<String> toStrings() {
+            Set<String> strings = new HashSet<>();
+            for (Map.Entry<UUID, Set<DrawInstructionKey>> entry : worlds.entrySet()) {
+                for (DrawInstructionKey key : entry.getValue()) {
+                    strings.add(entry.getKey() + " " + key);
+                }
+            }
+            return strings;
+        }
+
+        private Map<UUID, Consumer<QueuedRegionVisitor>> toQueue() {
+            Map<UUID, Consumer<QueuedRegionVisitor>> queue = new HashMap<>();
+            for (Map.Entry<UUID, Set<DrawInstructionKey>> entry : worlds.entrySet()) {
+                Map<Coordinate, long[]> chunkRegions = new HashMap<>();
+                Set<Coordinate> fullRegions = new HashSet<>();
+                for (DrawInstructionKey key : entry.getValue()) {
+                    if (key.isRegion) {
+                        fullRegions.add(new Coordinate(key.x, key.z));
+                    } else {
+                        long[] chunks = chunkRegions.computeIfAbsent(new Coordinate(key.x >> 5, key.z >> 5),
+                                coord -> new long[ChunkBitmap.LENGTH_IN_LONGS]);
+                        int index = ChunkBitmap.getIndex(key.x, key.z);
+                        chunks[index >> 6] |= 1L << index;
+                    }
+                }
+                queue.put(entry.getKey(), visitor -> {
+                    fullRegions.forEach(region -> visitor.visit(region.x, region.z, true, null));
+                    chunkRegions.forEach((region, chunks) -> visitor.visit(region.x, region.z, false, chunks));
+                });
+            }
+            return queue;
+        }
+    }
+
+    private static final UUID[] WORLDS = { new UUID(1, 1), new UUID(2, 2) };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Logger logger;
+
+    private void addRandomRecords(Random random, RenderQueueJournal journal, ExpectedQueue expected) {
+        int count = 1 + random.nextInt(20);
+        for (int i = 0; i < count; i++) {
+            UUID worldId = WORLDS[random.nextInt(WORLDS.length)];
+            boolean completed = random.nextInt(3) == 0;
+            DrawInstruction drawInstruction;
+            if (random.nextInt(10) == 0) {
+                drawInstruction = DrawInstruction.ofRegion(Region.of(random.nextInt(4) - 2, random.nextInt(4) - 2));
+            } else {
+                drawInstruction = DrawInstruction.ofChunk(random.nextInt(80) - 40, random.nextInt(80) - 40);
+            }
+            if (completed) {
+                journal.logCompleted(worldId, drawInstruction);
+            } else {
+                journal.logEnqueued(worldId, drawInstruction);
+            }
+            expected.apply(worldId, drawInstruction, completed);
+        }
+    }
+
+    private Path findJournal(Path folder) throws IOException {
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*.journal")) {
+            files.forEach(journals::add);
+        }
+        assertEquals(1, journals.size());
+        return journals.get(0);
+    }
+
+    /**
+     * Gets a visitor that adds the regions it receives to the given set, in
+     * the format of {@link ExpectedQueue#toStrings()}.
+     */
+    private QueuedRegionVisitor collectInto(Set<String> recovered, UUID worldId) {
+        return (regionX, regionZ, full, chunks) -> {
+            if (full) {
+                recovered.add(worldId + " " + new DrawInstructionKey(true, regionX, regionZ));
+                return;
+            }
+            for (int index = ChunkBitmap.nextSetBit(chunks, 0); index != -1; index = ChunkBitmap
+                    .nextSetBit(chunks, index + 1)) {
+                recovered.add(worldId + " " + new DrawInstructionKey(false,
+                        (regionX << 5) + ChunkBitmap.getLocalX(index), (regionZ << 5) + ChunkBitmap.getLocalZ(index)));
+            }
+        };
+    }
+
+    private Set<String> recover(Path folder) {
+        Set<String> recovered = new HashSet<>();
+        new RenderQueueJournal(folder, logger).recover(worldId -> collectInto(recovered, worldId));
+        return recovered;
+    }
+
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger(getClass().getName());
+        logger.setUseParentHandlers(false);
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path folder = temporaryFolder.newFolder().toPath();
+        Random random = new Random(1);
+        ExpectedQueue expected = new ExpectedQueue();
+
+        RenderQueueJournal journal = new RenderQueueJournal(folder, logger);
+        journal.recover(worldId -> null);
+        journal.compact(Collections.emptyMap());
+        for (int i = 0; i < 10; i++) {
+            addRandomRecords(random, journal, expected);
+            journal.commit();
+        }
+        journal.compact(expected.toQueue());
+        for (int i = 0; i < 10; i++) {
+            addRandomRecords(random, journal, expected);
+            journal.commit();
+        }
+        journal.close();
+
+        assertFalse(Files.exists(folder.resolve("render_queue-1.journal")));
+        assertEquals(expected.toStrings(), recover(folder));
+    }
+
+    @Test
+    public void testUnloadedWorldKept() throws IOException {
+        Path folder = temporaryFolder.newFolder().toPath();
+        Random random = new Random(3);
+        ExpectedQueue expected = new ExpectedQueue();
+
+        RenderQueueJournal journal = new RenderQueueJournal(folder, logger);
+        journal.recover(worldId -> null);
+        journal.compact(Collections.emptyMap());
+        for (int i = 0; i < 10; i++) {
+            addRandomRecords(random, journal, expected);
+            journal.commit();
+        }
+        journal.close();
+
+        // Restart with only the first world loaded, so only that world has a
+        // task list when compacting
+        Set<String> loaded = new HashSet<>();
+        journal = new RenderQueueJournal(folder, logger);
+        journal.recover(worldId -> worldId.equals(WORLDS[0]) ? collectInto(loaded, worldId) : null);
+        journal.compact(Collections.singletonMap(WORLDS[0], expected.toQueue().get(WORLDS[0])));
+        journal.close();
+        assertEquals(expected.toStrings(), recover(folder));
+
+        // Load the second world
+        Set<String> recovered = new HashSet<>();
+        journal = new RenderQueueJournal(folder, logger);
+        journal.recover(worldId -> worldId.equals(WORLDS[0]) ? collectInto(recovered, worldId) : null);
+        assertTrue(journal.recoverWorld(WORLDS[1], collectInto(recovered, WORLDS[1])));
+        assertFalse(journal.recoverWorld(WORLDS[1], collectInto(recovered, WORLDS[1])));
+        journal.close();
+        assertEquals(expected.toStrings(), recovered);
+        assertTrue(loaded.stream().allMatch(entry -> entry.startsWith(WORLDS[0].toString())));
+    }
+
+    @Test
+    public void testMigrateQueueFile() throws IOException {
+        Path folder = temporaryFolder.newFolder().toPath();
+        Path queueFile = folder.resolve("pending_regions.txt");
+        Files.write(queueFile, Arrays.asList("# Comment", "world_id=" + WORLDS[0], "region 1,2", "chunk 40,-3",
+                "5,6", "chunk 33,70", "world_id=" + WORLDS[1], "chunk 0,0"), StandardCharsets.UTF_8);
+
+        RenderQueueJournal journal = new RenderQueueJournal(folder, logger);
+        new ChunkQueuePersistance(queueFile, logger).loadFromQueue(journal::addRecovered);
+        Set<String> recovered = new HashSet<>();
+        journal.recover(worldId -> collectInto(recovered, worldId));
+        journal.close();
+
+        // Chunk 33,70 is in region 1,2, so it isn't passed separately
+        Set<String> expected = new HashSet<>(Arrays.asList(WORLDS[0] + " region 1,2", WORLDS[0] + " chunk 40,-3",
+                WORLDS[0] + " region 5,6", WORLDS[1] + " chunk 0,0"));
+        assertEquals(expected, recovered);
+        assertFalse(Files.exists(queueFile));
+    }
+
+    @Test
+    public void testTruncatedJournal() throws IOException {
+        Path folder = temporaryFolder.newFolder().toPath();
+        Random random = new Random(2);
+        ExpectedQueue expected = new ExpectedQueue();
+
+        RenderQueueJournal journal = new RenderQueueJournal(folder, logger);
+        journal.recover(worldId -> null);
+        journal.compact(Collections.emptyMap());
+
+        // Remember the state after every commit
+        List<Long> frameEnds = new ArrayList<>();
+        List<ExpectedQueue> states = new ArrayList<>();
+        frameEnds.add(journal.getJournalSize());
+        states.add(expected.copy());
+        for (int i = 0; i < 30; i++) {
+            addRandomRecords(random, journal, expected);
+            journal.commit();
+            frameEnds.add(journal.getJournalSize());
+            states.add(expected.copy());
+        }
+        journal.close();
+        Path journalFile = findJournal(folder);
+        long journalSize = Files.size(journalFile);
+        assertEquals(journalSize, (long) frameEnds.get(frameEnds.size() - 1));
+
+        // Simulate crashes at random moments
+        for (int i = 0; i < 200; i++) {
+            long truncateAt = i == 0 ? 0 : random.nextInt((int) journalSize + 1);
+            Path crashedFolder = temporaryFolder.newFolder().toPath();
+            Files.copy(folder.resolve("render_queue.snapshot"), crashedFolder.resolve("render_queue.snapshot"));
+            Path crashedJournal = crashedFolder.resolve(journalFile.getFileName());
+            Files.copy(journalFile, crashedJournal);
+            try (FileChannel channel = FileChannel.open(crashedJournal, StandardOpenOption.WRITE)) {
+                channel.truncate(truncateAt);
+            }
+
+            int lastCompleteFrame = 0;
+            while (lastCompleteFrame + 1 < frameEnds.size() && frameEnds.get(lastCompleteFrame + 1) <= truncateAt) {
+                lastCompleteFrame++;
+            }
+            assertEquals("Truncated at " + truncateAt, states.get(lastCompleteFrame).toStrings(),
+                    recover(crashedFolder));
+        }
+    }
+}
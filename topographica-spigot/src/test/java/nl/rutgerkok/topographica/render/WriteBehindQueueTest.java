@@ -0,0 +1,60 @@
+package nl.rutgerkok.topographica.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+
+    @Test
+    public void testWriteWaitsWhenFull() throws InterruptedException {
+        CountDownLatch writerStarted = new CountDownLatch(1);
+        CountDownLatch releaseWriter = new CountDownLatch(1);
+        Map<String, String> written = new ConcurrentHashMap<>();
+        WriteBehindQueue<String, String> queue = new WriteBehindQueue<>("Test writer", (file, contents) -> {
+            writerStarted.countDown();
+            try {
+                releaseWriter.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.put(file, contents);
+        }, 2, Logger.getLogger(getClass().getName()));
+        queue.start();
+
+        // The first file blocks the writer, the next two fill the queue
+        queue.write("a", "1");
+        assertTrue(writerStarted.await(10, TimeUnit.SECONDS));
+        queue.write("b", "1");
+        queue.write("c", "1");
+        queue.write("b", "2"); // Replacing doesn't need room
+        assertEquals(3, queue.getPendingCount());
+
+        CountDownLatch fourthWritten = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            queue.write("d", "1");
+            fourthWritten.countDown();
+        });
+        thread.start();
+        assertFalse(fourthWritten.await(200, TimeUnit.MILLISECONDS));
+
+        releaseWriter.countDown();
+        assertTrue(fourthWritten.await(10, TimeUnit.SECONDS));
+        queue.flush();
+        assertEquals(0, queue.getPendingCount());
+        queue.stop();
+
+        assertEquals("1", written.get("a"));
+        assertEquals("2", written.get("b"));
+        assertEquals("1", written.get("c"));
+        assertEquals("1", written.get("d"));
+    }
+}
@@ -0,0 +1,128 @@
+package nl.rutgerkok.topographica.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ChunkBitmapTest {
+
+    private static boolean isSet(long[] bitmap, int index) {
+        return (bitmap[index >> 6] & (1L << index)) != 0;
+    }
+
+    private static long[] toArray(ChunkBitmap bitmap) {
+        long[] array = new long[ChunkBitmap.LENGTH_IN_LONGS];
+        bitmap.copyTo(array);
+        return array;
+    }
+
+    @Test
+    public void testAddAllAndRemoveAll() {
+        long[] first = new long[ChunkBitmap.LENGTH_IN_LONGS];
+        first[0] = 0b1011;
+        first[15] = Long.MIN_VALUE;
+        long[] second = new long[ChunkBitmap.LENGTH_IN_LONGS];
+        second[0] = 0b0110;
+
+        ChunkBitmap bitmap = new ChunkBitmap();
+        bitmap.addAll(first);
+        bitmap.addAll(second);
+        assertEquals(5, bitmap.size());
+
+        bitmap.removeAll(second);
+        long[] expected = new long[ChunkBitmap.LENGTH_IN_LONGS];
+        expected[0] = 0b1001;
+        expected[15] = Long.MIN_VALUE;
+        assertArrayEquals(expected, toArray(bitmap));
+
+        bitmap.removeAll(first);
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        assertTrue(bitmap.isEmpty());
+
+        // Absolute coordinates, also negative ones, wrap around to the region
+        bitmap.add(-1, 33);
+        bitmap.add(-1, 33);
+        assertEquals(1, bitmap.size());
+        int index = ChunkBitmap.getIndex(-1, 33);
+        assertEquals(31, ChunkBitmap.getLocalX(index));
+        assertEquals(1, ChunkBitmap.getLocalZ(index));
+        assertEquals(index, ChunkBitmap.nextSetBit(toArray(bitmap), 0));
+
+        bitmap.add(0, 0);
+        assertEquals(2, bitmap.size());
+        bitmap.remove(index);
+        bitmap.remove(index);
+        assertEquals(1, bitmap.size());
+        assertEquals(0, ChunkBitmap.nextSetBit(toArray(bitmap), 0));
+        assertEquals(-1, ChunkBitmap.nextSetBit(toArray(bitmap), 1));
+
+        bitmap.clear();
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAddAndRemove() throws Exception {
+        // Every thread owns the chunks with index % threads == thread, so all
+        // threads share the same longs, and a lost update would show
+        int threads = 4;
+        int rounds = 2000;
+        ChunkBitmap bitmap = new ChunkBitmap();
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            int owned = thread;
+            tasks.add(() -> {
+                long[] ownedBits = new long[ChunkBitmap.LENGTH_IN_LONGS];
+                for (int index = owned; index < ChunkBitmap.LENGTH_IN_LONGS * Long.SIZE; index += threads) {
+                    ownedBits[index >> 6] |= 1L << index;
+                }
+                barrier.await();
+                for (int round = 0; round < rounds; round++) {
+                    int index = (round * threads + owned) % (ChunkBitmap.LENGTH_IN_LONGS * Long.SIZE);
+                    bitmap.add(ChunkBitmap.getLocalX(index), ChunkBitmap.getLocalZ(index));
+                    assertTrue(isSet(toArray(bitmap), index));
+                    bitmap.remove(index);
+                    assertFalse(isSet(toArray(bitmap), index));
+
+                    bitmap.addAll(ownedBits);
+                    bitmap.removeAll(ownedBits);
+                }
+                // End with every other owned chunk
+                for (int index = owned; index < ChunkBitmap.LENGTH_IN_LONGS * Long.SIZE; index += threads * 2) {
+                    bitmap.add(ChunkBitmap.getLocalX(index), ChunkBitmap.getLocalZ(index));
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get(); // Rethrows assertion errors
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        long[] actual = toArray(bitmap);
+        for (int index = 0; index < ChunkBitmap.LENGTH_IN_LONGS * Long.SIZE; index++) {
+            assertEquals("Index " + index, index % (threads * 2) < threads, isSet(actual, index));
+        }
+    }
+}
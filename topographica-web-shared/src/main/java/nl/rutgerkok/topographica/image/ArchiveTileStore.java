@@ -0,0 +1,105 @@
+package nl.rutgerkok.topographica.image;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Stores the images in the {@link TileArchive} of the world.
+ *
+ * <p>
+ * Images that were stored as files of their own before switching to this
+ * storage are still read from their files, until they are written again.
+ */
+final class ArchiveTileStore implements TileStore {
+
+    private final TileArchive archive;
+    private final PngEncoder encoder;
+    private final FileTileStore oldFiles;
+    private final TileVersions versions;
+
+    ArchiveTileStore(Path worldFolder, PngEncoder encoder) {
+        this.encoder = Objects.requireNonNull(encoder, "encoder");
+        this.archive = TileArchive.forWorldFolder(worldFolder);
+        this.oldFiles = new FileTileStore(worldFolder, encoder, false);
+        this.versions = TileVersions.forWorldFolder(worldFolder);
+    }
+
+    @Override
+    public Set<Long> getImages(int zoomLevel) throws IOException {
+        Set<Long> images = oldFiles.getImages(zoomLevel);
+        images.addAll(archive.getImages(zoomLevel));
+        return images;
+    }
+
+    @Override
+    public Optional<Path> getPngFile(int zoomLevel, int x, int z) throws IOException {
+        if (archive.contains(zoomLevel, x, z)) {
+            return Optional.empty();
+        }
+        return oldFiles.getPngFile(zoomLevel, x, z);
+    }
+
+    @Override
+    public boolean isKnownMissing(int zoomLevel, int x, int z) {
+        // Old files first: they are deleted after the image was archived
+        return oldFiles.isKnownMissing(zoomLevel, x, z) && archive.isKnownMissing(zoomLevel, x, z);
+    }
+
+    @Override
+    public Optional<BufferedImage> read(int zoomLevel, int x, int z) {
+        try {
+            Optional<ByteBuffer> png = archive.read(zoomLevel, x, z);
+            if (!png.isPresent()) {
+                return oldFiles.read(zoomLevel, x, z);
+            }
+            byte[] bytes = new byte[png.get().remaining()];
+            png.get().get(bytes);
+            return TileImages.toTileImage(ImageIO.read(new MemoryCacheImageInputStream(
+                    new ByteArrayInputStream(bytes))));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<ByteBuffer> readPng(int zoomLevel, int x, int z) throws IOException {
+        Optional<ByteBuffer> png = archive.read(zoomLevel, x, z);
+        if (!png.isPresent()) {
+            return oldFiles.readPng(zoomLevel, x, z);
+        }
+        return png;
+    }
+
+    @Override
+    public void write(int zoomLevel, int x, int z, BufferedImage image) throws IOException {
+        byte[] png;
+        OptionalInt color = TileImages.getUniformColor(TileImages.getPixels(image));
+        if (color.isPresent()) {
+            // Already encoded
+            png = TileImages.getUniformPng(color.getAsInt());
+        } else {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            encoder.write(TileImages.getPixels(image), image.getWidth(), image.getHeight(), stream);
+            png = stream.toByteArray();
+        }
+        writePng(zoomLevel, x, z, png);
+        versions.markChanged(zoomLevel, x, z);
+    }
+
+    @Override
+    public void writePng(int zoomLevel, int x, int z, byte[] png) throws IOException {
+        archive.write(zoomLevel, x, z, png);
+        oldFiles.delete(zoomLevel, x, z);
+    }
+}
@@ -0,0 +1,113 @@
+package nl.rutgerkok.topographica.image;
+
+import static nl.rutgerkok.topographica.image.TileImages.SIZE_PIXELS;
+
+import java.util.Arrays;
+
+/**
+ * Creates zoomed out images by averaging every 2x2 block of pixels of the
+ * images one zoom level below. Works directly on the {@code int[]} pixels of
+ * {@code TYPE_INT_RGB} images.
+ */
+public final class Downsampler {
+
+    /**
+     * Color used for parts of the image without a child image.
+     */
+    private static final int EMPTY_COLOR = 0x000000;
+
+    /**
+     * Draws the four given images scaled down to half their size into the
+     * target image.
+     *
+     * @param topLeft
+     *            Pixels of the top left image, or null if there is no image.
+     * @param topRight
+     *            Pixels of the top right image, or null if there is no image.
+     * @param bottomLeft
+     *            Pixels of the bottom left image, or null if there is no
+     *            image.
+     * @param bottomRight
+     *            Pixels of the bottom right image, or null if there is no
+     *            image.
+     * @param target
+     *            Pixels of the target image.
+     */
+    public static void downsample(int[] topLeft, int[] topRight, int[] bottomLeft, int[] bottomRight, int[] target) {
+        int halfSize = SIZE_PIXELS / 2;
+        for (int targetZ = 0; targetZ < SIZE_PIXELS; targetZ++) {
+            boolean top = targetZ < halfSize;
+            int sourceRowStart = (targetZ % halfSize) * 2 * SIZE_PIXELS;
+            int targetRowStart = targetZ * SIZE_PIXELS;
+            downsampleRow(top ? topLeft : bottomLeft, sourceRowStart, target, targetRowStart);
+            downsampleRow(top ? topRight : bottomRight, sourceRowStart, target, targetRowStart + halfSize);
+        }
+    }
+
+    /**
+     * Draws the given image scaled down to half its size into one quarter of
+     * the target image. The rest of the target image is left untouched.
+     *
+     * @param source
+     *            Pixels of the image, or null if there is no image.
+     * @param quadrantX
+     *            0 for the left half of the target image, 1 for the right
+     *            half.
+     * @param quadrantZ
+     *            0 for the top half of the target image, 1 for the bottom
+     *            half.
+     * @param target
+     *            Pixels of the target image.
+     */
+    public static void downsampleQuadrant(int[] source, int quadrantX, int quadrantZ, int[] target) {
+        int halfSize = SIZE_PIXELS / 2;
+        for (int sourceZ = 0; sourceZ < SIZE_PIXELS; sourceZ += 2) {
+            int targetZ = quadrantZ * halfSize + sourceZ / 2;
+            downsampleRow(source, sourceZ * SIZE_PIXELS, target,
+                    targetZ * SIZE_PIXELS + quadrantX * halfSize);
+        }
+    }
+
+    /**
+     * Averages two rows of the source image into half a row of the target
+     * image.
+     *
+     * @param source
+     *            Pixels of the source image, or null if there is no image.
+     * @param sourceIndex
+     *            Start of the first of the two source rows.
+     * @param target
+     *            Pixels of the target image.
+     * @param targetIndex
+     *            Where to start writing in the target image.
+     */
+    private static void downsampleRow(int[] source, int sourceIndex, int[] target, int targetIndex) {
+        int halfSize = SIZE_PIXELS / 2;
+        if (source == null) {
+            Arrays.fill(target, targetIndex, targetIndex + halfSize, EMPTY_COLOR);
+            return;
+        }
+        int nextRowIndex = sourceIndex + SIZE_PIXELS;
+        for (int i = 0; i < halfSize; i++) {
+            int topLeft = source[sourceIndex++];
+            int topRight = source[sourceIndex++];
+            int bottomLeft = source[nextRowIndex++];
+            int bottomRight = source[nextRowIndex++];
+
+            // Red and blue are added together, as there is enough room
+            // between them for the sum of four values
+            int redBlue = (topLeft & 0xff00ff) + (topRight & 0xff00ff) + (bottomLeft & 0xff00ff)
+                    + (bottomRight & 0xff00ff);
+            int green = (topLeft & 0x00ff00) + (topRight & 0x00ff00) + (bottomLeft & 0x00ff00)
+                    + (bottomRight & 0x00ff00);
+
+            // Divide by four, rounding to nearest
+            target[targetIndex++] = (((redBlue + 0x020002) >>> 2) & 0xff00ff)
+                    | (((green + 0x000200) >>> 2) & 0x00ff00);
+        }
+    }
+
+    private Downsampler() {
+        // No instances
+    }
+}
@@ -0,0 +1,202 @@
+package nl.rutgerkok.topographica.image;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stores every image as a PNG file of its own, at
+ * {@link TileImages#getFile(Path, int, int, int)}.
+ *
+ * <p>
+ * Images of a single color are not stored as files, but in the
+ * {@link TileIndex} of the world. Optionally, images are deduplicated using
+ * that index as well. Which images have a file of their own is kept in the
+ * {@link TileBitmap} of the world, so that missing images can be detected
+ * without accessing the disk.
+ */
+final class FileTileStore implements TileStore {
+
+    private final TileBitmap bitmap;
+    private final boolean deduplicate;
+    private final PngEncoder encoder;
+    private final TileIndex tileIndex;
+    private final TileVersions versions;
+    private final Path worldFolder;
+
+    FileTileStore(Path worldFolder, PngEncoder encoder, boolean deduplicate) {
+        this.worldFolder = Objects.requireNonNull(worldFolder, "worldFolder");
+        this.encoder = Objects.requireNonNull(encoder, "encoder");
+        this.deduplicate = deduplicate;
+        this.tileIndex = TileIndex.forWorldFolder(worldFolder);
+        this.bitmap = TileBitmap.forWorldFolder(worldFolder);
+        this.versions = TileVersions.forWorldFolder(worldFolder);
+    }
+
+    /**
+     * Deletes an image, as it's now stored somewhere else. Does nothing if the
+     * image doesn't exist.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @throws IOException
+     *             If deleting fails.
+     */
+    void delete(int zoomLevel, int x, int z) throws IOException {
+        Files.deleteIfExists(TileImages.getFile(worldFolder, zoomLevel, x, z));
+        bitmap.set(zoomLevel, x, z, false);
+        tileIndex.remove(zoomLevel, x, z);
+    }
+
+    @Override
+    public Set<Long> getImages(int zoomLevel) throws IOException {
+        // Include the images without a file of their own
+        Set<Long> images = tileIndex.getImages(zoomLevel);
+        Path zoomFolder = TileImages.getFile(worldFolder, zoomLevel, 0, 0).getParent();
+        if (Files.exists(zoomFolder)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(zoomFolder, "*.png")) {
+                for (Path file : stream) {
+                    Long coords = TileImages.parseFileName(file.getFileName().toString());
+                    if (coords != null) {
+                        images.add(coords);
+                    }
+                }
+            }
+        }
+        return images;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This is the image file itself, or the blob file if the image is
+     * deduplicated. Images of a single color don't have a file.
+     */
+    @Override
+    public Optional<Path> getPngFile(int zoomLevel, int x, int z) throws IOException {
+        if (tileIndex.getColor(zoomLevel, x, z).isPresent()) {
+            return Optional.empty();
+        }
+        Optional<Path> blobFile = tileIndex.getBlobFile(zoomLevel, x, z);
+        if (blobFile.isPresent()) {
+            return blobFile;
+        }
+        if (!bitmap.contains(zoomLevel, x, z)) {
+            return Optional.empty();
+        }
+        return Optional.of(TileImages.getFile(worldFolder, zoomLevel, x, z));
+    }
+
+    @Override
+    public boolean isKnownMissing(int zoomLevel, int x, int z) {
+        // Index first: an image is removed from it after its file is written
+        return tileIndex.isKnownMissing(zoomLevel, x, z) && bitmap.isKnownMissing(zoomLevel, x, z);
+    }
+
+    @Override
+    public Optional<BufferedImage> read(int zoomLevel, int x, int z) {
+        // Must be checked before the file: the file is written before the
+        // image is removed from the index
+        OptionalInt color = tileIndex.getColor(zoomLevel, x, z);
+        if (color.isPresent()) {
+            return Optional.of(TileImages.createUniformImage(color.getAsInt()));
+        }
+        try {
+            Optional<Path> file = getPngFile(zoomLevel, x, z);
+            if (!file.isPresent()) {
+                return Optional.empty();
+            }
+            return TileImages.toTileImage(ImageIO.read(file.get().toFile()));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<ByteBuffer> readPng(int zoomLevel, int x, int z) throws IOException {
+        OptionalInt color = tileIndex.getColor(zoomLevel, x, z);
+        if (color.isPresent()) {
+            // Shared by many images, so no disk access is needed
+            return Optional.of(ByteBuffer.wrap(TileImages.getUniformPng(color.getAsInt())).asReadOnlyBuffer());
+        }
+        Optional<Path> file = getPngFile(zoomLevel, x, z);
+        if (!file.isPresent()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(ByteBuffer.wrap(Files.readAllBytes(file.get())));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * If all pixels have the same color, the color is stored in the
+     * {@link TileIndex} of the world instead, and the file is deleted.
+     * Otherwise, the image is written like
+     * {@link #writePng(int, int, int, byte[])}.
+     */
+    @Override
+    public void write(int zoomLevel, int x, int z, BufferedImage image) throws IOException {
+        OptionalInt color = TileImages.getUniformColor(TileImages.getPixels(image));
+        if (color.isPresent()) {
+            tileIndex.setColor(zoomLevel, x, z, color.getAsInt());
+            Files.deleteIfExists(TileImages.getFile(worldFolder, zoomLevel, x, z));
+            bitmap.set(zoomLevel, x, z, false);
+        } else {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            encoder.write(TileImages.getPixels(image), image.getWidth(), image.getHeight(), stream);
+            writePng(zoomLevel, x, z, stream.toByteArray());
+        }
+        versions.markChanged(zoomLevel, x, z);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The image is written to a temporary file first, which then replaces the
+     * file. Deduplicated images are stored in the {@link TileIndex} of the
+     * world under the hash of their PNG file instead, and the file is
+     * deleted.
+     */
+    @Override
+    public void writePng(int zoomLevel, int x, int z, byte[] png) throws IOException {
+        Path file = TileImages.getFile(worldFolder, zoomLevel, x, z);
+        if (deduplicate) {
+            tileIndex.storeBlob(zoomLevel, x, z, png);
+            Files.deleteIfExists(file);
+            bitmap.set(zoomLevel, x, z, false);
+            return;
+        }
+
+        Path tempFile = TileImages.createTempFile(file);
+        try {
+            Files.write(tempFile, png);
+            TileImages.moveIntoPlace(tempFile, file);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        bitmap.set(zoomLevel, x, z, true);
+        tileIndex.remove(zoomLevel, x, z);
+    }
+}
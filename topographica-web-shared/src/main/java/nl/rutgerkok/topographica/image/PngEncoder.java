@@ -0,0 +1,422 @@
+package nl.rutgerkok.topographica.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PNG files of 8-bit RGB images directly from the {@code int[]} pixels
+ * of a {@code TYPE_INT_RGB} image. Unlike {@code ImageIO}, the compression
+ * level, the compression strategy and the row filters can be chosen. The
+ * {@link Deflater} and all buffers are reused for every image written by the
+ * same thread.
+ *
+ * <p>
+ * Map images often use only a few colors. If enabled, images with at most 256
+ * colors are written as indexed images, using one byte per pixel instead of
+ * three.
+ *
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class PngEncoder {
+
+    /**
+     * The filter that is applied to every row of pixels before compression.
+     * Filtering makes the data more compressible.
+     */
+    public enum RowFilter {
+        /**
+         * Store the bytes as-is. For the map images, which mostly consist of
+         * areas of a single color, this usually gives the smallest files, as
+         * the compression can then find repeated pixels more easily.
+         */
+        NONE,
+        /**
+         * Store the difference with the pixel to the left.
+         */
+        SUB,
+        /**
+         * Store the difference with the pixel above.
+         */
+        UP,
+        /**
+         * Store the difference with the average of the pixels to the left and
+         * above.
+         */
+        AVERAGE,
+        /**
+         * Store the difference with the pixel to the left, above or above
+         * left, whichever is the closest to (left + above - above left).
+         */
+        PAETH,
+        /**
+         * Try all of the above filters for every row, and use the one with
+         * the smallest sum of absolute differences. This is the heuristic that
+         * libpng uses. Works well for images with smooth color gradients.
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * Buffers of a single thread.
+     */
+    private static final class ThreadState {
+        private final CRC32 crc = new CRC32();
+        private final Deflater deflater = new Deflater();
+        private byte[] compressed = new byte[64 * 1024];
+        private int compressedLength;
+        private byte[] currentRow = new byte[0];
+        private byte[][] filteredRows = new byte[SINGLE_FILTERS.length][0];
+        private byte[] indices = new byte[0];
+        private final byte[] palette = new byte[MAX_PALETTE_SIZE * BYTES_PER_PIXEL];
+        private final byte[] paletteIndices = new byte[PALETTE_TABLE_SIZE];
+        private final int[] paletteKeys = new int[PALETTE_TABLE_SIZE];
+        private int paletteSize;
+        private byte[] previousRow = new byte[0];
+
+        /**
+         * Builds the palette of the image, and stores the palette index of
+         * every pixel.
+         *
+         * @param pixels
+         *            The pixels of the image.
+         * @return True if the image has at most 256 colors, false otherwise.
+         */
+        private boolean buildPalette(int[] pixels) {
+            if (indices.length < pixels.length) {
+                indices = new byte[pixels.length];
+            }
+            Arrays.fill(paletteKeys, EMPTY_KEY);
+            paletteSize = 0;
+
+            int lastColor = EMPTY_KEY;
+            byte lastIndex = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                int color = pixels[i] & 0xffffff;
+                if (color != lastColor) {
+                    // Open addressing, the table is never more than a quarter
+                    // full
+                    int slot = (color * 0x9E3779B1) >>> (Integer.SIZE - PALETTE_TABLE_BITS);
+                    while (paletteKeys[slot] != color && paletteKeys[slot] != EMPTY_KEY) {
+                        slot = (slot + 1) & (PALETTE_TABLE_SIZE - 1);
+                    }
+                    if (paletteKeys[slot] == EMPTY_KEY) {
+                        if (paletteSize == MAX_PALETTE_SIZE) {
+                            return false;
+                        }
+                        paletteKeys[slot] = color;
+                        paletteIndices[slot] = (byte) paletteSize;
+                        palette[paletteSize * BYTES_PER_PIXEL] = (byte) (color >> 16);
+                        palette[paletteSize * BYTES_PER_PIXEL + 1] = (byte) (color >> 8);
+                        palette[paletteSize * BYTES_PER_PIXEL + 2] = (byte) color;
+                        paletteSize++;
+                    }
+                    lastColor = color;
+                    lastIndex = paletteIndices[slot];
+                }
+                indices[i] = lastIndex;
+            }
+            return true;
+        }
+
+        /**
+         * Compresses the current input of the deflater.
+         *
+         * @param finish
+         *            True if this is the last input, false otherwise.
+         */
+        private void deflate(boolean finish) {
+            if (finish) {
+                deflater.finish();
+            }
+            while (true) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength,
+                        compressed.length - compressedLength);
+                if (finish ? deflater.finished() : deflater.needsInput() && compressedLength < compressed.length) {
+                    return;
+                }
+            }
+        }
+
+        private void prepare(int rowLength, int level, int strategy) {
+            if (currentRow.length < rowLength) {
+                currentRow = new byte[rowLength];
+                previousRow = new byte[rowLength];
+                for (int i = 0; i < filteredRows.length; i++) {
+                    filteredRows[i] = new byte[rowLength + 1];
+                }
+            } else {
+                Arrays.fill(previousRow, 0, rowLength, (byte) 0);
+            }
+            compressedLength = 0;
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setStrategy(strategy);
+        }
+    }
+
+    /**
+     * Bytes per pixel: red, green and blue.
+     */
+    private static final int BYTES_PER_PIXEL = 3;
+
+    /**
+     * Marks an empty slot in the palette hash table. Never equal to a color,
+     * as colors don't use the highest byte.
+     */
+    private static final int EMPTY_KEY = -1;
+
+    /**
+     * Fast compression, for images that are redrawn often.
+     */
+    public static final PngEncoder FAST = new PngEncoder(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY,
+            RowFilter.NONE, true);
+
+    /**
+     * Maximum amount of colors of an indexed image.
+     */
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private static final int PALETTE_TABLE_BITS = 10;
+
+    /**
+     * Size of the hash table used to build the palette, four times the
+     * maximum palette size.
+     */
+    private static final int PALETTE_TABLE_SIZE = 1 << PALETTE_TABLE_BITS;
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    /**
+     * All filters that {@link RowFilter#ADAPTIVE} chooses from.
+     */
+    private static final RowFilter[] SINGLE_FILTERS = { RowFilter.NONE, RowFilter.SUB, RowFilter.UP,
+            RowFilter.AVERAGE, RowFilter.PAETH };
+
+    /**
+     * Best compression, for archiving images.
+     */
+    public static final PngEncoder SMALLEST = new PngEncoder(Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+            RowFilter.NONE, true);
+
+    private static final ThreadLocal<ThreadState> THREAD_STATE = ThreadLocal.withInitial(ThreadState::new);
+
+    private static int filterRow(RowFilter filter, byte[] row, byte[] previousRow, int length, int bytesPerPixel,
+            byte[] out) {
+        out[0] = (byte) filter.ordinal();
+        int sum = 0;
+        switch (filter) {
+            case NONE:
+                for (int i = 0; i < length; i++) {
+                    byte value = row[i];
+                    out[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                return sum;
+            case SUB:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel];
+                    byte value = (byte) (row[i] - left);
+                    out[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                return sum;
+            case UP:
+                for (int i = 0; i < length; i++) {
+                    byte value = (byte) (row[i] - previousRow[i]);
+                    out[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                return sum;
+            case AVERAGE:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel] & 0xff;
+                    int up = previousRow[i] & 0xff;
+                    byte value = (byte) (row[i] - ((left + up) >>> 1));
+                    out[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                return sum;
+            case PAETH:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel] & 0xff;
+                    int up = previousRow[i] & 0xff;
+                    int upLeft = i < bytesPerPixel ? 0 : previousRow[i - bytesPerPixel] & 0xff;
+                    byte value = (byte) (row[i] - paethPredictor(left, up, upLeft));
+                    out[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                return sum;
+            default:
+                throw new IllegalArgumentException("Not a single filter: " + filter);
+        }
+    }
+
+    private static int paethPredictor(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        if (distanceUp <= distanceUpLeft) {
+            return up;
+        }
+        return upLeft;
+    }
+
+    private static void writeChunk(OutputStream out, CRC32 crc, String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        writeInt(out, length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private final int level;
+    private final boolean palette;
+    private final int strategy;
+    private final RowFilter rowFilter;
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param level
+     *            The compression level, from {@link Deflater#BEST_SPEED} (1)
+     *            to {@link Deflater#BEST_COMPRESSION} (9). 0 disables
+     *            compression.
+     * @param strategy
+     *            The compression strategy, like
+     *            {@link Deflater#DEFAULT_STRATEGY}.
+     * @param rowFilter
+     *            The row filter. Not used for indexed images, as the
+     *            differences between palette indices say nothing about the
+     *            differences between colors.
+     * @param palette
+     *            True to write images with at most 256 colors as indexed
+     *            images, false to always write RGB images.
+     */
+    public PngEncoder(int level, int strategy, RowFilter rowFilter, boolean palette) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid level: " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Invalid strategy: " + strategy);
+        }
+        this.level = level;
+        this.strategy = strategy;
+        this.rowFilter = Objects.requireNonNull(rowFilter, "rowFilter");
+        this.palette = palette;
+    }
+
+    /**
+     * Writes the given pixels as a PNG file.
+     *
+     * @param pixels
+     *            The pixels, stored as 0xRRGGBB, row by row.
+     * @param width
+     *            Width of the image.
+     * @param height
+     *            Height of the image.
+     * @param out
+     *            The stream to write to. The stream is not closed.
+     * @throws IOException
+     *             If writing to the stream fails.
+     */
+    public void write(int[] pixels, int width, int height, OutputStream out) throws IOException {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + pixels.length);
+        }
+        ThreadState state = THREAD_STATE.get();
+        boolean indexed = palette && state.buildPalette(pixels);
+        int bytesPerPixel = indexed ? 1 : BYTES_PER_PIXEL;
+        int rowLength = width * bytesPerPixel;
+        state.prepare(rowLength, level, strategy);
+
+        for (int y = 0; y < height; y++) {
+            // Convert to bytes
+            byte[] row = state.currentRow;
+            if (indexed) {
+                System.arraycopy(state.indices, y * width, row, 0, width);
+            } else {
+                for (int x = 0, i = y * width, j = 0; x < width; x++, i++) {
+                    int pixel = pixels[i];
+                    row[j++] = (byte) (pixel >> 16);
+                    row[j++] = (byte) (pixel >> 8);
+                    row[j++] = (byte) pixel;
+                }
+            }
+
+            // Filter
+            byte[] filtered;
+            if (indexed) {
+                filtered = state.filteredRows[0];
+                filterRow(RowFilter.NONE, row, state.previousRow, rowLength, bytesPerPixel, filtered);
+            } else if (rowFilter == RowFilter.ADAPTIVE) {
+                int bestSum = Integer.MAX_VALUE;
+                filtered = null;
+                for (int i = 0; i < state.filteredRows.length; i++) {
+                    int sum = filterRow(SINGLE_FILTERS[i], row, state.previousRow, rowLength, bytesPerPixel,
+                            state.filteredRows[i]);
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        filtered = state.filteredRows[i];
+                    }
+                }
+            } else {
+                filtered = state.filteredRows[0];
+                filterRow(rowFilter, row, state.previousRow, rowLength, bytesPerPixel, filtered);
+            }
+
+            // Compress
+            state.deflater.setInput(filtered, 0, rowLength + 1);
+            state.deflate(false);
+
+            state.currentRow = state.previousRow;
+            state.previousRow = row;
+        }
+        state.deflate(true);
+
+        byte[] header = new byte[13];
+        header[0] = (byte) (width >>> 24);
+        header[1] = (byte) (width >>> 16);
+        header[2] = (byte) (width >>> 8);
+        header[3] = (byte) width;
+        header[4] = (byte) (height >>> 24);
+        header[5] = (byte) (height >>> 16);
+        header[6] = (byte) (height >>> 8);
+        header[7] = (byte) height;
+        header[8] = 8; // Bit depth
+        header[9] = (byte) (indexed ? 3 : 2); // Color type: indexed or RGB
+        // Compression method, filter method and interlace method are all 0
+
+        out.write(SIGNATURE);
+        writeChunk(out, state.crc, "IHDR", header, header.length);
+        if (indexed) {
+            writeChunk(out, state.crc, "PLTE", state.palette, state.paletteSize * BYTES_PER_PIXEL);
+        }
+        writeChunk(out, state.crc, "IDAT", state.compressed, state.compressedLength);
+        writeChunk(out, state.crc, "IEND", new byte[0], 0);
+    }
+}
@@ -0,0 +1,269 @@
+package nl.rutgerkok.topographica.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Rebuilds all zoomed out images of a world from the images of zoom level 1.
+ * No world data is needed for this, so this can also be done outside the
+ * Minecraft server. The work is divided over all threads of a
+ * {@link ForkJoinPool}: every zoomed out image is a task that waits for the
+ * tasks of its four child images.
+ *
+ */
+public final class PyramidBuilder {
+
+    /**
+     * Reads a single image of zoom level 1.
+     */
+    private class ReadImageTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int x;
+        private final int z;
+
+        private ReadImageTask(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        protected int[] compute() {
+            imagesRead.increment();
+            return store.read(1, x, z).map(TileImages::getPixels).orElse(null);
+        }
+    }
+
+    /**
+     * The result of a rebuild.
+     */
+    public static final class Result {
+        private final long imagesRead;
+        private final long imagesWritten;
+        private final long nanos;
+
+        private Result(long imagesRead, long imagesWritten, long nanos) {
+            this.imagesRead = imagesRead;
+            this.imagesWritten = imagesWritten;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Gets the amount of images of zoom level 1 that were read.
+         *
+         * @return The amount of images.
+         */
+        public long getImagesRead() {
+            return imagesRead;
+        }
+
+        /**
+         * Gets the amount of zoomed out images that were written.
+         *
+         * @return The amount of images.
+         */
+        public long getImagesWritten() {
+            return imagesWritten;
+        }
+
+        /**
+         * Gets the amount of images that were read or written per second.
+         *
+         * @return The amount of images per second.
+         */
+        public double getImagesPerSecond() {
+            if (nanos == 0) {
+                return 0;
+            }
+            return (imagesRead + imagesWritten) / getSeconds();
+        }
+
+        /**
+         * Gets the time the rebuild took.
+         *
+         * @return The time in seconds.
+         */
+        public double getSeconds() {
+            return nanos / 1_000_000_000.0;
+        }
+    }
+
+    /**
+     * Builds a single zoomed out image, after the child images have been
+     * built.
+     */
+    private class ZoomedOutImageTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int x;
+        private final int z;
+        private final int zoomLevel;
+        private final boolean returnPixels;
+
+        private ZoomedOutImageTask(int zoomLevel, int x, int z, boolean returnPixels) {
+            this.zoomLevel = zoomLevel;
+            this.x = x;
+            this.z = z;
+            this.returnPixels = returnPixels;
+        }
+
+        @Override
+        protected int[] compute() {
+            // Start a task for every child that exists
+            List<ForkJoinTask<int[]>> children = new ArrayList<>(4);
+            for (int i = 0; i < 4; i++) {
+                // Top left, top right, bottom left, bottom right
+                int childX = x * 2 + (i & 1);
+                int childZ = z * 2 + (i >> 1);
+                if (!imagesByZoomLevel.get(zoomLevel - 2).contains(IntPair.toLong(childX, childZ))) {
+                    children.add(null);
+                } else if (zoomLevel == 2) {
+                    children.add(new ReadImageTask(childX, childZ));
+                } else {
+                    children.add(new ZoomedOutImageTask(zoomLevel - 1, childX, childZ, true));
+                }
+            }
+            for (ForkJoinTask<int[]> child : children) {
+                if (child != null) {
+                    child.fork();
+                }
+            }
+
+            int[][] subImages = new int[4][];
+            for (int i = 0; i < subImages.length; i++) {
+                ForkJoinTask<int[]> child = children.get(i);
+                if (child != null) {
+                    subImages[i] = child.join();
+                }
+            }
+
+            BufferedImage image = TileImages.createImage();
+            int[] pixels = TileImages.getPixels(image);
+            Downsampler.downsample(subImages[0], subImages[1], subImages[2], subImages[3], pixels);
+            try {
+                store.write(zoomLevel, x, z, image);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            imagesWritten.increment();
+            return returnPixels ? pixels : null;
+        }
+    }
+
+    /**
+     * Used to let the builder decide the amount of zoom levels.
+     */
+    public static final int AUTOMATIC_ZOOM_LEVELS = 0;
+
+    /**
+     * Checks if the given images all fit in the 2x2 images around 0,0. If so,
+     * no further zoom levels are needed.
+     *
+     * @param images
+     *            The images, stored as {@link IntPair}s.
+     * @return True if no further zoom levels are needed.
+     */
+    private static boolean isMostZoomedOut(Set<Long> images) {
+        for (long image : images) {
+            int x = IntPair.getX(image);
+            int z = IntPair.getZ(image);
+            if (x < -1 || x > 0 || z < -1 || z > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final LongAdder imagesRead = new LongAdder();
+    private final LongAdder imagesWritten = new LongAdder();
+    private final TileStore store;
+
+    /**
+     * The coordinates of all images of every zoom level, stored as
+     * {@link IntPair}s. Index 0 is zoom level 1.
+     */
+    private final List<Set<Long>> imagesByZoomLevel;
+
+    /**
+     * Creates a new builder for the given world.
+     *
+     * @param store
+     *            The images of the world. The zoomed out images are written
+     *            to the same store.
+     * @param zoomLevels
+     *            The total amount of zoom levels, including zoom level 1. Use
+     *            {@link #AUTOMATIC_ZOOM_LEVELS} to add zoom levels until the
+     *            most zoomed out level has at most 2x2 images.
+     * @throws IOException
+     *             If the images of zoom level 1 cannot be found.
+     */
+    public PyramidBuilder(TileStore store, int zoomLevels) throws IOException {
+        if (zoomLevels < 0) {
+            throw new IllegalArgumentException("Invalid zoomLevels: " + zoomLevels);
+        }
+        this.store = Objects.requireNonNull(store, "store");
+
+        Set<Long> images = store.getImages(1);
+
+        // Calculate which images are needed at the higher zoom levels
+        this.imagesByZoomLevel = new ArrayList<>();
+        this.imagesByZoomLevel.add(images);
+        while (zoomLevels == AUTOMATIC_ZOOM_LEVELS ? !isMostZoomedOut(images)
+                : this.imagesByZoomLevel.size() < zoomLevels) {
+            Set<Long> zoomedOutImages = new HashSet<>();
+            for (long childImage : images) {
+                zoomedOutImages.add(IntPair.toLong(IntPair.getX(childImage) >> 1, IntPair.getZ(childImage) >> 1));
+            }
+            this.imagesByZoomLevel.add(zoomedOutImages);
+            images = zoomedOutImages;
+        }
+    }
+
+    /**
+     * Rebuilds all zoomed out images. Blocks until all images have been
+     * written. Should only be called once for every builder.
+     *
+     * @param pool
+     *            The pool to run the work on.
+     * @return Statistics about the rebuild.
+     * @throws IOException
+     *             If writing an image fails.
+     */
+    public Result build(ForkJoinPool pool) throws IOException {
+        long startNanos = System.nanoTime();
+        int topZoomLevel = imagesByZoomLevel.size();
+        if (topZoomLevel > 1) {
+            try {
+                pool.invoke(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        List<ZoomedOutImageTask> tasks = new ArrayList<>();
+                        for (long image : imagesByZoomLevel.get(topZoomLevel - 1)) {
+                            tasks.add(new ZoomedOutImageTask(topZoomLevel, IntPair.getX(image), IntPair.getZ(image),
+                                    false));
+                        }
+                        invokeAll(tasks);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return new Result(imagesRead.sum(), imagesWritten.sum(), System.nanoTime() - startNanos);
+    }
+}
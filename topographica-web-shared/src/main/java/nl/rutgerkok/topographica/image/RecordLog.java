@@ -0,0 +1,288 @@
+package nl.rutgerkok.topographica.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A file of records of a fixed size, used by the {@link TileIndex} and the
+ * {@link TileVersions}. New records are appended to the end, so that other
+ * processes (like the standalone web server) can follow the changes by
+ * reading only the new records. The file starts with a header containing a
+ * random generation number, which changes when the file is compacted.
+ *
+ * <p>
+ * Only one process may write to the file. Once this process appends a record,
+ * it keeps the file open and never reads it again, as the records in memory
+ * are then always up to date.
+ *
+ * <p>
+ * Instances are not thread-safe, the owner must synchronize all calls.
+ */
+final class RecordLog {
+
+    /**
+     * The records in memory, kept by the owner of the log.
+     */
+    interface Records {
+        /**
+         * Removes all records, as the file will be read again from the start.
+         */
+        void clear();
+
+        /**
+         * Reads a record, and applies it to the records in memory.
+         *
+         * @param buffer
+         *            The buffer, positioned at the start of the record.
+         * @throws IOException
+         *             If the record is invalid.
+         */
+        void read(ByteBuffer buffer) throws IOException;
+
+        /**
+         * Gets the amount of current records, so the records that were not
+         * replaced by a later record.
+         *
+         * @return The amount.
+         */
+        int size();
+
+        /**
+         * Writes all current records, for compacting the file.
+         *
+         * @param buffer
+         *            The buffer, with room for {@link #size()} records.
+         */
+        void writeAll(ByteBuffer buffer);
+    }
+
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    /**
+     * A file with more than this amount of superseded records is compacted,
+     * if there are also more superseded records than current records.
+     */
+    private static final int MAX_SUPERSEDED_RECORDS = 4096;
+
+    /**
+     * Changes made by other processes are checked at most this often.
+     */
+    private static final long REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path file;
+    private long generation;
+    private long lastRefreshNanos;
+    private boolean loaded = false;
+    private final int magic;
+
+    /**
+     * Position in the file up to which all records have been read.
+     */
+    private long readPosition;
+    private final Records records;
+    private final int recordSize;
+
+    /**
+     * Opened once this process appends a record.
+     */
+    private FileChannel writeChannel;
+
+    /**
+     * Creates a new log. Nothing is read yet.
+     *
+     * @param file
+     *            The file.
+     * @param magic
+     *            The number at the start of the file, different for every
+     *            kind of file.
+     * @param recordSize
+     *            The size of a single record in bytes.
+     * @param records
+     *            The records in memory.
+     */
+    RecordLog(Path file, int magic, int recordSize, Records records) {
+        this.file = Objects.requireNonNull(file, "file");
+        this.magic = magic;
+        this.recordSize = recordSize;
+        this.records = Objects.requireNonNull(records, "records");
+    }
+
+    /**
+     * Appends a record to the file. The owner must apply the record to the
+     * records in memory afterwards, but only if no exception was thrown.
+     *
+     * @param recordWriter
+     *            Writes the record to the given buffer.
+     * @throws IOException
+     *             If writing the file fails.
+     */
+    void append(Consumer<ByteBuffer> recordWriter) throws IOException {
+        startWriting();
+
+        // Only the writing process compacts: if another process replaced the
+        // file, the records appended after it read the file would be lost.
+        // This is done before appending, so that the records in memory
+        // include all records of the file.
+        long supersededRecords = (readPosition - HEADER_SIZE) / recordSize - records.size();
+        if (supersededRecords > MAX_SUPERSEDED_RECORDS && supersededRecords > records.size()) {
+            compact();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        recordWriter.accept(record);
+        record.flip();
+        // A record that failed halfway is overwritten by the next record
+        long position = readPosition;
+        while (record.hasRemaining()) {
+            position += writeChannel.write(record, position);
+        }
+        readPosition = position;
+    }
+
+    /**
+     * Rewrites the file with only the current records, using a new generation
+     * number.
+     *
+     * @throws IOException
+     *             If writing fails.
+     */
+    private void compact() throws IOException {
+        int recordCount = records.size();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + recordCount * recordSize);
+        long newGeneration = ThreadLocalRandom.current().nextLong();
+        buffer.putInt(magic);
+        buffer.putLong(newGeneration);
+        records.writeAll(buffer);
+        buffer.flip();
+
+        if (writeChannel != null) {
+            writeChannel.close();
+            writeChannel = null;
+        }
+        Path tempFile = TileImages.createTempFile(file);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            TileImages.moveIntoPlace(tempFile, file);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        generation = newGeneration;
+        readPosition = HEADER_SIZE + (long) recordCount * recordSize;
+        writeChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Checks whether {@link #refreshIfDue()} would read the file.
+     *
+     * @return True if it would, false otherwise.
+     */
+    boolean isRefreshDue() {
+        return writeChannel == null && (!loaded || System.nanoTime() - lastRefreshNanos >= REFRESH_INTERVAL_NANOS);
+    }
+
+    /**
+     * Reads the records that were added since the last call, or the whole file
+     * if it was compacted in the meantime.
+     *
+     * @throws IOException
+     *             If reading fails.
+     */
+    private void refresh() throws IOException {
+        lastRefreshNanos = System.nanoTime();
+        loaded = true;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) == -1) {
+                    throw new IOException("File too short: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != magic) {
+                throw new IOException("Unknown file format: " + file);
+            }
+            long fileGeneration = header.getLong();
+            if (fileGeneration != generation || readPosition == 0 || channel.size() < readPosition) {
+                // Compacted by someone else, or never read
+                records.clear();
+                generation = fileGeneration;
+                readPosition = HEADER_SIZE;
+            }
+
+            // Read new records, ignoring an incompletely written last record
+            long recordsSize = (channel.size() - readPosition) / recordSize * recordSize;
+            if (recordsSize == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) recordsSize);
+            channel.position(readPosition);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+            buffer.flip();
+            int recordCount = 0;
+            while (buffer.remaining() >= recordSize) {
+                records.read(buffer);
+                recordCount++;
+            }
+            readPosition += (long) recordCount * recordSize;
+        } catch (NoSuchFileException e) {
+            // Nothing stored yet
+            records.clear();
+            readPosition = 0;
+        }
+    }
+
+    /**
+     * Reads the changes made by another process, if this wasn't done
+     * recently. Errors are ignored, the old records are then used until the
+     * next try.
+     */
+    void refreshIfDue() {
+        if (!isRefreshDue()) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (IOException e) {
+            // Try again later
+        }
+    }
+
+    /**
+     * Reads the file for the last time, and opens it for appending. Does
+     * nothing if this was already done.
+     *
+     * @throws IOException
+     *             If reading or opening the file fails.
+     */
+    void startWriting() throws IOException {
+        if (writeChannel != null) {
+            return;
+        }
+        refresh();
+        if (readPosition == 0) {
+            // New file
+            compact();
+        } else {
+            writeChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+            // Remove an incompletely written record, left behind by a crash
+            writeChannel.truncate(readPosition);
+        }
+    }
+}
@@ -0,0 +1,698 @@
+package nl.rutgerkok.topographica.image;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Packs the PNG files of the images of a world into a single file for every
+ * zoom level. The files are stored in the "archive" folder of the world as
+ * "zoom-N.G.pack", where G is the generation of the file.
+ *
+ * <p>
+ * Every record in a file consists of the coordinates of an image, the length
+ * of its PNG file and the PNG file itself. New records are appended to the
+ * end, so that other processes (like the standalone web server) can follow
+ * the changes by reading only the new records. The location of the newest
+ * record of every image is kept in memory. Records of images that were
+ * written again are removed in the background once they take up more than
+ * half of a file: the remaining records are copied to a file of the next
+ * generation, after which the old file is deleted.
+ *
+ * <p>
+ * PNG files are read from a memory-mapped copy of the file where possible, so
+ * that they can be sent to a web browser without copying them first.
+ *
+ * <p>
+ * Instances are thread-safe. There is only one instance per world folder, so
+ * that the renderer and the web server of the plugin share the same archive.
+ * Only one process may write to the archive of a world at a time.
+ */
+final class TileArchive {
+
+    /**
+     * The file of a single zoom level. All methods must be called while
+     * holding the lock of the archive.
+     */
+    private static final class Pack {
+        private FileChannel appendChannel;
+        private final FileChannel channel;
+        private final Path file;
+        private final long generation;
+
+        /**
+         * Amount of bytes used by the newest records of all images.
+         */
+        private long liveBytes;
+
+        /**
+         * The location of the PNG file of every image, by {@link IntPair}
+         * coordinates. Stored as the offset in the file, shifted left by
+         * {@link TileArchive#LENGTH_BITS}, and the length.
+         */
+        private final Map<Long, Long> locations = new HashMap<>();
+
+        /**
+         * The start of the file is mapped into memory in segments of
+         * {@link TileArchive#SEGMENT_SIZE}. Only the last segment can be
+         * smaller.
+         */
+        private long mappedEnd;
+        private final List<ByteBuffer> segments = new ArrayList<>();
+
+        /**
+         * Position in the file up to which all records have been read.
+         */
+        private long readPosition;
+
+        /**
+         * Amount of bytes used by records of images that were written again.
+         */
+        private long supersededBytes;
+
+        private Pack(Path file, long generation) throws IOException {
+            this.file = file;
+            this.generation = generation;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.readPosition = HEADER_SIZE;
+            this.mappedEnd = 0;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a tile archive: " + file);
+                }
+                readNewRecords();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void append(int x, int z, byte[] png) throws IOException {
+            if (appendChannel == null) {
+                appendChannel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                if (appendChannel.size() > readPosition) {
+                    // Remove a record that was incompletely written by a
+                    // crashed writer, as new records would end up after it
+                    appendChannel.truncate(readPosition);
+                }
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + png.length);
+            record.putInt(x);
+            record.putInt(z);
+            record.putInt(png.length);
+            record.put(png);
+            record.flip();
+            while (record.hasRemaining()) {
+                appendChannel.write(record);
+            }
+            readNewRecords();
+        }
+
+        private void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (appendChannel != null) {
+                    appendChannel.close();
+                }
+            }
+        }
+
+        private void map() throws IOException {
+            // Replace the last segment if it is incomplete
+            int firstSegment = (int) (mappedEnd >>> SEGMENT_BITS);
+            while (segments.size() > firstSegment) {
+                segments.remove(segments.size() - 1);
+            }
+            for (long start = (long) firstSegment << SEGMENT_BITS; start < readPosition; start += SEGMENT_SIZE) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, readPosition - start)));
+            }
+            mappedEnd = readPosition;
+        }
+
+        private ByteBuffer read(long location) throws IOException {
+            long offset = location >>> LENGTH_BITS;
+            int length = (int) (location & LENGTH_MASK);
+            long end = offset + length;
+            if (end <= mappedEnd && offset >>> SEGMENT_BITS == (end - 1) >>> SEGMENT_BITS) {
+                ByteBuffer segment = segments.get((int) (offset >>> SEGMENT_BITS)).duplicate();
+                int start = (int) (offset & (SEGMENT_SIZE - 1));
+                segment.limit(start + length);
+                segment.position(start);
+                return segment.slice();
+            }
+
+            // Recently written, or spread over two segments
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(channel, buffer, offset);
+            return buffer;
+        }
+
+        private void readNewRecords() throws IOException {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (readPosition + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, readPosition);
+                int x = header.getInt();
+                int z = header.getInt();
+                int length = header.getInt();
+                long dataStart = readPosition + RECORD_HEADER_SIZE;
+                if (length <= 0 || length > LENGTH_MASK || dataStart + length > size) {
+                    // Still being written, or damaged by a crash of the
+                    // writer, which removes the record before appending
+                    break;
+                }
+
+                Long oldLocation = locations.put(IntPair.toLong(x, z), dataStart << LENGTH_BITS | length);
+                if (oldLocation != null) {
+                    long oldBytes = RECORD_HEADER_SIZE + (oldLocation & LENGTH_MASK);
+                    liveBytes -= oldBytes;
+                    supersededBytes += oldBytes;
+                }
+                liveBytes += RECORD_HEADER_SIZE + length;
+                readPosition = dataStart + length;
+            }
+            if (readPosition - mappedEnd >= MIN_MAP_BYTES) {
+                map();
+            }
+        }
+    }
+
+    private static final ConcurrentMap<Path, TileArchive> BY_WORLD_FOLDER = new ConcurrentHashMap<>();
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("Topographica archive compactor")
+            .setDaemon(true)
+            .build());
+
+    private static final String FILE_EXTENSION = ".pack";
+    private static final String FOLDER_NAME = "archive";
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    /**
+     * Amount of bits used to store the length of a PNG file in a location.
+     */
+    private static final int LENGTH_BITS = 24;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    private static final int MAGIC = 0x54505041;
+
+    /**
+     * Files are only compacted if this amount of space can be saved.
+     */
+    private static final long MIN_COMPACTION_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Newly written records are mapped into memory once they take up at least
+     * this amount of bytes. Until then, they are read using normal reads.
+     * This prevents creating a new mapping for every written image.
+     */
+    private static final long MIN_MAP_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * X (int), z (int), length (int), followed by the PNG file.
+     */
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 3;
+
+    /**
+     * Changes made by other processes are checked at most this often.
+     */
+    private static final long REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Memory-mapped buffers are limited to 2 GiB, so larger files are mapped
+     * in segments of 1 GiB.
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    /**
+     * Copies a record to another file. Only uses positional reads, so the lock
+     * doesn't need to be held.
+     *
+     * @param source
+     *            The file to copy from.
+     * @param coords
+     *            The coordinates of the image.
+     * @param location
+     *            The location of the PNG file in the source.
+     * @param out
+     *            The file to append the record to.
+     * @throws IOException
+     *             If reading or writing fails.
+     */
+    private static void copyRecord(FileChannel source, long coords, long location, FileChannel out)
+            throws IOException {
+        int length = (int) (location & LENGTH_MASK);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(IntPair.getX(coords));
+        record.putInt(IntPair.getZ(coords));
+        record.putInt(length);
+        readFully(source, record, location >>> LENGTH_BITS);
+        writeFully(out, record);
+    }
+
+    /**
+     * Checks if the images of the given world are stored in an archive.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @return True if the world has an archive, false otherwise.
+     */
+    static boolean exists(Path worldFolder) {
+        return Files.isDirectory(worldFolder.resolve(FOLDER_NAME));
+    }
+
+    /**
+     * Gets the archive of the given world.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @return The archive.
+     */
+    static TileArchive forWorldFolder(Path worldFolder) {
+        return BY_WORLD_FOLDER.computeIfAbsent(worldFolder.toAbsolutePath().normalize(), TileArchive::new);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Zoom levels that are being compacted.
+     */
+    private final Set<Integer> compacting = new HashSet<>();
+    private final Path folder;
+    private long lastRefreshNanos;
+    private boolean loaded = false;
+
+    /**
+     * Guards all fields. Held while accessing the disk, so threads that must
+     * not wait use {@link Lock#tryLock()}.
+     */
+    private final Lock lock = new ReentrantLock();
+    private final Map<Integer, Pack> packsByZoomLevel = new HashMap<>();
+
+    /**
+     * Creates a new instance. Outside of tests, use
+     * {@link #forWorldFolder(Path)} instead: another instance for the same
+     * world folder behaves like another process.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     */
+    TileArchive(Path worldFolder) {
+        this.folder = worldFolder.resolve(FOLDER_NAME);
+    }
+
+    /**
+     * Copies the newest records of all images to a file of the next
+     * generation, and then switches to that file.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @throws IOException
+     *             If reading or writing fails.
+     */
+    void compact(int zoomLevel) throws IOException {
+        Pack pack;
+        Map<Long, Long> copiedLocations;
+        lock.lock();
+        try {
+            pack = packsByZoomLevel.get(zoomLevel);
+            if (pack == null) {
+                return;
+            }
+            copiedLocations = new HashMap<>(pack.locations);
+        } finally {
+            lock.unlock();
+        }
+
+        // Copying can take a while, so do it without holding the lock. The
+        // copied records stay valid, as the file is only appended to
+        Path newFile = getFile(zoomLevel, pack.generation + 1);
+        Path tempFile = newFile.resolveSibling(newFile.getFileName() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.flip();
+                writeFully(out, header);
+                for (Map.Entry<Long, Long> entry : copiedLocations.entrySet()) {
+                    copyRecord(pack.channel, entry.getKey(), entry.getValue(), out);
+                }
+            }
+
+            lock.lock();
+            try {
+                refresh();
+                if (packsByZoomLevel.get(zoomLevel) != pack) {
+                    // Compacted by someone else
+                    return;
+                }
+                // Copy the images that were written in the meantime
+                try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                    for (Map.Entry<Long, Long> entry : pack.locations.entrySet()) {
+                        if (!entry.getValue().equals(copiedLocations.get(entry.getKey()))) {
+                            copyRecord(pack.channel, entry.getKey(), entry.getValue(), out);
+                        }
+                    }
+                }
+                TileImages.moveIntoPlace(tempFile, newFile);
+                packsByZoomLevel.put(zoomLevel, new Pack(newFile, pack.generation + 1));
+                pack.close();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        try {
+            Files.deleteIfExists(pack.file);
+        } catch (IOException e) {
+            // Still in use by another process, try again on the next refresh
+        }
+    }
+
+    /**
+     * Checks whether the archive contains an image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return True if the image is in the archive, false otherwise.
+     */
+    boolean contains(int zoomLevel, int x, int z) {
+        lock.lock();
+        try {
+            refreshIfDue();
+            Pack pack = packsByZoomLevel.get(zoomLevel);
+            return pack != null && pack.locations.containsKey(IntPair.toLong(x, z));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path getFile(int zoomLevel, long generation) {
+        return folder.resolve("zoom-" + zoomLevel + "." + generation + FILE_EXTENSION);
+    }
+
+    /**
+     * Gets the coordinates of all images of a zoom level.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @return The coordinates, as {@link IntPair}s.
+     */
+    Set<Long> getImages(int zoomLevel) {
+        lock.lock();
+        try {
+            refreshIfDue();
+            Pack pack = packsByZoomLevel.get(zoomLevel);
+            if (pack == null) {
+                return new HashSet<>();
+            }
+            return new HashSet<>(pack.locations.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether there's a file of any generation for the given zoom
+     * level.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @return True if there is, false otherwise.
+     * @throws IOException
+     *             If the folder can't be read.
+     */
+    private boolean hasFile(int zoomLevel) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder,
+                "zoom-" + zoomLevel + ".*" + FILE_EXTENSION)) {
+            return stream.iterator().hasNext();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether an image is known not to be in the archive, without
+     * accessing the disk and without waiting for other threads.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return True if the archive is up to date and the image is not in it.
+     *         False otherwise, so also when this is not known.
+     */
+    boolean isKnownMissing(int zoomLevel, int x, int z) {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (!loaded || System.nanoTime() - lastRefreshNanos >= REFRESH_INTERVAL_NANOS) {
+                return false;
+            }
+            Pack pack = packsByZoomLevel.get(zoomLevel);
+            return pack == null || !pack.locations.containsKey(IntPair.toLong(x, z));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the PNG file of an image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The PNG file, or empty if the image is not in the archive. The
+     *         buffer may be a read-only view on a memory-mapped file.
+     * @throws IOException
+     *             If reading fails.
+     */
+    Optional<ByteBuffer> read(int zoomLevel, int x, int z) throws IOException {
+        lock.lock();
+        try {
+            refreshIfDue();
+            Pack pack = packsByZoomLevel.get(zoomLevel);
+            if (pack == null) {
+                return Optional.empty();
+            }
+            Long location = pack.locations.get(IntPair.toLong(x, z));
+            if (location == null) {
+                return Optional.empty();
+            }
+            return Optional.of(pack.read(location));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the newest generation of every file, and reads the records
+     * that were added since the last call.
+     *
+     * @throws IOException
+     *             If reading fails.
+     */
+    private void refresh() throws IOException {
+        lastRefreshNanos = System.nanoTime();
+        loaded = true;
+
+        // Find the newest generation of every zoom level
+        Map<Integer, Long> generations = new HashMap<>();
+        List<Path> oldFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "zoom-*" + FILE_EXTENSION)) {
+            for (Path file : stream) {
+                String[] parts = file.getFileName().toString().split("[-.]");
+                if (parts.length != 4) {
+                    continue;
+                }
+                try {
+                    int zoomLevel = Integer.parseInt(parts[1]);
+                    long generation = Long.parseLong(parts[2]);
+                    Long previous = generations.get(zoomLevel);
+                    if (previous == null || previous < generation) {
+                        generations.put(zoomLevel, generation);
+                        if (previous != null) {
+                            oldFiles.add(getFile(zoomLevel, previous));
+                        }
+                    } else {
+                        oldFiles.add(file);
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing stored yet
+        }
+
+        // A zoom level that can't be read must not prevent reading the others
+        IOException failure = null;
+        for (Map.Entry<Integer, Long> entry : generations.entrySet()) {
+            int zoomLevel = entry.getKey();
+            long generation = entry.getValue();
+            Pack pack = packsByZoomLevel.get(zoomLevel);
+            try {
+                if (pack != null && pack.generation == generation) {
+                    pack.readNewRecords();
+                    continue;
+                }
+                packsByZoomLevel.put(zoomLevel, new Pack(getFile(zoomLevel, generation), generation));
+                if (pack != null) {
+                    pack.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        for (Path oldFile : oldFiles) {
+            try {
+                Files.deleteIfExists(oldFile);
+            } catch (IOException e) {
+                // Still in use, try again later
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void refreshIfDue() {
+        if (loaded && System.nanoTime() - lastRefreshNanos < REFRESH_INTERVAL_NANOS) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (IOException e) {
+            // Try again later, use the old locations for now
+        }
+    }
+
+    /**
+     * Stores the PNG file of an image. If the archive contains a lot of
+     * superseded records afterwards, it is compacted in the background.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param png
+     *            The PNG file.
+     * @throws IOException
+     *             If writing fails.
+     */
+    void write(int zoomLevel, int x, int z, byte[] png) throws IOException {
+        lock.lock();
+        try {
+            if (png.length == 0 || png.length > LENGTH_MASK) {
+                throw new IllegalArgumentException("Invalid PNG length: " + png.length);
+            }
+            refreshIfDue();
+            Pack pack = packsByZoomLevel.get(zoomLevel);
+            if (pack == null) {
+                if (hasFile(zoomLevel)) {
+                    // Starting over would throw away all images of the zoom level
+                    throw new IOException("Failed to open the archive of zoom level " + zoomLevel + " in " + folder);
+                }
+                Path file = getFile(zoomLevel, 1);
+                Path tempFile = TileImages.createTempFile(file);
+                try {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC);
+                    Files.write(tempFile, header.array());
+                    // Never replaces an existing file
+                    Files.move(tempFile, file);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+                pack = new Pack(file, 1);
+                packsByZoomLevel.put(zoomLevel, pack);
+            }
+            pack.append(x, z, png);
+
+            if (pack.supersededBytes >= MIN_COMPACTION_BYTES && pack.supersededBytes > pack.liveBytes
+                    && compacting.add(zoomLevel)) {
+                COMPACTOR.execute(() -> {
+                    try {
+                        compact(zoomLevel);
+                    } catch (IOException e) {
+                        // Try again after the next write
+                    } finally {
+                        lock.lock();
+                        try {
+                            compacting.remove(zoomLevel);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package nl.rutgerkok.topographica.image;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Keeps track of which images of a world are stored as a file of their own,
+ * using one bit per image. This way, requests for images that don't exist,
+ * like the images beyond the edges of the map, can be answered without
+ * accessing the disk.
+ *
+ * <p>
+ * The files of a zoom level are listed when the zoom level is first used.
+ * Afterwards, the bitmap is updated whenever this process writes or deletes
+ * an image. Until then, changes made by other processes (like the renderer,
+ * for the standalone web server) are noticed using the modification time of
+ * the zoom folder. This time is checked at most once per second, and only
+ * when an image is not found. The folder is only listed again once it hasn't
+ * changed for {@link #TICK_MILLIS}, so that a folder the renderer is writing
+ * to isn't listed over and over. Like for {@link TileArchive}, only one
+ * process may write the images of a world at a time.
+ *
+ * <p>
+ * Instances are thread-safe. There is only one instance per world folder, so
+ * that the renderer and the web server of the plugin share the same bitmap.
+ */
+final class TileBitmap {
+
+    /**
+     * The bits of a single zoom level. All methods must be called while
+     * holding {@link TileBitmap#lock}.
+     */
+    private static final class ZoomLevel {
+        /**
+         * Bits of blocks of {@link #BLOCK_SIZE} by {@link #BLOCK_SIZE} images,
+         * by block coordinates as {@link IntPair}.
+         */
+        private final Map<Long, long[]> blocks = new HashMap<>();
+        private long lastCheckNanos;
+        private long listedNanos;
+
+        /**
+         * True if the zoom folder was modified so shortly before it was
+         * listed that a change in the same clock tick wouldn't have changed
+         * its modification time.
+         */
+        private boolean listedInSameTick;
+
+        /**
+         * Modification time of the zoom folder when it was listed, or null if
+         * the folder didn't exist.
+         */
+        private FileTime listedModifiedTime;
+
+        private boolean get(int x, int z) {
+            long[] block = blocks.get(IntPair.toLong(x >> BLOCK_BITS, z >> BLOCK_BITS));
+            if (block == null) {
+                return false;
+            }
+            int index = (z & BLOCK_MASK) << BLOCK_BITS | (x & BLOCK_MASK);
+            return (block[index >>> 6] & (1L << index)) != 0;
+        }
+
+        private void set(int x, int z, boolean exists) {
+            long blockCoords = IntPair.toLong(x >> BLOCK_BITS, z >> BLOCK_BITS);
+            long[] block = blocks.get(blockCoords);
+            if (block == null) {
+                if (!exists) {
+                    return;
+                }
+                block = new long[BLOCK_SIZE * BLOCK_SIZE / Long.SIZE];
+                blocks.put(blockCoords, block);
+            }
+            int index = (z & BLOCK_MASK) << BLOCK_BITS | (x & BLOCK_MASK);
+            if (exists) {
+                block[index >>> 6] |= 1L << index;
+            } else {
+                block[index >>> 6] &= ~(1L << index);
+            }
+        }
+    }
+
+    private static final int BLOCK_BITS = 5;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final ConcurrentMap<Path, TileBitmap> BY_WORLD_FOLDER = new ConcurrentHashMap<>();
+
+    /**
+     * Changes made by other processes are checked at most this often.
+     */
+    private static final long REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Modification times of folders may be this coarse, depending on the file
+     * system.
+     */
+    private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * A folder that keeps changing is listed again after this time anyway.
+     */
+    private static final long MAX_LISTING_AGE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Gets the bitmap of the given world.
+     *
+     * @param worldFolder
+     *            The images folder of the world, containing the zoom-1 folder.
+     * @return The bitmap.
+     */
+    static TileBitmap forWorldFolder(Path worldFolder) {
+        return BY_WORLD_FOLDER.computeIfAbsent(worldFolder.toAbsolutePath().normalize(), TileBitmap::new);
+    }
+
+    private static FileTime getModifiedTime(Path folder) throws IOException {
+        try {
+            return Files.getLastModifiedTime(folder);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Guards all fields. Held while listing a folder, so threads that must
+     * not wait use {@link Lock#tryLock()}.
+     */
+    private final Lock lock = new ReentrantLock();
+    private final Path worldFolder;
+
+    /**
+     * Set once this process writes an image. It's then the only process
+     * writing images, so the folders don't need to be checked for changes
+     * anymore.
+     */
+    private boolean writing = false;
+    private final Map<Integer, ZoomLevel> zoomLevels = new HashMap<>();
+
+    private TileBitmap(Path worldFolder) {
+        this.worldFolder = Objects.requireNonNull(worldFolder, "worldFolder");
+    }
+
+    /**
+     * Checks whether an image is stored as a file of its own. The image can
+     * be removed by another process right after this check, so reading the
+     * file can still fail.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return True if the file exists, false otherwise.
+     * @throws IOException
+     *             If listing the files of the zoom level fails.
+     */
+    boolean contains(int zoomLevel, int x, int z) throws IOException {
+        lock.lock();
+        try {
+            ZoomLevel level = zoomLevels.get(zoomLevel);
+            if (level == null) {
+                level = list(zoomLevel);
+                zoomLevels.put(zoomLevel, level);
+                return level.get(x, z);
+            }
+            if (level.get(x, z)) {
+                return true;
+            }
+            if (writing) {
+                return false;
+            }
+
+            long now = System.nanoTime();
+            if (now - level.lastCheckNanos < REFRESH_INTERVAL_NANOS) {
+                return false;
+            }
+            level.lastCheckNanos = now;
+            FileTime modifiedTime = getModifiedTime(getZoomFolder(zoomLevel));
+            if (!level.listedInSameTick && Objects.equals(level.listedModifiedTime, modifiedTime)) {
+                return false;
+            }
+            if (modifiedTime != null && System.currentTimeMillis() - modifiedTime.toMillis() < TICK_MILLIS
+                    && now - level.listedNanos < MAX_LISTING_AGE_NANOS) {
+                // Still being written to, so a listing would soon be outdated
+                // again, and it would end up in the same tick
+                return false;
+            }
+            level = list(zoomLevel);
+            zoomLevels.put(zoomLevel, level);
+            return level.get(x, z);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path getZoomFolder(int zoomLevel) {
+        return TileImages.getFile(worldFolder, zoomLevel, 0, 0).getParent();
+    }
+
+    /**
+     * Checks whether an image is known not to be stored as a file of its
+     * own, without accessing the disk and without waiting for other threads.
+     * Unlike {@link #contains(int, int, int)}, this never lists a folder.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return True if the zoom level was listed, the image wasn't in it and
+     *         it's not yet time to check for changes by other processes.
+     *         False otherwise, so also when this is not known.
+     */
+    boolean isKnownMissing(int zoomLevel, int x, int z) {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            ZoomLevel level = zoomLevels.get(zoomLevel);
+            if (level == null || level.get(x, z)) {
+                return false;
+            }
+            return writing || System.nanoTime() - level.lastCheckNanos < REFRESH_INTERVAL_NANOS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ZoomLevel list(int zoomLevel) throws IOException {
+        Path zoomFolder = getZoomFolder(zoomLevel);
+        long startMillis = System.currentTimeMillis();
+        FileTime modifiedTime = getModifiedTime(zoomFolder);
+
+        ZoomLevel level = new ZoomLevel();
+        if (modifiedTime != null) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(zoomFolder, "*.png")) {
+                for (Path file : stream) {
+                    Long coords = TileImages.parseFileName(file.getFileName().toString());
+                    if (coords != null) {
+                        level.set(IntPair.getX(coords), IntPair.getZ(coords), true);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted in the meantime
+            }
+        }
+        level.lastCheckNanos = System.nanoTime();
+        level.listedNanos = level.lastCheckNanos;
+        level.listedModifiedTime = modifiedTime;
+        level.listedInSameTick = modifiedTime != null && startMillis - modifiedTime.toMillis() < TICK_MILLIS;
+        return level;
+    }
+
+    /**
+     * Records that this process wrote or deleted the file of an image. Must
+     * be called after the file has been moved into place or deleted.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param exists
+     *            True if the file was written, false if it was deleted.
+     */
+    void set(int zoomLevel, int x, int z, boolean exists) {
+        lock.lock();
+        try {
+            writing = true;
+            ZoomLevel level = zoomLevels.get(zoomLevel);
+            if (level != null) {
+                // Otherwise the change will be seen when the folder is listed
+                level.set(x, z, exists);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package nl.rutgerkok.topographica.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Helper methods for the images that make up the map. Every image is a square
+ * of {@link #SIZE_PIXELS} by {@link #SIZE_PIXELS} pixels. At zoom level 1, an
+ * image shows exactly one region. The images are stored in a
+ * {@link TileStore}.
+ *
+ */
+public final class TileImages {
+
+    /**
+     * The location of an image, parsed from its file path.
+     */
+    public static final class FileLocation {
+        /**
+         * Parses the path of an image file.
+         *
+         * @param file
+         *            The file, like "images/world/zoom-1/r.0.0.png".
+         * @return The location, or empty if the path is not of the format of
+         *         {@link TileImages#getFile(Path, int, int, int)}.
+         */
+        public static Optional<FileLocation> parse(Path file) {
+            Path zoomFolder = file.getParent();
+            if (zoomFolder == null || zoomFolder.getParent() == null) {
+                return Optional.empty();
+            }
+            Long coords = parseFileName(file.getFileName().toString());
+            String zoomFolderName = zoomFolder.getFileName().toString();
+            if (coords == null || !zoomFolderName.startsWith(ZOOM_FOLDER_PREFIX)) {
+                return Optional.empty();
+            }
+            try {
+                int zoomLevel = Integer.parseInt(zoomFolderName.substring(ZOOM_FOLDER_PREFIX.length()));
+                return Optional.of(new FileLocation(zoomFolder.getParent(), zoomLevel, coords));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+
+        private final Path worldFolder;
+        private final int x;
+        private final int z;
+        private final int zoomLevel;
+
+        private FileLocation(Path worldFolder, int zoomLevel, long coords) {
+            this.worldFolder = worldFolder;
+            this.zoomLevel = zoomLevel;
+            this.x = IntPair.getX(coords);
+            this.z = IntPair.getZ(coords);
+        }
+
+        /**
+         * Gets the images folder of the world.
+         *
+         * @return The folder.
+         */
+        public Path getWorldFolder() {
+            return worldFolder;
+        }
+
+        /**
+         * Gets the x coordinate of the image.
+         *
+         * @return The x coordinate.
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * Gets the z coordinate of the image.
+         *
+         * @return The z coordinate.
+         */
+        public int getZ() {
+            return z;
+        }
+
+        /**
+         * Gets the zoom level of the image.
+         *
+         * @return The zoom level.
+         */
+        public int getZoomLevel() {
+            return zoomLevel;
+        }
+    }
+
+    /**
+     * Width and height of an image, in pixels.
+     */
+    public static final int SIZE_PIXELS = 256;
+
+    /**
+     * PNG files of images of a single color, by color.
+     */
+    private static final Cache<Integer, byte[]> UNIFORM_PNGS = CacheBuilder.newBuilder().maximumSize(256).build();
+
+    private static final String ZOOM_FOLDER_PREFIX = "zoom-";
+
+    /**
+     * Creates a new, black image.
+     *
+     * @return The image, of {@link BufferedImage#TYPE_INT_RGB}.
+     */
+    public static BufferedImage createImage() {
+        return new BufferedImage(SIZE_PIXELS, SIZE_PIXELS, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Creates an empty temporary file next to the given file. Missing
+     * directories are created. Unlike {@link Files#createTempFile}, the file
+     * gets the normal permissions of new files, so that a web server running
+     * as another user can still read the file after it has been moved into
+     * place.
+     *
+     * @param file
+     *            The file.
+     * @return The temporary file.
+     * @throws IOException
+     *             If creating the file fails.
+     */
+    static Path createTempFile(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        long random = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        return Files.createFile(file.resolveSibling(file.getFileName() + "." + random + ".tmp"));
+    }
+
+    /**
+     * Creates an image of a single color.
+     *
+     * @param color
+     *            The color, as 0xRRGGBB.
+     * @return The image, of {@link BufferedImage#TYPE_INT_RGB}.
+     */
+    static BufferedImage createUniformImage(int color) {
+        BufferedImage image = createImage();
+        Arrays.fill(getPixels(image), color);
+        return image;
+    }
+
+    /**
+     * Gets the file of an image, when stored as a file of its own. This is
+     * also the location of the image on the web server.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @param zoomLevel
+     *            The zoom level, 1 or higher.
+     * @param x
+     *            The x coordinate of the image. At zoom level 1, this is the
+     *            region x.
+     * @param z
+     *            The z coordinate of the image. At zoom level 1, this is the
+     *            region z.
+     * @return The file.
+     */
+    public static Path getFile(Path worldFolder, int zoomLevel, int x, int z) {
+        return worldFolder.resolve(ZOOM_FOLDER_PREFIX + zoomLevel).resolve("r." + x + "." + z + ".png");
+    }
+
+    /**
+     * Gets direct access to the pixels of an image.
+     *
+     * @param image
+     *            The image, must be of {@link BufferedImage#TYPE_INT_RGB}.
+     * @return The pixels.
+     */
+    public static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Gets the color of the pixels, if they all have the same color.
+     *
+     * @param pixels
+     *            The pixels.
+     * @return The color, or empty if there are multiple colors.
+     */
+    static OptionalInt getUniformColor(int[] pixels) {
+        int color = pixels[0] & 0xffffff;
+        for (int pixel : pixels) {
+            if ((pixel & 0xffffff) != color) {
+                return OptionalInt.empty();
+            }
+        }
+        return OptionalInt.of(color);
+    }
+
+    /**
+     * Gets the PNG file of an image of a single color. These PNG files are
+     * kept in memory, as they are shared by many images.
+     *
+     * @param color
+     *            The color, as 0xRRGGBB.
+     * @return The PNG file. Must not be modified.
+     */
+    static byte[] getUniformPng(int color) {
+        try {
+            return UNIFORM_PNGS.get(color, () -> {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                PngEncoder.SMALLEST.write(getPixels(createUniformImage(color)), SIZE_PIXELS, SIZE_PIXELS, stream);
+                return stream.toByteArray();
+            });
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException((IOException) e.getCause());
+        }
+    }
+
+    /**
+     * Moves a temporary file to its final location, replacing any existing
+     * file. The move is atomic if the file system supports it.
+     *
+     * @param tempFile
+     *            The temporary file.
+     * @param file
+     *            The final location.
+     * @throws IOException
+     *             If moving fails.
+     */
+    static void moveIntoPlace(Path tempFile, Path file) throws IOException {
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Parses an image file name like "r.2.-3.png".
+     *
+     * @param fileName
+     *            The file name.
+     * @return The coordinates, stored as an {@link IntPair}, or null if the
+     *         file name is not of the correct format.
+     */
+    static Long parseFileName(String fileName) {
+        String[] fileParts = fileName.split("\\.");
+        if (fileParts.length != 4 || !fileParts[0].equals("r") || !fileParts[3].equals("png")) {
+            return null;
+        }
+        try {
+            return IntPair.toLong(Integer.parseInt(fileParts[1]), Integer.parseInt(fileParts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks a decoded image, and converts it to
+     * {@link BufferedImage#TYPE_INT_RGB} if necessary.
+     *
+     * @param image
+     *            The decoded image, or null if no suitable image reader was
+     *            found.
+     * @return The image, or empty if it is not one of our images.
+     */
+    static Optional<BufferedImage> toTileImage(BufferedImage image) {
+        if (image == null || image.getWidth() != SIZE_PIXELS || image.getHeight() != SIZE_PIXELS) {
+            return Optional.empty();
+        }
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            // Convert the image, so that the pixels can be accessed directly
+            BufferedImage converted = createImage();
+            image.getRGB(0, 0, SIZE_PIXELS, SIZE_PIXELS, getPixels(converted), 0, SIZE_PIXELS);
+            image = converted;
+        }
+        return Optional.of(image);
+    }
+
+    private TileImages() {
+        // No instances
+    }
+}
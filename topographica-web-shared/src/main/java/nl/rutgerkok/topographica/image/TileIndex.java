@@ -0,0 +1,486 @@
+package nl.rutgerkok.topographica.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Index of the images of a world that are not stored as a file of their own.
+ * This is the case for:
+ *
+ * <ul>
+ * <li>Images that consist of a single color, like the black area outside the
+ * render radius or a large ocean. Only the color is stored.</li>
+ * <li>Deduplicated images. The PNG file of these images is stored under the
+ * hash of its contents, so that identical images (like the many images of a
+ * large ocean or desert at higher zoom levels) share a single file. These
+ * files are deleted once no image uses them anymore.</li>
+ * </ul>
+ *
+ * <p>
+ * The index is stored in a {@link RecordLog} in the images folder of the
+ * world. Only the process that draws the images writes to the file, other
+ * processes (like the standalone web server) follow the changes.
+ *
+ * <p>
+ * Instances are thread-safe. There is only one instance per world folder, so
+ * that the renderer and the web server of the plugin share the same index.
+ */
+public final class TileIndex {
+
+    /**
+     * How an image is stored. Immutable.
+     */
+    private static final class Entry {
+        private static Entry ofColor(int color) {
+            return new Entry(color, null);
+        }
+
+        private static Entry ofHash(HashCode hash) {
+            return new Entry(NO_COLOR, hash);
+        }
+
+        private final int color;
+        private final HashCode hash;
+
+        private Entry(int color, HashCode hash) {
+            this.color = color;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return color == other.color && Objects.equals(hash, other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return color * 31 + Objects.hashCode(hash);
+        }
+    }
+
+    private static final String BLOBS_FOLDER = "blobs";
+    private static final ConcurrentMap<Path, TileIndex> BY_WORLD_FOLDER = new ConcurrentHashMap<>();
+
+    /**
+     * Name of the index file, in the images folder of the world.
+     */
+    public static final String FILE_NAME = "tile-index.bin";
+
+    private static final int HASH_BYTES = 16;
+    private static final int MAGIC = 0x54504932;
+
+    private static final int NO_COLOR = -1;
+
+    /**
+     * Zoom level (byte), x (int), z (int), record type (byte), data (color
+     * int or hash, padded to the size of a hash).
+     */
+    private static final int RECORD_SIZE = 1 + Integer.BYTES * 2 + 1 + HASH_BYTES;
+
+    private static final byte RECORD_TYPE_COLOR = 1;
+    private static final byte RECORD_TYPE_HASH = 2;
+    private static final byte RECORD_TYPE_REMOVED = 0;
+
+    /**
+     * Gets the index of the given world.
+     *
+     * @param worldFolder
+     *            The images folder of the world, containing the zoom-1 folder.
+     * @return The index.
+     */
+    public static TileIndex forWorldFolder(Path worldFolder) {
+        return BY_WORLD_FOLDER.computeIfAbsent(worldFolder.toAbsolutePath().normalize(), TileIndex::new);
+    }
+
+    /**
+     * Amount of images using a hash, by hash. Hashes that are no longer used
+     * are removed.
+     */
+    private final Map<HashCode, Integer> blobReferences = new HashMap<>();
+    private final Path blobsFolder;
+
+    /**
+     * Entries by {@link IntPair} coordinates, by zoom level.
+     */
+    private final Map<Integer, Map<Long, Entry>> entriesByZoomLevel = new HashMap<>();
+
+    /**
+     * Guards all fields. Held while accessing the disk, so threads that must
+     * not wait use {@link Lock#tryLock()}.
+     */
+    private final Lock lock = new ReentrantLock();
+    private final RecordLog log;
+
+    /**
+     * Creates a new instance. Outside of tests, use
+     * {@link #forWorldFolder(Path)} instead: another instance for the same
+     * world folder behaves like another process.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     */
+    TileIndex(Path worldFolder) {
+        this.blobsFolder = worldFolder.resolve(BLOBS_FOLDER);
+        this.log = new RecordLog(worldFolder.resolve(FILE_NAME), MAGIC, RECORD_SIZE, new RecordLog.Records() {
+            @Override
+            public void clear() {
+                entriesByZoomLevel.clear();
+                blobReferences.clear();
+            }
+
+            @Override
+            public void read(ByteBuffer buffer) throws IOException {
+                // Blobs that are no longer used were already deleted by the
+                // process that wrote the record
+                apply(buffer.get(), buffer.getInt(), buffer.getInt(), readEntry(buffer));
+            }
+
+            @Override
+            public int size() {
+                return getEntryCount();
+            }
+
+            @Override
+            public void writeAll(ByteBuffer buffer) {
+                for (Map.Entry<Integer, Map<Long, Entry>> zoomEntry : entriesByZoomLevel.entrySet()) {
+                    for (Map.Entry<Long, Entry> entry : zoomEntry.getValue().entrySet()) {
+                        writeRecord(buffer, zoomEntry.getKey(), IntPair.getX(entry.getKey()),
+                                IntPair.getZ(entry.getKey()), entry.getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    private void append(int zoomLevel, int x, int z, Entry entry) throws IOException {
+        log.append(buffer -> writeRecord(buffer, zoomLevel, x, z, entry));
+        HashCode unusedHash = apply(zoomLevel, x, z, entry);
+        if (unusedHash != null) {
+            try {
+                Files.deleteIfExists(getBlobFile(unusedHash));
+            } catch (IOException e) {
+                // Only wastes some disk space
+            }
+        }
+    }
+
+    /**
+     * Updates the index in memory.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param entry
+     *            The new entry, or null to remove the image.
+     * @return The hash that the image used before, if no image uses it
+     *         anymore, otherwise null.
+     */
+    private HashCode apply(int zoomLevel, int x, int z, Entry entry) {
+        long coords = IntPair.toLong(x, z);
+        Entry oldEntry;
+        if (entry == null) {
+            Map<Long, Entry> entries = entriesByZoomLevel.get(zoomLevel);
+            oldEntry = entries == null ? null : entries.remove(coords);
+        } else {
+            oldEntry = entriesByZoomLevel.computeIfAbsent(zoomLevel, zoom -> new HashMap<>()).put(coords, entry);
+            if (entry.hash != null) {
+                blobReferences.merge(entry.hash, 1, Integer::sum);
+            }
+        }
+        if (oldEntry == null || oldEntry.hash == null) {
+            return null;
+        }
+        Integer references = blobReferences.computeIfPresent(oldEntry.hash, (hash, count) -> count == 1 ? null
+                : count - 1);
+        return references == null ? oldEntry.hash : null;
+    }
+
+    private Entry getEntry(int zoomLevel, int x, int z) {
+        log.refreshIfDue();
+        Map<Long, Entry> entries = entriesByZoomLevel.get(zoomLevel);
+        if (entries == null) {
+            return null;
+        }
+        return entries.get(IntPair.toLong(x, z));
+    }
+
+    private int getEntryCount() {
+        int entryCount = 0;
+        for (Map<Long, Entry> entries : entriesByZoomLevel.values()) {
+            entryCount += entries.size();
+        }
+        return entryCount;
+    }
+
+    private Path getBlobFile(HashCode hash) {
+        String name = hash.toString();
+        return blobsFolder.resolve(name.substring(0, 2)).resolve(name + ".png");
+    }
+
+    /**
+     * Gets the PNG file of a deduplicated image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The file, or empty if the image is not deduplicated.
+     */
+    public Optional<Path> getBlobFile(int zoomLevel, int x, int z) {
+        lock.lock();
+        try {
+            Entry entry = getEntry(zoomLevel, x, z);
+            if (entry == null || entry.hash == null) {
+                return Optional.empty();
+            }
+            return Optional.of(getBlobFile(entry.hash));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the color of an image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The color, as 0xRRGGBB, or empty if the image is not of a single
+     *         color.
+     */
+    public OptionalInt getColor(int zoomLevel, int x, int z) {
+        lock.lock();
+        try {
+            Entry entry = getEntry(zoomLevel, x, z);
+            if (entry == null || entry.color == NO_COLOR) {
+                return OptionalInt.empty();
+            }
+            return OptionalInt.of(entry.color);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets all images in this index of the given zoom level, so both the
+     * images of a single color and the deduplicated images.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @return The coordinates of the images, as {@link IntPair}s.
+     */
+    public Set<Long> getImages(int zoomLevel) {
+        lock.lock();
+        try {
+            log.refreshIfDue();
+            Map<Long, Entry> entries = entriesByZoomLevel.get(zoomLevel);
+            if (entries == null) {
+                return new HashSet<>();
+            }
+            return new HashSet<>(entries.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if there are any deduplicated images in this index.
+     *
+     * @return True if there are, false otherwise.
+     */
+    public boolean hasBlobs() {
+        lock.lock();
+        try {
+            log.refreshIfDue();
+            return !blobReferences.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether an image is known not to be in this index, without
+     * accessing the disk and without waiting for other threads.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return True if the index is up to date and the image is not in it.
+     *         False otherwise, so also when this is not known.
+     */
+    public boolean isKnownMissing(int zoomLevel, int x, int z) {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (log.isRefreshDue()) {
+                return false;
+            }
+            Map<Long, Entry> entries = entriesByZoomLevel.get(zoomLevel);
+            return entries == null || !entries.containsKey(IntPair.toLong(x, z));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry readEntry(ByteBuffer records) throws IOException {
+        byte type = records.get();
+        byte[] data = new byte[HASH_BYTES];
+        records.get(data);
+        switch (type) {
+            case RECORD_TYPE_REMOVED:
+                return null;
+            case RECORD_TYPE_COLOR:
+                return Entry.ofColor(ByteBuffer.wrap(data).getInt());
+            case RECORD_TYPE_HASH:
+                return Entry.ofHash(HashCode.fromBytes(data));
+            default:
+                throw new IOException("Unknown record type " + type + " in the tile index");
+        }
+    }
+
+    /**
+     * Removes an image from the index, as it's now stored as a file of its
+     * own. Does nothing if the image is not in the index.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @throws IOException
+     *             If writing the index fails.
+     */
+    public void remove(int zoomLevel, int x, int z) throws IOException {
+        lock.lock();
+        try {
+            if (getEntry(zoomLevel, x, z) == null) {
+                return;
+            }
+            append(zoomLevel, x, z, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores that an image consists of a single color.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param color
+     *            The color, as 0xRRGGBB.
+     * @throws IOException
+     *             If writing the index fails.
+     */
+    public void setColor(int zoomLevel, int x, int z, int color) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = Entry.ofColor(color & 0xffffff);
+            if (entry.equals(getEntry(zoomLevel, x, z))) {
+                return;
+            }
+            append(zoomLevel, x, z, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the PNG file of an image under the hash of its contents. If
+     * another image has exactly the same PNG file, the file is shared.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param png
+     *            The contents of the PNG file.
+     * @throws IOException
+     *             If writing the PNG file or the index fails.
+     */
+    public void storeBlob(int zoomLevel, int x, int z, byte[] png) throws IOException {
+        // Collisions of a 128-bit hash are not a concern, so half of the
+        // SHA-256 hash is stored to keep the index small
+        byte[] fullHash = Hashing.sha256().hashBytes(png).asBytes();
+        Entry entry = Entry.ofHash(HashCode.fromBytes(Arrays.copyOf(fullHash, HASH_BYTES)));
+
+        lock.lock();
+        try {
+            if (entry.equals(getEntry(zoomLevel, x, z))) {
+                return;
+            }
+            Path blobFile = getBlobFile(entry.hash);
+            if (!Files.exists(blobFile)) {
+                Path tempFile = TileImages.createTempFile(blobFile);
+                try {
+                    Files.write(tempFile, png);
+                    TileImages.moveIntoPlace(tempFile, blobFile);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+            append(zoomLevel, x, z, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeRecord(ByteBuffer buffer, int zoomLevel, int x, int z, Entry entry) {
+        buffer.put((byte) zoomLevel);
+        buffer.putInt(x);
+        buffer.putInt(z);
+        if (entry == null) {
+            buffer.put(RECORD_TYPE_REMOVED);
+            buffer.put(new byte[HASH_BYTES]);
+        } else if (entry.hash == null) {
+            buffer.put(RECORD_TYPE_COLOR);
+            buffer.putInt(entry.color);
+            buffer.put(new byte[HASH_BYTES - Integer.BYTES]);
+        } else {
+            buffer.put(RECORD_TYPE_HASH);
+            buffer.put(entry.hash.asBytes());
+        }
+    }
+}
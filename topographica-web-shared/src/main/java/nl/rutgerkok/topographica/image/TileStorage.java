@@ -0,0 +1,57 @@
+package nl.rutgerkok.topographica.image;
+
+import java.nio.file.Path;
+
+/**
+ * The ways in which the map images of a world can be stored.
+ *
+ */
+public enum TileStorage {
+    /**
+     * Every image is stored as a PNG file of its own, so that the images can
+     * be served by any web server. See {@link FileTileStore}.
+     */
+    FILES {
+        @Override
+        public TileStore open(Path worldFolder, PngEncoder encoder, boolean deduplicate) {
+            return new FileTileStore(worldFolder, encoder, deduplicate);
+        }
+    },
+    /**
+     * The PNG files of all images of a zoom level are packed into a single
+     * file. This is a lot easier on the file system and on backups. See
+     * {@link ArchiveTileStore}.
+     */
+    ARCHIVE {
+        @Override
+        public TileStore open(Path worldFolder, PngEncoder encoder, boolean deduplicate) {
+            return new ArchiveTileStore(worldFolder, encoder);
+        }
+    };
+
+    /**
+     * Finds out how the images of a world are stored, by looking at the files
+     * in the images folder of the world.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @return How the images are stored.
+     */
+    public static TileStorage detect(Path worldFolder) {
+        return TileArchive.exists(worldFolder) ? ARCHIVE : FILES;
+    }
+
+    /**
+     * Opens the images of a world.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @param encoder
+     *            Used to write images.
+     * @param deduplicate
+     *            Whether images must be deduplicated, see {@link TileIndex}.
+     *            Only used when storing images as files of their own.
+     * @return The images.
+     */
+    public abstract TileStore open(Path worldFolder, PngEncoder encoder, boolean deduplicate);
+}
@@ -0,0 +1,140 @@
+package nl.rutgerkok.topographica.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Storage of the map images of a single world. Every image is identified by
+ * its zoom level and its coordinates, see
+ * {@link TileImages#getFile(java.nio.file.Path, int, int, int)}.
+ *
+ * <p>
+ * Instances are obtained using {@link TileStorage#open}. They are
+ * thread-safe. Multiple instances for the same world can be used at the same
+ * time.
+ */
+public interface TileStore {
+
+    /**
+     * Gets the coordinates of all stored images of a zoom level.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @return The coordinates, as {@link IntPair}s. The set can be modified.
+     * @throws IOException
+     *             If reading fails.
+     */
+    Set<Long> getImages(int zoomLevel) throws IOException;
+
+    /**
+     * Gets the file that consists of exactly the PNG file of an image, so that
+     * a web server can send the file directly from disk.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The file, or empty if the image doesn't exist or is not stored
+     *         in such a file. In the latter case,
+     *         {@link #readPng(int, int, int)} must be used instead. The file
+     *         can be removed before it is opened.
+     * @throws IOException
+     *             If reading fails.
+     */
+    Optional<Path> getPngFile(int zoomLevel, int x, int z) throws IOException;
+
+    /**
+     * Checks whether an image is known not to exist, without accessing the
+     * disk and without waiting for other threads. This way, the network
+     * threads of a web server can answer requests for images beyond the edges
+     * of the map.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return True if the image doesn't exist, false if it exists or if that
+     *         isn't known without accessing the disk.
+     */
+    boolean isKnownMissing(int zoomLevel, int x, int z);
+
+    /**
+     * Reads an image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The image, always of {@link BufferedImage#TYPE_INT_RGB}, or empty
+     *         if the image doesn't exist or is not readable.
+     */
+    Optional<BufferedImage> read(int zoomLevel, int x, int z);
+
+    /**
+     * Reads the PNG file of an image, for sending it to a web browser.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The PNG file, from its position to its limit, or empty if the
+     *         image doesn't exist. The buffer may be shared, so it must not be
+     *         modified.
+     * @throws IOException
+     *             If reading fails.
+     */
+    Optional<ByteBuffer> readPng(int zoomLevel, int x, int z) throws IOException;
+
+    /**
+     * Writes an image. Readers never see a half-written image. Afterwards, the
+     * image gets a new version in the {@link TileVersions} of the world.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param image
+     *            The image, of {@link BufferedImage#TYPE_INT_RGB}.
+     * @throws IOException
+     *             If writing fails.
+     */
+    void write(int zoomLevel, int x, int z, BufferedImage image) throws IOException;
+
+    /**
+     * Writes an image that is already encoded, like an image that was read
+     * using {@link #readPng(int, int, int)} and then encoded again with a
+     * better compression. Readers never see a half-written image. The version
+     * of the image in the {@link TileVersions} of the world stays the same, so
+     * web browsers may keep showing the old PNG file: the new PNG file must
+     * show exactly the same image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @param png
+     *            The PNG file of the image, which must be an image as
+     *            accepted by {@link #write(int, int, int, BufferedImage)}.
+     * @throws IOException
+     *             If writing fails.
+     */
+    void writePng(int zoomLevel, int x, int z, byte[] png) throws IOException;
+}
@@ -0,0 +1,364 @@
+package nl.rutgerkok.topographica.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+/**
+ * Keeps a version number for every image of a world, which increases every
+ * time the image is drawn. Web browsers can keep an image for as long as its
+ * version stays the same, so the version is added to the URL of the image.
+ *
+ * <p>
+ * All images of a world share a single counter, so that the images that
+ * changed after a certain version can be looked up quickly. The counter of a
+ * new world starts at the current time in milliseconds, so that a version is
+ * never used twice for the same image, even if the images folder is deleted.
+ * Images that were drawn before versions were kept have version 0.
+ *
+ * <p>
+ * The versions are stored in a {@link RecordLog} in the images folder of the
+ * world, like the {@link TileIndex}. Only the process that draws the images
+ * writes to the file, other processes (like the standalone web server) follow
+ * the changes.
+ *
+ * <p>
+ * Instances are thread-safe. There is only one instance per world folder, so
+ * that the renderer and the web server of the plugin share the same versions.
+ * The network threads of the web server use a snapshot of the versions that is
+ * updated in the background, so that they never wait for the disk.
+ */
+public final class TileVersions {
+
+    /**
+     * The versions at a certain moment. Immutable.
+     */
+    private static final class Snapshot {
+        private final long changeCount;
+        private final long createdNanos;
+
+        /**
+         * Versions by {@link IntPair} coordinates, by zoom level.
+         */
+        private final Map<Integer, Map<Long, TileVersion>> versions;
+
+        private Snapshot(Map<Integer, Map<Long, TileVersion>> versions, long changeCount, long createdNanos) {
+            this.versions = versions;
+            this.changeCount = changeCount;
+            this.createdNanos = createdNanos;
+        }
+
+        private long getVersion(int zoomLevel, int x, int z) {
+            Map<Long, TileVersion> tileVersions = versions.get(zoomLevel);
+            if (tileVersions == null) {
+                return NO_VERSION;
+            }
+            TileVersion tileVersion = tileVersions.get(IntPair.toLong(x, z));
+            return tileVersion == null ? NO_VERSION : tileVersion.version;
+        }
+    }
+
+    /**
+     * The version of a single image. Immutable.
+     */
+    public static final class TileVersion {
+        private final long version;
+        private final int x;
+        private final int z;
+        private final int zoomLevel;
+
+        private TileVersion(int zoomLevel, int x, int z, long version) {
+            this.zoomLevel = zoomLevel;
+            this.x = x;
+            this.z = z;
+            this.version = version;
+        }
+
+        /**
+         * Gets the version of the image.
+         *
+         * @return The version.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Gets the x coordinate of the image.
+         *
+         * @return The x coordinate.
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * Gets the z coordinate of the image.
+         *
+         * @return The z coordinate.
+         */
+        public int getZ() {
+            return z;
+        }
+
+        /**
+         * Gets the zoom level of the image.
+         *
+         * @return The zoom level.
+         */
+        public int getZoomLevel() {
+            return zoomLevel;
+        }
+    }
+
+    private static final ConcurrentMap<Path, TileVersions> BY_WORLD_FOLDER = new ConcurrentHashMap<>();
+
+    /**
+     * Name of the versions file, in the images folder of the world.
+     */
+    public static final String FILE_NAME = "tile-versions.bin";
+
+    private static final int MAGIC = 0x54505631;
+
+    /**
+     * A snapshot that wasn't used for this long is not used anymore until it
+     * is updated, as it may be far behind.
+     */
+    private static final long MAX_SNAPSHOT_AGE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Version of images that were never drawn, or drawn before versions were
+     * kept.
+     */
+    public static final long NO_VERSION = 0;
+
+    /**
+     * Zoom level (byte), x (int), z (int), version (long).
+     */
+    private static final int RECORD_SIZE = 1 + Integer.BYTES * 2 + Long.BYTES;
+
+    /**
+     * A snapshot that is in use is updated at most this often.
+     */
+    private static final long SNAPSHOT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ExecutorService SNAPSHOT_UPDATER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("Topographica tile versions updater")
+                    .setDaemon(true)
+                    .build());
+
+    /**
+     * Gets the versions of the given world.
+     *
+     * @param worldFolder
+     *            The images folder of the world, containing the zoom-1 folder.
+     * @return The versions.
+     */
+    public static TileVersions forWorldFolder(Path worldFolder) {
+        return BY_WORLD_FOLDER.computeIfAbsent(worldFolder.toAbsolutePath().normalize(), TileVersions::new);
+    }
+
+    private static void writeRecord(ByteBuffer buffer, TileVersion tileVersion) {
+        buffer.put((byte) tileVersion.zoomLevel);
+        buffer.putInt(tileVersion.x);
+        buffer.putInt(tileVersion.z);
+        buffer.putLong(tileVersion.version);
+    }
+
+    /**
+     * All images, by version.
+     */
+    private final NavigableMap<Long, TileVersion> byVersion = new TreeMap<>();
+
+    /**
+     * All images, by {@link IntPair} coordinates, by zoom level.
+     */
+    private final Map<Integer, Map<Long, TileVersion>> byZoomLevel = new HashMap<>();
+
+    /**
+     * Increased whenever the versions in memory change, so that an unchanged
+     * snapshot isn't copied again.
+     */
+    private long changeCount;
+    private final RecordLog log;
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean snapshotUpdateScheduled = new AtomicBoolean();
+
+    /**
+     * Creates a new instance. Outside of tests, use
+     * {@link #forWorldFolder(Path)} instead: another instance for the same
+     * world folder behaves like another process.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     */
+    TileVersions(Path worldFolder) {
+        this.log = new RecordLog(worldFolder.resolve(FILE_NAME), MAGIC, RECORD_SIZE, new RecordLog.Records() {
+            @Override
+            public void clear() {
+                byVersion.clear();
+                byZoomLevel.clear();
+                changeCount++;
+            }
+
+            @Override
+            public void read(ByteBuffer buffer) {
+                apply(new TileVersion(buffer.get(), buffer.getInt(), buffer.getInt(), buffer.getLong()));
+            }
+
+            @Override
+            public int size() {
+                return byVersion.size();
+            }
+
+            @Override
+            public void writeAll(ByteBuffer buffer) {
+                for (TileVersion tileVersion : byVersion.values()) {
+                    writeRecord(buffer, tileVersion);
+                }
+            }
+        });
+        this.snapshot = new Snapshot(Collections.emptyMap(), -1, System.nanoTime() - MAX_SNAPSHOT_AGE_NANOS);
+    }
+
+    private void apply(TileVersion tileVersion) {
+        TileVersion oldVersion = byZoomLevel.computeIfAbsent(tileVersion.zoomLevel, zoom -> new HashMap<>())
+                .put(IntPair.toLong(tileVersion.x, tileVersion.z), tileVersion);
+        if (oldVersion != null) {
+            byVersion.remove(oldVersion.version);
+        }
+        byVersion.put(tileVersion.version, tileVersion);
+        changeCount++;
+    }
+
+    /**
+     * Gets all images that were drawn after the given version.
+     *
+     * @param version
+     *            The version.
+     * @return The versions of the images, oldest first.
+     */
+    public synchronized List<TileVersion> getChangedSince(long version) {
+        log.refreshIfDue();
+        return new ArrayList<>(byVersion.tailMap(version, false).values());
+    }
+
+    /**
+     * Gets the highest version of all images.
+     *
+     * @return The version, or {@link #NO_VERSION} if no image has a version.
+     */
+    public synchronized long getLatestVersion() {
+        log.refreshIfDue();
+        return byVersion.isEmpty() ? NO_VERSION : byVersion.lastKey();
+    }
+
+    /**
+     * Gets the version of an image without accessing the disk and without
+     * waiting for other threads, so that the network threads of the web
+     * server can use it. The version comes from a snapshot, which can be a
+     * few seconds old. In the meantime, the image may have been drawn again.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The version, or {@link #NO_VERSION} if unknown.
+     */
+    public long getRecentVersion(int zoomLevel, int x, int z) {
+        Snapshot current = snapshot;
+        long age = System.nanoTime() - current.createdNanos;
+        if (age >= SNAPSHOT_INTERVAL_NANOS && snapshotUpdateScheduled.compareAndSet(false, true)) {
+            SNAPSHOT_UPDATER.execute(this::updateSnapshot);
+        }
+        if (age >= MAX_SNAPSHOT_AGE_NANOS) {
+            return NO_VERSION;
+        }
+        return current.getVersion(zoomLevel, x, z);
+    }
+
+    /**
+     * Gets the version of an image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The version, or {@link #NO_VERSION} if unknown.
+     */
+    public synchronized long getVersion(int zoomLevel, int x, int z) {
+        log.refreshIfDue();
+        Map<Long, TileVersion> tileVersions = byZoomLevel.get(zoomLevel);
+        if (tileVersions == null) {
+            return NO_VERSION;
+        }
+        TileVersion tileVersion = tileVersions.get(IntPair.toLong(x, z));
+        return tileVersion == null ? NO_VERSION : tileVersion.version;
+    }
+
+    /**
+     * Gives an image a new version, as it was drawn again. Must be called
+     * after the image was written, so that the new version never refers to
+     * the old image.
+     *
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @throws IOException
+     *             If writing the file fails.
+     */
+    public synchronized void markChanged(int zoomLevel, int x, int z) throws IOException {
+        log.startWriting();
+        long latestVersion = byVersion.isEmpty() ? System.currentTimeMillis() : byVersion.lastKey();
+        TileVersion tileVersion = new TileVersion(zoomLevel, x, z, latestVersion + 1);
+        log.append(buffer -> writeRecord(buffer, tileVersion));
+        apply(tileVersion);
+    }
+
+    /**
+     * Reads the changes made by other processes, and publishes a new
+     * snapshot. Runs on {@link #SNAPSHOT_UPDATER}.
+     */
+    private void updateSnapshot() {
+        try {
+            synchronized (this) {
+                log.refreshIfDue();
+                Map<Integer, Map<Long, TileVersion>> versions = snapshot.versions;
+                if (snapshot.changeCount != changeCount) {
+                    versions = new HashMap<>();
+                    for (Map.Entry<Integer, Map<Long, TileVersion>> entry : byZoomLevel.entrySet()) {
+                        versions.put(entry.getKey(), new HashMap<>(entry.getValue()));
+                    }
+                }
+                snapshot = new Snapshot(versions, changeCount, System.nanoTime());
+            }
+        } finally {
+            snapshotUpdateScheduled.set(false);
+        }
+    }
+}
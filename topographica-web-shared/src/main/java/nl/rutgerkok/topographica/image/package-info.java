@@ -0,0 +1,6 @@
+/**
+ * Reading, writing and scaling of the images of the map. Shared by the plugin
+ * and the standalone web server.
+ *
+ */
+package nl.rutgerkok.topographica.image;
@@ -6,4 +6,15 @@ public interface BundledFiles {
 
     public InputStream getResource(String string);
 
+    /**
+     * Gets whether the files can change while the web server is running, like
+     * when they are read from a development folder. If not, the web server
+     * keeps them in memory.
+     *
+     * @return True if the files can change, false otherwise.
+     */
+    default boolean canChange() {
+        return false;
+    }
+
 }
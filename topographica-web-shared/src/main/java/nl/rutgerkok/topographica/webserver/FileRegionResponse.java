@@ -0,0 +1,53 @@
+package nl.rutgerkok.topographica.webserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * A response of which the body is sent directly from a file. Unlike for a
+ * {@link io.netty.handler.codec.http.FullHttpResponse}, the file is not
+ * copied into memory first: where possible, the operating system sends it
+ * straight from the file to the network.
+ *
+ * <p>
+ * The headers must be written first, then {@link #getBody()}, and then
+ * {@link io.netty.handler.codec.http.LastHttpContent#EMPTY_LAST_CONTENT}.
+ */
+final class FileRegionResponse extends DefaultHttpResponse {
+
+    private final FileRegion body;
+
+    /**
+     * Creates a new response that sends the whole file.
+     *
+     * @param file
+     *            The file, which is closed once the body has been sent.
+     * @param contentType
+     *            The MIME type of the file.
+     * @throws IOException
+     *             If the size of the file cannot be read.
+     */
+    FileRegionResponse(FileChannel file, String contentType) throws IOException {
+        super(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        long size = file.size();
+        this.body = new DefaultFileRegion(file, 0, size);
+        headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        headers().set(HttpHeaderNames.CONTENT_LENGTH, size);
+    }
+
+    /**
+     * Gets the body of the response.
+     *
+     * @return The body.
+     */
+    FileRegion getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,323 @@
+package nl.rutgerkok.topographica.webserver;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.IllegalReferenceCountException;
+
+import nl.rutgerkok.topographica.image.TileVersions;
+
+/**
+ * Keeps the PNG files of the most requested map images in memory, outside of
+ * the Java heap. When a link to the map is shared, lots of web browsers
+ * request the same images at the same time, which can then be sent without
+ * accessing the disk.
+ *
+ * <p>
+ * Every image is stored together with its version in the
+ * {@link TileVersions} of the world. The renderer gives an image a new
+ * version right after drawing it, so the old image is never found again: the
+ * plugin notices this immediately, the standalone web server within a second.
+ * Images without a version, which were drawn by an older version of the
+ * plugin, are stored together with the size and modification time of their
+ * file instead. Outdated images are not removed right away, but as they are
+ * no longer used they are soon the least recently used.
+ *
+ * <p>
+ * Instances are thread-safe.
+ */
+final class ImageCache {
+
+    /**
+     * An image in the cache. Immutable.
+     */
+    static final class CachedImage {
+        private final String etag;
+        private final long lastModifiedMillis;
+        private final ByteBuf png;
+
+        /**
+         * Creates a new image.
+         *
+         * @param png
+         *            The PNG file, from the reader index to the writer index.
+         *            Released once the image is removed from the cache.
+         * @param etag
+         *            The entity tag of the PNG file.
+         * @param lastModifiedMillis
+         *            When the file was last modified, or -1 if unknown.
+         */
+        CachedImage(ByteBuf png, String etag, long lastModifiedMillis) {
+            this.png = Objects.requireNonNull(png, "png");
+            this.etag = Objects.requireNonNull(etag, "etag");
+            this.lastModifiedMillis = lastModifiedMillis;
+        }
+
+        /**
+         * Gets the entity tag of the PNG file.
+         *
+         * @return The entity tag, including the quotes.
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Gets when the file was last modified.
+         *
+         * @return The time in milliseconds, or -1 if unknown.
+         */
+        long getLastModifiedMillis() {
+            return lastModifiedMillis;
+        }
+
+        /**
+         * Gets a duplicate of the PNG file, which must be released afterwards,
+         * for example by sending it.
+         *
+         * @return The duplicate, or empty if the image was removed from the
+         *         cache in the meantime.
+         */
+        Optional<ByteBuf> retainPng() {
+            try {
+                return Optional.of(png.retainedDuplicate());
+            } catch (IllegalReferenceCountException e) {
+                return Optional.empty();
+            }
+        }
+    }
+
+    /**
+     * Identifies a version of an image. Immutable.
+     */
+    static final class Key {
+        private final String fileEtag;
+        private final long version;
+        private final Path worldFolder;
+        private final int x;
+        private final int z;
+        private final int zoomLevel;
+
+        /**
+         * Creates a new key.
+         *
+         * @param worldFolder
+         *            The images folder of the world.
+         * @param zoomLevel
+         *            The zoom level.
+         * @param x
+         *            The x coordinate of the image.
+         * @param z
+         *            The z coordinate of the image.
+         * @param version
+         *            The version of the image. If this is
+         *            {@link TileVersions#NO_VERSION}, the key can only be
+         *            used once {@link #withFileEtag(String)} is called.
+         */
+        Key(Path worldFolder, int zoomLevel, int x, int z, long version) {
+            this(worldFolder, zoomLevel, x, z, version, null);
+        }
+
+        private Key(Path worldFolder, int zoomLevel, int x, int z, long version, String fileEtag) {
+            this.worldFolder = Objects.requireNonNull(worldFolder, "worldFolder");
+            this.zoomLevel = zoomLevel;
+            this.x = x;
+            this.z = z;
+            this.version = version;
+            this.fileEtag = fileEtag;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return version == other.version && zoomLevel == other.zoomLevel && x == other.x && z == other.z
+                    && worldFolder.equals(other.worldFolder) && Objects.equals(fileEtag, other.fileEtag);
+        }
+
+        /**
+         * Checks whether the image has a version in the {@link TileVersions}
+         * of the world.
+         *
+         * @return True if the image has a version, false otherwise.
+         */
+        boolean hasVersion() {
+            return version != TileVersions.NO_VERSION;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = worldFolder.hashCode();
+            result = result * 31 + zoomLevel;
+            result = result * 31 + x;
+            result = result * 31 + z;
+            result = result * 31 + Long.hashCode(version);
+            return result * 31 + Objects.hashCode(fileEtag);
+        }
+
+        /**
+         * Gets a key that also includes the entity tag of the file of the
+         * image. Used for images without a version, so that they are no longer
+         * found once their file changes.
+         *
+         * @param fileEtag
+         *            The entity tag, based on the size and modification time
+         *            of the file.
+         * @return The new key.
+         */
+        Key withFileEtag(String fileEtag) {
+            return new Key(worldFolder, zoomLevel, x, z, version, Objects.requireNonNull(fileEtag, "fileEtag"));
+        }
+    }
+
+    /**
+     * Estimated amount of memory used by an entry, not counting the PNG file.
+     */
+    private static final int OVERHEAD_BYTES = 200;
+
+    private final Cache<Key, CachedImage> cache;
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes
+     *            The maximum amount of memory used by the images. If the cache
+     *            is full, the least recently used image is removed. If 0, the
+     *            cache is disabled.
+     */
+    ImageCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, CachedImage image) -> getWeight(image))
+                .removalListener((RemovalNotification<Key, CachedImage> notification) -> {
+                    usedBytes.addAndGet(-getWeight(notification.getValue()));
+                    notification.getValue().png.release();
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Gets an image from memory, reading it first if it's not in memory yet.
+     * If the same image is requested again while it is being read, the
+     * request waits for the first read instead of reading the image again.
+     *
+     * @param key
+     *            The key of the image. Must have a version or a file entity
+     *            tag.
+     * @param reader
+     *            Reads the image. Throws {@link NoSuchFileException} if the
+     *            image doesn't exist. From then on, the cache releases the
+     *            PNG file, so {@link CachedImage#retainPng()} must be used to
+     *            send it.
+     * @return The image, or empty if it doesn't exist.
+     * @throws IOException
+     *             If reading the image fails.
+     */
+    Optional<CachedImage> get(Key key, Callable<CachedImage> reader) throws IOException {
+        if (!key.hasVersion() && key.fileEtag == null) {
+            throw new IllegalArgumentException("Key without version or file entity tag");
+        }
+        try {
+            return Optional.of(cache.get(key, () -> {
+                CachedImage image = reader.call();
+                usedBytes.addAndGet(getWeight(image));
+                return image;
+            }));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchFileException) {
+                return Optional.empty();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to read image", cause);
+        }
+    }
+
+    /**
+     * Gets an image if it's already in memory.
+     *
+     * @param key
+     *            The key of the image.
+     * @return The image, or empty if not in memory.
+     */
+    Optional<CachedImage> getIfPresent(Key key) {
+        // Doesn't count a miss, as the image is then requested again using
+        // get(Key, Callable)
+        CachedImage image = cache.asMap().get(key);
+        if (image != null) {
+            cache.getIfPresent(key);
+        }
+        return Optional.ofNullable(image);
+    }
+
+    /**
+     * Gets the maximum amount of memory used by the images.
+     *
+     * @return The amount of bytes.
+     */
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the hit and miss statistics of this cache.
+     *
+     * @return The statistics.
+     */
+    CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Gets the amount of memory currently used by the images.
+     *
+     * @return The amount of bytes.
+     */
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    private int getWeight(CachedImage image) {
+        return image.png.capacity() + OVERHEAD_BYTES;
+    }
+
+    /**
+     * Removes all images, so that their memory is freed.
+     */
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Checks whether images are kept in memory at all.
+     *
+     * @return False if the maximum amount of memory is 0, true otherwise.
+     */
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+}
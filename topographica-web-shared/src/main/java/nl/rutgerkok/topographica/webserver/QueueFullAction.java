@@ -0,0 +1,21 @@
+package nl.rutgerkok.topographica.webserver;
+
+/**
+ * What the web server does with a request that must be read from disk, when
+ * all threads for reading from disk are busy and the queue of waiting
+ * requests is full.
+ */
+public enum QueueFullAction {
+    /**
+     * Tells the web browser that the server is busy, and that it should try
+     * again in a second. Keeps the web server responsive for everything that
+     * is in memory.
+     */
+    REJECT,
+    /**
+     * Handles the request on the network thread. The request always gets
+     * its response, but all other web browsers sharing that network thread
+     * must wait for the disk.
+     */
+    RUN_ON_NETWORK_THREAD
+}
@@ -3,6 +3,15 @@ package nl.rutgerkok.topographica.webserver;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import nl.rutgerkok.topographica.image.PngEncoder;
+import nl.rutgerkok.topographica.image.TileStorage;
+import nl.rutgerkok.topographica.image.TileStore;
 
 /**
  * Reads out many different properties of the server environment, like the
@@ -13,6 +22,66 @@ import java.util.Optional;
  */
 public abstract class ServerInfo {
 
+    /**
+     * Default for {@link #getImageCacheBytes()}.
+     */
+    public static final long DEFAULT_IMAGE_CACHE_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Default for {@link #getImageMaxAgeSeconds()}.
+     */
+    public static final int DEFAULT_IMAGE_MAX_AGE_SECONDS = 60;
+
+    /**
+     * Default for {@link #getMaxConcurrentDiskReads()}.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_DISK_READS = 4;
+
+    /**
+     * Default for {@link #getRequestQueueSize()}.
+     */
+    public static final int DEFAULT_REQUEST_QUEUE_SIZE = 256;
+
+    /**
+     * Default for {@link #getRequestThreads()}.
+     */
+    public static final int DEFAULT_REQUEST_THREADS = 4;
+
+    /**
+     * Default for {@link #getStaticFileMaxAgeSeconds()}.
+     */
+    public static final int DEFAULT_STATIC_FILE_MAX_AGE_SECONDS = 60 * 60;
+
+    /**
+     * Stores for reading the images, by world folder. The storage is detected
+     * again now and then, in case the renderer switched to another storage.
+     */
+    private final LoadingCache<Path, TileStore> tileStores = CacheBuilder.newBuilder()
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .build(CacheLoader.from(worldFolder -> TileStorage.detect(worldFolder).open(worldFolder,
+                    PngEncoder.FAST, false)));
+
+    /**
+     * Gets how much memory the web server may use for keeping the most
+     * requested map images in memory. Read once when the web server starts.
+     *
+     * @return The amount of bytes, 0 to disable.
+     */
+    public long getImageCacheBytes() {
+        return DEFAULT_IMAGE_CACHE_BYTES;
+    }
+
+    /**
+     * Gets how long web browsers may use a map image they downloaded before,
+     * without asking the web server whether there's a newer version. After
+     * this time, the image is only downloaded again if it has changed.
+     *
+     * @return The time in seconds.
+     */
+    public int getImageMaxAgeSeconds() {
+        return DEFAULT_IMAGE_MAX_AGE_SECONDS;
+    }
+
     /**
      * Gets the folder where the images of all worlds are stored.
      *
@@ -20,6 +89,30 @@ public abstract class ServerInfo {
      */
     public abstract Path getImagesFolder();
 
+    /**
+     * Gets how many map images the web server may read from disk at the same
+     * time. Other requests for images that aren't in memory wait until a read
+     * finishes. Read once when the web server starts.
+     *
+     * @return The amount, at least 1.
+     */
+    public int getMaxConcurrentDiskReads() {
+        return DEFAULT_MAX_CONCURRENT_DISK_READS;
+    }
+
+    /**
+     * Gets the images of a world, but only if that doesn't require accessing
+     * the disk. Used by the network threads of the web server.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @return The images, or empty if they need to be opened first using
+     *         {@link #getTileStore(Path)}.
+     */
+    public Optional<TileStore> getOpenTileStore(Path worldFolder) {
+        return Optional.ofNullable(tileStores.getIfPresent(worldFolder));
+    }
+
     /**
      * Gets a collection of all players visible in a world.
      *
@@ -36,6 +129,62 @@ public abstract class ServerInfo {
      */
     public abstract int getPort();
 
+    /**
+     * Gets what the web server does with a request that must be read from
+     * disk when the queue of waiting requests is full. Read once when the web
+     * server starts.
+     *
+     * @return The action.
+     */
+    public QueueFullAction getQueueFullAction() {
+        return QueueFullAction.REJECT;
+    }
+
+    /**
+     * Gets how many requests that must be read from disk may wait for a
+     * thread. Read once when the web server starts.
+     *
+     * @return The amount, at least 1.
+     * @see #getQueueFullAction()
+     */
+    public int getRequestQueueSize() {
+        return DEFAULT_REQUEST_QUEUE_SIZE;
+    }
+
+    /**
+     * Gets how many threads handle requests that must be read from disk.
+     * Requests for things that are already in memory are handled on the
+     * network threads instead. Read once when the web server starts.
+     *
+     * @return The amount, at least 1.
+     */
+    public int getRequestThreads() {
+        return DEFAULT_REQUEST_THREADS;
+    }
+
+    /**
+     * Gets how long web browsers may use a static file, like the style sheet,
+     * without asking the web server whether there's a newer version. After
+     * this time, the file is only downloaded again if it has changed.
+     *
+     * @return The time in seconds.
+     */
+    public int getStaticFileMaxAgeSeconds() {
+        return DEFAULT_STATIC_FILE_MAX_AGE_SECONDS;
+    }
+
+    /**
+     * Gets the images of a world, for reading. By default, the way in which
+     * the images are stored is detected from the files in the world folder.
+     *
+     * @param worldFolder
+     *            The images folder of the world.
+     * @return The images.
+     */
+    public TileStore getTileStore(Path worldFolder) {
+        return tileStores.getUnchecked(worldFolder);
+    }
+
     /**
      * Gets the world with the given folder name. Case sensitive.
      *
@@ -1,27 +1,42 @@
 package nl.rutgerkok.topographica.webserver;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
+import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonWriter;
 
@@ -32,26 +47,187 @@ import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 
+import nl.rutgerkok.topographica.image.TileImages.FileLocation;
+import nl.rutgerkok.topographica.image.TileStore;
+import nl.rutgerkok.topographica.image.TileVersions;
+import nl.rutgerkok.topographica.image.TileVersions.TileVersion;
 import nl.rutgerkok.topographica.marker.Marker;
+import nl.rutgerkok.topographica.webserver.ImageCache.CachedImage;
 
 final class WebRequestHandler {
 
+    /**
+     * A file bundled with the web server, like the style sheet. Immutable.
+     */
+    private static final class StaticFile {
+        private final byte[] contents;
+        private final String etag;
+
+        private StaticFile(byte[] contents) {
+            this.contents = Objects.requireNonNull(contents, "contents");
+            this.etag = createEtag(ByteBuffer.wrap(contents));
+        }
+    }
+
     private static final Pattern REPLACEMENT_PATTERN = Pattern.compile("<\\?=\\s*([A-Z_]+)\\s*\\?>");
 
+    /**
+     * Cache-Control of map images requested with their current version. Such
+     * an URL always refers to the same image, so the web browser can keep it
+     * for as long as it wants.
+     */
+    private static final String IMMUTABLE = "public, max-age=" + TimeUnit.DAYS.toSeconds(365) + ", immutable";
     private static final String IMAGES_URL = "/" + WebPaths.IMAGES + "/";
     private static final byte[] NEW_LINE = new byte[] { '\r', '\n' };
 
     private final BundledFiles bundledFiles;
+
+    /**
+     * Limits the amount of map images that are read from disk at the same
+     * time, so that many web browsers together can't keep the disk busy.
+     */
+    private final Semaphore diskReads;
+    private final ImageCache imageCache;
     private final Logger logger;
     private final ServerInfo serverInfo;
 
+    /**
+     * Bundled files that were read before, by file name. Only used if the
+     * files can't change.
+     */
+    private final ConcurrentMap<String, StaticFile> staticFiles = new ConcurrentHashMap<>();
+
     WebRequestHandler(BundledFiles files, ServerInfo serverInfo, Logger logger) {
         this.bundledFiles = Objects.requireNonNull(files, "files");
         this.serverInfo = Objects.requireNonNull(serverInfo, "serverInfo");
         this.logger = Objects.requireNonNull(logger, "logger");
+        this.imageCache = new ImageCache(serverInfo.getImageCacheBytes());
+        this.diskReads = new Semaphore(serverInfo.getMaxConcurrentDiskReads());
+    }
+
+    /**
+     * Creates a strong entity tag from the contents of a file. The tag
+     * changes whenever the contents change, except in the extremely unlikely
+     * case of a hash collision.
+     *
+     * @param contents
+     *            The contents, from the position to the limit. The position
+     *            is not changed.
+     * @return The tag, including the quotes.
+     */
+    private static String createEtag(ByteBuffer contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents.duplicate());
+        return "\"" + Integer.toHexString(contents.remaining()) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    /**
+     * Gets the Cache-Control header for a file that can change.
+     *
+     * @param maxAgeSeconds
+     *            How long the web browser may use the file without checking
+     *            whether it has changed.
+     * @return The value of the header.
+     */
+    private static CharSequence getCacheControl(int maxAgeSeconds) {
+        if (maxAgeSeconds > 0) {
+            return "public, max-age=" + maxAgeSeconds;
+        }
+        return HttpHeaderValues.NO_CACHE;
+    }
+
+    /**
+     * Gets a parameter from the query string of an URL. The value is not
+     * decoded.
+     *
+     * @param uri
+     *            The URL, like "/players.json?world=foo".
+     * @param name
+     *            Name of the parameter, like "world".
+     * @return The value, or empty if the parameter is missing.
+     */
+    private static Optional<String> getQueryParameter(String uri, String name) {
+        int questionMarkIndex = uri.indexOf('?');
+        if (questionMarkIndex == -1) {
+            return Optional.empty();
+        }
+        for (String parameter : uri.substring(questionMarkIndex + 1).split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return Optional.of(parameter.substring(name.length() + 1));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Creates a weak entity tag for a file, based on its size and modification
+     * time. It's weak because a file can change without changing either.
+     *
+     * @param attributes
+     *            The attributes of the file.
+     * @return The tag, including the "W/" prefix and the quotes.
+     */
+    private static String createEtag(BasicFileAttributes attributes) {
+        return "W/\"" + Long.toHexString(attributes.size()) + "-"
+                + Long.toHexString(attributes.lastModifiedTime().toMillis()) + "\"";
+    }
+
+    /**
+     * Checks whether the copy of the web browser is still up to date, based
+     * on the If-None-Match and If-Modified-Since headers.
+     *
+     * @param request
+     *            The request of the web browser.
+     * @param etag
+     *            The current entity tag of the file.
+     * @param lastModifiedMillis
+     *            When the file was last modified, or -1 if unknown.
+     * @return True if the copy is up to date, false otherwise.
+     */
+    private static boolean isNotModified(HttpRequest request, String etag, long lastModifiedMillis) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // If-Modified-Since must be ignored if this header is present
+            String opaqueEtag = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    // Weak comparison, as required for this header
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(opaqueEtag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModifiedMillis < 0) {
+            return false;
+        }
+        Long ifModifiedSince = request.headers().getTimeMillis(HttpHeaderNames.IF_MODIFIED_SINCE);
+        // The header only has a precision of seconds
+        return ifModifiedSince != null && lastModifiedMillis / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Sets the headers that allow the web browser to keep the file.
+     *
+     * @param response
+     *            The response.
+     * @param etag
+     *            The entity tag of the file.
+     * @param cacheControl
+     *            The Cache-Control header.
+     */
+    private static void setCacheHeaders(HttpResponse response, String etag, CharSequence cacheControl) {
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
     }
 
     private String doSmartReplacements(String line, WebWorld currentWorld) throws IOException {
@@ -83,6 +259,15 @@ final class WebRequestHandler {
                 return line.substring(0, matcher.start()) +
                         "[" + origin[0] + "," + origin[2] + "]"
                         + line.substring(matcher.end());
+            case "WORLD_TILE_VERSION":
+                // Only the versions of images drawn afterwards are fetched,
+                // older images are requested without a version
+                long latestVersion = TileVersions.forWorldFolder(
+                        serverInfo.getImagesFolder().resolve(currentWorld.getFolderName())).getLatestVersion();
+                return line.substring(0, matcher.start()) + latestVersion + line.substring(matcher.end());
+            case "WORLD_ZOOM_LEVELS":
+                return line.substring(0, matcher.start()) + currentWorld.getZoomLevels()
+                        + line.substring(matcher.end());
             case "WORLD_MARKERS":
                 StringWriter writer = new StringWriter();
                 writer.write(line.substring(0, matcher.start()));
@@ -123,29 +308,89 @@ final class WebRequestHandler {
         throw new UnsupportedOperationException("Unkown MIME: " + fileName);
     }
 
-    private WebWorld getWorldFromQuery(String uri) {
-        Optional<WebWorld> world = Optional.empty();
+    /**
+     * Gets the Cache-Control header for a map image.
+     *
+     * @param version
+     *            The current version of the image.
+     * @param requestedVersion
+     *            The version in the URL, if any.
+     * @return The header.
+     */
+    private CharSequence getImageCacheControl(long version, Optional<String> requestedVersion) {
+        if (version != TileVersions.NO_VERSION && requestedVersion.equals(Optional.of(Long.toString(version)))) {
+            // Another version would get another URL
+            return IMMUTABLE;
+        }
+        return getCacheControl(serverInfo.getImageMaxAgeSeconds());
+    }
 
-        String query = "";
-        int questionMarkIndex = uri.indexOf('?');
-        if (questionMarkIndex != -1) {
-            query = uri.substring(questionMarkIndex + 1);
-        }
-        int worldNameIndex = query.indexOf("world=");
-        if (worldNameIndex != -1) {
-            String worldName = query.substring(worldNameIndex + "world=".length());
-            int ampersandIndex = worldName.indexOf('&');
-            if (ampersandIndex != -1) {
-                worldName = worldName.substring(0, ampersandIndex);
+    /**
+     * Gets the location of a map image in the images folder.
+     *
+     * @param image
+     *            The image, relative to the images folder, without the query
+     *            string.
+     * @return The location, or empty if the path isn't a map image of a
+     *         world on the map.
+     */
+    private Optional<FileLocation> getImageLocation(String image) {
+        Path imagesFolder = serverInfo.getImagesFolder();
+        Path path = imagesFolder.resolve(image).normalize();
+        if (!path.startsWith(imagesFolder)) {
+            return Optional.empty();
+        }
+        return FileLocation.parse(path).filter(location -> {
+            Path worldFolder = location.getWorldFolder();
+            return imagesFolder.equals(worldFolder.getParent())
+                    && serverInfo.getWorld(worldFolder.getFileName().toString()).isPresent();
+        });
+    }
+
+    /**
+     * Gets a bundled file.
+     *
+     * @param file
+     *            The file name, relative to the web folder.
+     * @return The file, or empty if not found.
+     * @throws IOException
+     *             If reading the file fails.
+     */
+    private Optional<StaticFile> getStaticFile(String file) throws IOException {
+        StaticFile staticFile = staticFiles.get(file);
+        if (staticFile != null) {
+            return Optional.of(staticFile);
+        }
+        try (InputStream stream = bundledFiles.getResource("web/" + file)) {
+            if (stream == null) {
+                return Optional.empty();
             }
-            world = this.serverInfo.getWorld(worldName);
+            staticFile = new StaticFile(ByteStreams.toByteArray(stream));
+        }
+        // All bundled files are in the same folder. Other names may refer to
+        // the same file, so they are not kept, to keep the map small
+        if (!bundledFiles.canChange() && file.indexOf('/') == -1) {
+            staticFiles.put(file, staticFile);
         }
+        return Optional.of(staticFile);
+    }
 
-        return world
+    private WebWorld getWorldFromQuery(String uri) {
+        return getQueryParameter(uri, "world")
+                .flatMap(this.serverInfo::getWorld)
                 .orElseGet(() -> this.serverInfo.getWorlds().iterator().next());
     }
 
-    private FullHttpResponse jsonResponse(JsonArray output) throws IOException {
+    /**
+     * Gets the map images that are kept in memory.
+     *
+     * @return The images.
+     */
+    ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    private FullHttpResponse jsonResponse(JsonElement output) throws IOException {
         ByteBuf buffer = Unpooled.buffer();
 
         try (Writer writer = new OutputStreamWriter(new ByteBufOutputStream(buffer), StandardCharsets.UTF_8)) {
@@ -159,17 +404,52 @@ final class WebRequestHandler {
                 buffer);
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=utf-8");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.writerIndex());
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
 
         return response;
     }
 
-    public FullHttpResponse respond(FullHttpRequest request) throws IOException {
+    /**
+     * Responds to a request for something that is already in memory, like
+     * the style sheet or the most requested map images. Never blocks, so it
+     * can be called from the network threads.
+     *
+     * @param request
+     *            The request.
+     * @return The response, or empty if the request must be handled by
+     *         {@link #respond(FullHttpRequest)} on a thread that may block.
+     */
+    public Optional<HttpResponse> respondFromMemory(FullHttpRequest request) {
+        try {
+            String uri = request.uri();
+            if (uri.startsWith(IMAGES_URL)) {
+                return sendMapImageFromMemory(request, uri.substring(IMAGES_URL.length()));
+            }
+            switch (toFile(uri)) {
+                case "index.html":
+                case "players.json":
+                case "tile-versions.json":
+                    // Created for every request
+                    return Optional.empty();
+                default:
+                    if (!staticFiles.containsKey(toFile(uri))) {
+                        return Optional.empty();
+                    }
+                    return Optional.of(sendStaticFile(request, toFile(uri)));
+            }
+        } catch (Exception e) {
+            // Let respond(request) log the error
+            return Optional.empty();
+        }
+    }
+
+    public HttpResponse respond(FullHttpRequest request) throws IOException {
         try {
             String uri = request.uri();
 
             // Images must be sent from a folder, not from the JAR file
             if (uri.startsWith(IMAGES_URL)) {
-                return sendMapImage(uri.substring(IMAGES_URL.length()));
+                return sendMapImage(request, uri.substring(IMAGES_URL.length()));
             }
 
             switch (toFile(uri)) {
@@ -177,8 +457,10 @@ final class WebRequestHandler {
                     return sendHomePage(getWorldFromQuery(uri));
                 case "players.json":
                     return sendPlayerList(getWorldFromQuery(uri));
+                case "tile-versions.json":
+                    return sendTileVersions(getWorldFromQuery(uri), uri);
                 default:
-                    return sendFromJarFile(toFile(uri), HttpResponseStatus.OK);
+                    return sendStaticFile(request, toFile(uri));
             }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error handling web request to " + request.uri(), e);
@@ -186,78 +468,399 @@ final class WebRequestHandler {
         }
     }
 
+    /**
+     * Waits until another disk read is allowed. Afterwards,
+     * {@link Semaphore#release()} must be called on {@link #diskReads}.
+     *
+     * @throws InterruptedIOException
+     *             If interrupted while waiting.
+     */
+    private void acquireDiskRead() throws InterruptedIOException {
+        try {
+            diskReads.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a disk read");
+        }
+    }
+
+    /**
+     * Gets a map image from memory, reading it if necessary.
+     *
+     * @param tileStore
+     *            The store of the world.
+     * @param key
+     *            The key of the image, without a file entity tag.
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The image, or empty if it doesn't exist, or if it can't be kept
+     *         in memory.
+     * @throws IOException
+     *             If reading the image fails.
+     */
+    private Optional<CachedImage> getImage(TileStore tileStore, ImageCache.Key key, int zoomLevel, int x, int z)
+            throws IOException {
+        if (key.hasVersion()) {
+            return imageCache.get(key, () -> readImage(tileStore, zoomLevel, x, z));
+        }
+
+        // Without a version, the attributes of the file show whether the
+        // image in memory is up to date
+        Optional<Path> file = tileStore.getPngFile(zoomLevel, x, z);
+        if (!file.isPresent()) {
+            return Optional.empty();
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.get(), BasicFileAttributes.class);
+            return imageCache.get(key.withFileEtag(createEtag(attributes)),
+                    () -> readImageFile(file.get(), attributes));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads a map image into memory.
+     *
+     * @param tileStore
+     *            The store of the world.
+     * @param zoomLevel
+     *            The zoom level.
+     * @param x
+     *            The x coordinate of the image.
+     * @param z
+     *            The z coordinate of the image.
+     * @return The image.
+     * @throws NoSuchFileException
+     *             If the image doesn't exist.
+     * @throws IOException
+     *             If reading fails.
+     */
+    private CachedImage readImage(TileStore tileStore, int zoomLevel, int x, int z) throws IOException {
+        Optional<Path> file = tileStore.getPngFile(zoomLevel, x, z);
+        if (file.isPresent()) {
+            try {
+                return readImageFile(file.get(), Files.readAttributes(file.get(), BasicFileAttributes.class));
+            } catch (NoSuchFileException e) {
+                // Removed in the meantime, try reading it from the store
+            }
+        }
+        Optional<ByteBuffer> png = readPng(tileStore, zoomLevel, x, z);
+        if (!png.isPresent()) {
+            throw new NoSuchFileException("zoom-" + zoomLevel + "/r." + x + "." + z + ".png");
+        }
+        ByteBuf buffer = Unpooled.directBuffer(png.get().remaining());
+        buffer.writeBytes(png.get().duplicate());
+        return new CachedImage(buffer, createEtag(png.get()), -1);
+    }
+
+    /**
+     * Reads the file of a map image into memory.
+     *
+     * @param file
+     *            The file, containing exactly the PNG file.
+     * @param attributes
+     *            The attributes of the file, read before the file is opened.
+     * @return The image.
+     * @throws IOException
+     *             If reading fails.
+     */
+    private CachedImage readImageFile(Path file, BasicFileAttributes attributes) throws IOException {
+        acquireDiskRead();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuf buffer = Unpooled.directBuffer((int) channel.size());
+            try {
+                while (buffer.isWritable()) {
+                    if (buffer.writeBytes(channel, buffer.writerIndex(), buffer.writableBytes()) == -1) {
+                        // Shorter than expected, use what we have
+                        break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                buffer.release();
+                throw e;
+            }
+            return new CachedImage(buffer, createEtag(attributes), attributes.lastModifiedTime().toMillis());
+        } finally {
+            diskReads.release();
+        }
+    }
+
+    private Optional<ByteBuffer> readPng(TileStore tileStore, int zoomLevel, int x, int z) throws IOException {
+        acquireDiskRead();
+        try {
+            return tileStore.readPng(zoomLevel, x, z);
+        } finally {
+            diskReads.release();
+        }
+    }
+
     private FullHttpResponse send404() throws IOException {
         return sendFromJarFile("404.html", HttpResponseStatus.NOT_FOUND);
     }
 
+    /**
+     * Sends a 404 response without a page. The web browser requests lots of
+     * images beyond the edges of the map, which don't need a page.
+     *
+     * @return The response.
+     */
+    private FullHttpResponse send404ForImage() {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND,
+                Unpooled.EMPTY_BUFFER);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        return response;
+    }
+
     private FullHttpResponse send500() throws IOException {
         return sendFromJarFile("500.html", HttpResponseStatus.INTERNAL_SERVER_ERROR);
     }
 
     private FullHttpResponse sendFromJarFile(String file, HttpResponseStatus code) throws IOException {
-        ByteBuf buffer = Unpooled.buffer();
-        try (InputStream stream = bundledFiles.getResource("web/" + file)) {
-            if (stream == null) {
-                if (file.equals("404.html")) {
-                    // Protect against infinite loop
-                    throw new Error("404 page is missing");
-                }
-                return send404();
+        Optional<StaticFile> staticFile = getStaticFile(file);
+        if (!staticFile.isPresent()) {
+            if (file.equals("404.html")) {
+                // Protect against infinite loop
+                throw new Error("404 page is missing");
             }
-            buffer.writeBytes(stream, 20 * 1024);
+            return send404();
         }
+        byte[] contents = staticFile.get().contents;
 
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, code, buffer);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, code,
+                Unpooled.wrappedBuffer(contents));
 
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, getMime(file));
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.writerIndex());
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, contents.length);
 
         return response;
     }
 
     private FullHttpResponse sendHomePage(WebWorld world) throws IOException {
+        Optional<StaticFile> staticFile = getStaticFile("index.html");
+        if (!staticFile.isPresent()) {
+            return send404();
+        }
         ByteBuf buffer = Unpooled.buffer();
-        try (InputStream stream = bundledFiles.getResource("web/index.html")) {
-            if (stream == null) {
-                return send404();
-            }
-            BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = doSmartReplacements(line, world);
-                buffer.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-                buffer.writeBytes(NEW_LINE);
-            }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(staticFile.get().contents), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = doSmartReplacements(line, world);
+            buffer.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+            buffer.writeBytes(NEW_LINE);
         }
 
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, buffer);
 
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, getMime("index.html"));
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.writerIndex());
+        // Contains the world list and the markers, which can change
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
 
         return response;
     }
 
-    private FullHttpResponse sendMapImage(String image) throws IOException {
-        // Get image
-        Path imagesFolder = serverInfo.getImagesFolder();
-        Path path = imagesFolder.resolve(image).normalize();
-        if (!path.startsWith(imagesFolder) || !Files.exists(path)) {
-            return send404();
+    /**
+     * Sends a map image from memory.
+     *
+     * @param request
+     *            The request of the web browser.
+     * @param image
+     *            The image.
+     * @param cacheControl
+     *            The Cache-Control header.
+     * @return The response, or empty if the image was removed from memory in
+     *         the meantime.
+     */
+    private Optional<HttpResponse> sendCachedImage(HttpRequest request, CachedImage image,
+            CharSequence cacheControl) {
+        if (isNotModified(request, image.getEtag(), image.getLastModifiedMillis())) {
+            return Optional.of(sendNotModified(image.getEtag(), cacheControl));
         }
+        return image.retainPng()
+                .map(png -> sendPng(png, image.getEtag(), image.getLastModifiedMillis(), cacheControl));
+    }
 
-        // Send
-        try (InputStream stream = Files.newInputStream(path)) {
-            ByteBuf buffer = toBuffer(stream);
-            FullHttpResponse response = new DefaultFullHttpResponse(
-                    HttpVersion.HTTP_1_1,
-                    HttpResponseStatus.OK,
-                    buffer);
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "image/jpeg");
-            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.writerIndex());
+    /**
+     * Sends a map image directly from its file.
+     *
+     * @param request
+     *            The request of the web browser.
+     * @param file
+     *            The file, containing exactly the PNG file.
+     * @param cacheControl
+     *            The Cache-Control header.
+     * @return The response, or empty if the file doesn't exist anymore.
+     * @throws IOException
+     *             If reading the file fails.
+     */
+    private Optional<HttpResponse> sendImageFile(HttpRequest request, Path file, CharSequence cacheControl)
+            throws IOException {
+        FileChannel channel;
+        BasicFileAttributes attributes;
+        try {
+            // Read the attributes first, so that the entity tag is never newer
+            // than the contents
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            String etag = createEtag(attributes);
+            if (isNotModified(request, etag, lastModified)) {
+                return Optional.of(sendNotModified(etag, cacheControl));
+            }
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                FileRegionResponse response = new FileRegionResponse(channel, getMime(".png"));
+                setCacheHeaders(response, etag, cacheControl);
+                response.headers().set(HttpHeaderNames.LAST_MODIFIED, new Date(lastModified));
+                return Optional.of(response);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Sends a map image if it's in memory with its current version, or a 404
+     * page if the image is known not to exist.
+     *
+     * @param request
+     *            The request of the web browser.
+     * @param image
+     *            The image, relative to the images folder, including the
+     *            query string.
+     * @return The response, or empty if the image must be read from disk.
+     */
+    private Optional<HttpResponse> sendMapImageFromMemory(HttpRequest request, String image) {
+        Optional<String> requestedVersion = getQueryParameter(image, "v");
+        int questionMarkIndex = image.indexOf('?');
+        if (questionMarkIndex != -1) {
+            image = image.substring(0, questionMarkIndex);
+        }
+        Optional<FileLocation> location = getImageLocation(image);
+        if (!location.isPresent()) {
+            return Optional.empty();
+        }
+        Path worldFolder = location.get().getWorldFolder();
+        int zoomLevel = location.get().getZoomLevel();
+        int x = location.get().getX();
+        int z = location.get().getZ();
+
+        // Images without a version need their file to be checked, so they are
+        // never sent from here
+        long version = TileVersions.forWorldFolder(worldFolder).getRecentVersion(zoomLevel, x, z);
+        if (version == TileVersions.NO_VERSION) {
+            // Like the many images beyond the edges of the map
+            Optional<TileStore> tileStore = serverInfo.getOpenTileStore(worldFolder);
+            if (tileStore.isPresent() && tileStore.get().isKnownMissing(zoomLevel, x, z)) {
+                return Optional.of(send404ForImage());
+            }
+            return Optional.empty();
+        }
+        if (requestedVersion.isPresent() && !requestedVersion.get().equals(Long.toString(version))) {
+            // The image may have been drawn again after the snapshot of the
+            // versions was made, so leave it to the request threads
+            return Optional.empty();
+        }
+        if (!imageCache.isEnabled()) {
+            return Optional.empty();
+        }
+        return imageCache.getIfPresent(new ImageCache.Key(worldFolder, zoomLevel, x, z, version))
+                .flatMap(cachedImage -> sendCachedImage(request, cachedImage,
+                        getImageCacheControl(version, requestedVersion)));
+    }
+
+    private HttpResponse sendMapImage(HttpRequest request, String image) throws IOException {
+        Optional<String> requestedVersion = getQueryParameter(image, "v");
+        int questionMarkIndex = image.indexOf('?');
+        if (questionMarkIndex != -1) {
+            image = image.substring(0, questionMarkIndex);
+        }
+
+        Optional<FileLocation> location = getImageLocation(image);
+        if (!location.isPresent()) {
+            return send404ForImage();
+        }
+        Path worldFolder = location.get().getWorldFolder();
+        TileStore tileStore = serverInfo.getTileStore(worldFolder);
+        int zoomLevel = location.get().getZoomLevel();
+        int x = location.get().getX();
+        int z = location.get().getZ();
+
+        // Must be looked up before reading the image, so that the version is
+        // never newer than the image
+        long version = TileVersions.forWorldFolder(worldFolder).getVersion(zoomLevel, x, z);
+        CharSequence cacheControl = getImageCacheControl(version, requestedVersion);
+
+        if (imageCache.isEnabled()) {
+            ImageCache.Key key = new ImageCache.Key(worldFolder, zoomLevel, x, z, version);
+            Optional<CachedImage> cachedImage = getImage(tileStore, key, zoomLevel, x, z);
+            if (cachedImage.isPresent()) {
+                Optional<HttpResponse> response = sendCachedImage(request, cachedImage.get(), cacheControl);
+                if (response.isPresent()) {
+                    return response.get();
+                }
+                // Removed from memory right away, so read it again below
+            }
+        }
+
+        // Send directly from the file if possible
+        Optional<Path> file = tileStore.getPngFile(zoomLevel, x, z);
+        if (file.isPresent()) {
+            Optional<HttpResponse> response = sendImageFile(request, file.get(), cacheControl);
+            if (response.isPresent()) {
+                return response.get();
+            }
+            // Removed in the meantime, try reading it from the store
+        }
+
+        Optional<ByteBuffer> png = readPng(tileStore, zoomLevel, x, z);
+        if (!png.isPresent()) {
+            return send404ForImage();
+        }
+        String etag = createEtag(png.get());
+        if (isNotModified(request, etag, -1)) {
+            return sendNotModified(etag, cacheControl);
+        }
+        return sendPng(Unpooled.wrappedBuffer(png.get()), etag, -1, cacheControl);
+    }
+
+    /**
+     * Tells the web browser that its copy of a file is still up to date.
+     *
+     * @param etag
+     *            The entity tag of the file.
+     * @param cacheControl
+     *            The Cache-Control header.
+     * @return The response.
+     */
+    private FullHttpResponse sendNotModified(String etag, CharSequence cacheControl) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+        setCacheHeaders(response, etag, cacheControl);
+        return response;
+    }
 
-            return response;
+    private FullHttpResponse sendPng(ByteBuf buffer, String etag, long lastModifiedMillis,
+            CharSequence cacheControl) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                buffer);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, getMime(".png"));
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.readableBytes());
+        setCacheHeaders(response, etag, cacheControl);
+        if (lastModifiedMillis >= 0) {
+            response.headers().set(HttpHeaderNames.LAST_MODIFIED, new Date(lastModifiedMillis));
         }
+        return response;
     }
 
     private FullHttpResponse sendPlayerList(WebWorld world) throws IOException {
@@ -274,13 +877,63 @@ final class WebRequestHandler {
         return jsonResponse(output);
     }
 
-    private ByteBuf toBuffer(InputStream stream) throws IOException {
-        ByteBuf buffer = Unpooled.buffer();
-        int written = buffer.writeBytes(stream, 4096);
-        while (written == 4096) {
-            written = buffer.writeBytes(stream, 4096);
+    private FullHttpResponse sendStaticFile(HttpRequest request, String file) throws IOException {
+        Optional<StaticFile> staticFile = getStaticFile(file);
+        if (!staticFile.isPresent()) {
+            return send404();
         }
-        return buffer;
+        String etag = staticFile.get().etag;
+        CharSequence cacheControl = getCacheControl(serverInfo.getStaticFileMaxAgeSeconds());
+        if (isNotModified(request, etag, -1)) {
+            return sendNotModified(etag, cacheControl);
+        }
+        FullHttpResponse response = sendFromJarFile(file, HttpResponseStatus.OK);
+        setCacheHeaders(response, etag, cacheControl);
+        return response;
+    }
+
+    /**
+     * Sends the versions of the map images that were drawn after the version
+     * in the "since" parameter. If that version is missing or newer than the
+     * latest version, which happens when the images were deleted, the
+     * versions of all images are sent.
+     *
+     * @param world
+     *            The world.
+     * @param uri
+     *            The requested URL.
+     * @return The response.
+     * @throws IOException
+     *             If writing the response fails.
+     */
+    private FullHttpResponse sendTileVersions(WebWorld world, String uri) throws IOException {
+        TileVersions versions = TileVersions.forWorldFolder(
+                serverInfo.getImagesFolder().resolve(world.getFolderName()));
+        long latestVersion = versions.getLatestVersion();
+        long since;
+        try {
+            since = Long.parseLong(getQueryParameter(uri, "since").orElse("0"));
+        } catch (NumberFormatException e) {
+            since = 0;
+        }
+        boolean complete = since <= 0 || since > latestVersion;
+        if (complete) {
+            since = TileVersions.NO_VERSION;
+        }
+
+        // As a flat array of zoom level, x, z, version, to keep it small
+        JsonArray tiles = new JsonArray();
+        for (TileVersion tileVersion : versions.getChangedSince(since)) {
+            tiles.add(tileVersion.getZoomLevel());
+            tiles.add(tileVersion.getX());
+            tiles.add(tileVersion.getZ());
+            tiles.add(tileVersion.getVersion());
+        }
+        JsonObject output = new JsonObject();
+        output.addProperty("latest", latestVersion);
+        output.addProperty("complete", complete);
+        output.add("tiles", tiles);
+        return jsonResponse(output);
     }
 
     /**
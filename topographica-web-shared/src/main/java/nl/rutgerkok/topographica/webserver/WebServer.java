@@ -2,11 +2,25 @@ package nl.rutgerkok.topographica.webserver;
 
 import static io.netty.buffer.Unpooled.copiedBuffer;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.BindException;
 import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -22,16 +36,84 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.ReferenceCountUtil;
 
 public final class WebServer {
 
+    /**
+     * Handles the requests of a single connection.
+     */
+    private final class RequestChannelHandler extends ChannelInboundHandlerAdapter {
+
+        /**
+         * Completes once the response to the previous request has been
+         * written, as the responses must be written in the same order as the
+         * requests. Only accessed from the network thread of the connection.
+         */
+        private CompletableFuture<?> previousResponse = CompletableFuture.completedFuture(null);
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            try {
+                if (msg instanceof FullHttpRequest) {
+                    FullHttpRequest request = (FullHttpRequest) msg;
+                    boolean keepAlive = HttpUtil.isKeepAlive(request);
+                    CompletableFuture<HttpResponse> response = respond(request);
+                    previousResponse = previousResponse
+                            .thenCombine(response, (previous, current) -> current)
+                            .handle((current, e) -> {
+                                if (e == null) {
+                                    write(ctx, current, keepAlive);
+                                } else {
+                                    ctx.fireExceptionCaught(e instanceof CompletionException ? e.getCause() : e);
+                                }
+                                return null;
+                            });
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.INTERNAL_SERVER_ERROR,
+                    copiedBuffer(String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8))));
+        }
+
+        private void write(ChannelHandlerContext ctx, HttpResponse response, boolean keepAlive) {
+            if (keepAlive) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            }
+            if (response instanceof FileRegionResponse) {
+                ctx.write(response);
+                ctx.write(((FileRegionResponse) response).getBody());
+                ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            } else {
+                ctx.writeAndFlush(response);
+            }
+        }
+    }
+
+    private final AtomicLong answeredFromMemory = new AtomicLong();
     private ChannelFuture channel;
     private final EventLoopGroup masterGroup;
+    private final QueueFullAction queueFullAction;
+    private final AtomicLong queueFullCount = new AtomicLong();
+    private final ThreadPoolExecutor requestExecutor;
     private final EventLoopGroup slaveGroup;
     private final WebRequestHandler requestHandler;
 
@@ -40,6 +122,17 @@ public final class WebServer {
         slaveGroup = new NioEventLoopGroup();
         requestHandler = new WebRequestHandler(files, serverInfo, logger);
 
+        // Reading from disk can take long, so it happens on separate threads
+        // to keep the network threads free for requests that are in memory
+        int requestThreads = serverInfo.getRequestThreads();
+        requestExecutor = new ThreadPoolExecutor(requestThreads, requestThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(serverInfo.getRequestQueueSize()), new ThreadFactoryBuilder()
+                        .setNameFormat("Topographica web request %d")
+                        .setDaemon(true)
+                        .build());
+        requestExecutor.allowCoreThreadTimeOut(true);
+        queueFullAction = serverInfo.getQueueFullAction();
+
         enable(serverInfo);
     }
 
@@ -53,6 +146,15 @@ public final class WebServer {
             }
         } catch (InterruptedException e) {
         }
+
+        requestExecutor.shutdown();
+        try {
+            requestExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+
+        // Frees the memory outside of the Java heap
+        requestHandler.getImageCache().invalidateAll();
     }
 
     private void enable(ServerInfo serverInfo) throws BindException {
@@ -69,41 +171,7 @@ public final class WebServer {
                             ch.pipeline().addLast("codec", new HttpServerCodec());
                             ch.pipeline().addLast("aggregator",
                                     new HttpObjectAggregator(512 * 1024));
-                            ch.pipeline().addLast("request",
-                                    new ChannelInboundHandlerAdapter() {
-                                        @Override
-                                        public void channelRead(ChannelHandlerContext ctx, Object msg)
-                                                throws Exception {
-                                            try {
-                                                if (msg instanceof FullHttpRequest) {
-                                                    FullHttpRequest request = (FullHttpRequest) msg;
-                                                    FullHttpResponse response = requestHandler.respond(request);
-                                                    if (HttpUtil.isKeepAlive(request)) {
-                                                        response.headers().set(HttpHeaderNames.CONNECTION,
-                                                                HttpHeaderValues.KEEP_ALIVE);
-                                                    }
-                                                    ctx.writeAndFlush(response);
-                                                }
-                                            } finally {
-                                                ReferenceCountUtil.release(msg);
-                                            }
-                                        }
-
-                                        @Override
-                                        public void channelReadComplete(ChannelHandlerContext ctx)
-                                                throws Exception {
-                                            ctx.flush();
-                                        }
-
-                                        @Override
-                                        public void exceptionCaught(ChannelHandlerContext ctx,
-                                                Throwable cause) throws Exception {
-                                            ctx.writeAndFlush(new DefaultFullHttpResponse(
-                                                    HttpVersion.HTTP_1_1,
-                                                    HttpResponseStatus.INTERNAL_SERVER_ERROR,
-                                                    copiedBuffer(cause.getMessage().getBytes(StandardCharsets.UTF_8))));
-                                        }
-                                    });
+                            ch.pipeline().addLast("request", new RequestChannelHandler());
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
@@ -113,4 +181,131 @@ public final class WebServer {
         }
     }
 
+    /**
+     * Gets how many requests the web server answered on the threads that read
+     * from disk.
+     *
+     * @return The approximate amount of requests.
+     */
+    public long getAnsweredFromDisk() {
+        return requestExecutor.getCompletedTaskCount();
+    }
+
+    /**
+     * Gets how many requests the web server answered from memory, without
+     * waiting for a thread that reads from disk.
+     *
+     * @return The amount of requests.
+     */
+    public long getAnsweredFromMemory() {
+        return answeredFromMemory.get();
+    }
+
+    /**
+     * Gets the maximum amount of memory used for keeping map images in
+     * memory.
+     *
+     * @return The amount of bytes.
+     */
+    public long getImageCacheMaxBytes() {
+        return requestHandler.getImageCache().getMaxBytes();
+    }
+
+    /**
+     * Gets the hit and miss statistics of the map images in memory.
+     *
+     * @return The statistics.
+     */
+    public CacheStats getImageCacheStats() {
+        return requestHandler.getImageCache().getStats();
+    }
+
+    /**
+     * Gets the amount of memory currently used for keeping map images in
+     * memory.
+     *
+     * @return The amount of bytes.
+     */
+    public long getImageCacheUsedBytes() {
+        return requestHandler.getImageCache().getUsedBytes();
+    }
+
+    /**
+     * Gets how many times a request that must be read from disk arrived
+     * while the queue of waiting requests was full. What happened with those
+     * requests is controlled by {@link ServerInfo#getQueueFullAction()}.
+     *
+     * @return The amount of requests.
+     */
+    public long getQueueFullCount() {
+        return queueFullCount.get();
+    }
+
+    /**
+     * Gets how many requests can wait for a thread that reads from disk.
+     *
+     * @return The amount of requests.
+     */
+    public int getRequestQueueSize() {
+        return requestExecutor.getQueue().size() + requestExecutor.getQueue().remainingCapacity();
+    }
+
+    /**
+     * Gets how many requests are waiting for a thread that reads from disk.
+     *
+     * @return The amount of requests.
+     */
+    public int getRequestsWaiting() {
+        return requestExecutor.getQueue().size();
+    }
+
+    /**
+     * Responds to a request. Requests for things in memory are answered right
+     * away, other requests are handed over to the threads that read from
+     * disk.
+     *
+     * @param request
+     *            The request. Not released by this method.
+     * @return The response, once available.
+     * @throws IOException
+     *             If the queue is full and handling the request on the current
+     *             thread failed.
+     */
+    private CompletableFuture<HttpResponse> respond(FullHttpRequest request) throws IOException {
+        Optional<HttpResponse> fromMemory = requestHandler.respondFromMemory(request);
+        if (fromMemory.isPresent()) {
+            answeredFromMemory.incrementAndGet();
+            return CompletableFuture.completedFuture(fromMemory.get());
+        }
+
+        request.retain();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return requestHandler.respond(request);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    request.release();
+                }
+            }, requestExecutor);
+        } catch (RejectedExecutionException e) {
+            request.release();
+            queueFullCount.incrementAndGet();
+            if (queueFullAction == QueueFullAction.RUN_ON_NETWORK_THREAD) {
+                return CompletableFuture.completedFuture(requestHandler.respond(request));
+            }
+            return CompletableFuture.completedFuture(sendServiceUnavailable());
+        }
+    }
+
+    private FullHttpResponse sendServiceUnavailable() {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        response.headers().set(HttpHeaderNames.RETRY_AFTER, 1);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+        return response;
+    }
+
 }
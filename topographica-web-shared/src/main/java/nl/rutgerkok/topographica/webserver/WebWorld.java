@@ -43,4 +43,13 @@ public interface WebWorld {
      * @return The block origin, [x, y, z].
      */
     int[] getOrigin();
+
+    /**
+     * Gets the amount of zoom levels of the map. The images of zoom level 1
+     * each show a single region, the images of every next level each show
+     * 2x2 images of the level below.
+     *
+     * @return The amount of zoom levels, at least 1.
+     */
+    int getZoomLevels();
 }
@@ -1,6 +1,26 @@
-// Globals: worldFolderName, worldOrigin, worldMarkers
+// Globals: worldFolderName, worldOrigin, worldZoomLevels, worldMarkers, worldTileVersion
 
 
+// Tile layer that adds the version of each image drawn after the page was
+// loaded to its URL, so that the browser can keep the image until it is drawn
+// again. Older images are requested without a version, like before.
+var VersionedTileLayer = L.TileLayer.extend({
+    getTileUrl: function(coords) {
+        var url = L.TileLayer.prototype.getTileUrl.call(this, coords);
+        var version = this.options.tileVersions[coords.z + ':' + coords.x + ':' + coords.y];
+        return version === undefined? url : url + '?v=' + version;
+    },
+    refreshTiles: function() {
+        for (var key in this._tiles) {
+            var tile = this._tiles[key];
+            var url = this.getTileUrl(tile.coords);
+            if (tile.el.getAttribute('src') !== url) {
+                tile.el.src = url;
+            }
+        }
+    }
+});
+
 // Setup map
 function setupMap(id) {
     var map = {};
@@ -10,14 +30,18 @@ function setupMap(id) {
         zoom: -1,
         center: coordsToLatLong(worldOrigin[0], worldOrigin[1])
     });
-    L.tileLayer('/images/' + worldFolderName + '/zoom{z}/r.{x}.{y}.png', {
-        minZoom: -4,
+    map.tileVersions = {};
+    map.latestTileVersion = worldTileVersion;
+    map.tileLayer = new VersionedTileLayer('/images/' + worldFolderName + '/zoom{z}/r.{x}.{y}.png', {
+        minZoom: -worldZoomLevels,
         maxZoom: -1,
         attribution: '@PROJECT_NAME@',
         tms: false,
         noWrap: true,
-        continuousWorld: true
-    }).addTo(map.leafletMap);
+        continuousWorld: true,
+        tileVersions: map.tileVersions
+    });
+    map.tileLayer.addTo(map.leafletMap);
 
     addMarkers(map, worldMarkers);
 
@@ -47,10 +71,42 @@ function startUpdating(map) { // Also works for restarting updating
     }
     map.updateInterval = setInterval(function() {
          fetchPlayers(map);
+         fetchTileVersions(map);
     }, 10 * 1000);
     fetchPlayers(map);
 }
 
+// Load the versions of the images that were drawn since the last time
+function fetchTileVersions(map) {
+    var xhttp = new XMLHttpRequest();
+    xhttp.onreadystatechange = function() {
+        if (this.readyState == 4 && this.status == 200) {
+            updateTileVersions(map, JSON.parse(this.responseText));
+        }
+    };
+    xhttp.open("GET",
+               "tile-versions.json?world=" + encodeURIComponent(worldFolderName)
+                   + "&since=" + map.latestTileVersion,
+               true);
+    xhttp.send();
+}
+function updateTileVersions(map, response) {
+    if (response.complete) {
+        for (var key in map.tileVersions) {
+            delete map.tileVersions[key];
+        }
+    }
+    // Flat array of zoom level, x, z, version. Zoom level 1 is Leaflet zoom -1
+    var tiles = response.tiles;
+    for (var i = 0; i + 3 < tiles.length; i += 4) {
+        map.tileVersions[(-tiles[i]) + ':' + tiles[i + 1] + ':' + tiles[i + 2]] = tiles[i + 3];
+    }
+    map.latestTileVersion = response.latest;
+    if (tiles.length > 0 || response.complete) {
+        map.tileLayer.refreshTiles();
+    }
+}
+
 // Load players
 function fetchPlayers(map) {
     var xhttp = new XMLHttpRequest();
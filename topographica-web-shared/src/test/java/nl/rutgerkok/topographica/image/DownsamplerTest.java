@@ -0,0 +1,125 @@
+package nl.rutgerkok.topographica.image;
+
+import static nl.rutgerkok.topographica.image.TileImages.SIZE_PIXELS;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DownsamplerTest {
+
+    private static final int HALF_SIZE = SIZE_PIXELS / 2;
+
+    /**
+     * Color that the target image is filled with before downsampling, to see
+     * which pixels were written.
+     */
+    private static final int UNTOUCHED = 0x123456;
+
+    private void assertPixel(int expected, int[] target, int x, int z) {
+        assertEquals("Pixel " + x + "," + z + ": expected " + Integer.toHexString(expected) + ", got "
+                + Integer.toHexString(target[z * SIZE_PIXELS + x]), expected, target[z * SIZE_PIXELS + x]);
+    }
+
+    private int[] createTarget() {
+        int[] target = new int[SIZE_PIXELS * SIZE_PIXELS];
+        Arrays.fill(target, UNTOUCHED);
+        return target;
+    }
+
+    /**
+     * Downsamples a single 2x2 block, placed at the top left of an otherwise
+     * black image.
+     */
+    private int downsampleBlock(int topLeft, int topRight, int bottomLeft, int bottomRight) {
+        int[] source = new int[SIZE_PIXELS * SIZE_PIXELS];
+        setBlock(source, 0, 0, topLeft, topRight, bottomLeft, bottomRight);
+        int[] target = createTarget();
+        Downsampler.downsampleQuadrant(source, 0, 0, target);
+        return target[0];
+    }
+
+    private void setBlock(int[] source, int x, int z, int topLeft, int topRight, int bottomLeft, int bottomRight) {
+        source[z * SIZE_PIXELS + x] = topLeft;
+        source[z * SIZE_PIXELS + x + 1] = topRight;
+        source[(z + 1) * SIZE_PIXELS + x] = bottomLeft;
+        source[(z + 1) * SIZE_PIXELS + x + 1] = bottomRight;
+    }
+
+    @Test
+    public void testAlphaIgnored() {
+        assertEquals(0x123456, downsampleBlock(0xff123456, 0xff123456, 0xff123456, 0xff123456));
+        assertEquals(0xffffff, downsampleBlock(0x80ffffff, 0xffffffff, 0x7fffffff, 0x01ffffff));
+        assertEquals(0x000000, downsampleBlock(0xff000000, 0xff000000, 0xff000000, 0xff000000));
+    }
+
+    @Test
+    public void testAverage() {
+        assertEquals(0xffffff, downsampleBlock(0xffffff, 0xffffff, 0xffffff, 0xffffff));
+
+        // Red and blue are added in the same int, so must not overflow into
+        // each other or into green
+        assertEquals(0xff00ff, downsampleBlock(0xff00ff, 0xff00ff, 0xff00ff, 0xff00ff));
+        assertEquals(0x400080, downsampleBlock(0xff0000, 0x000000, 0x0000ff, 0x0000ff));
+        assertEquals(0x00bf00, downsampleBlock(0x00ff00, 0x00ff00, 0x00ff00, 0x000000));
+        assertEquals(0x102030, downsampleBlock(0x000000, 0x204060, 0x204060, 0x000000));
+    }
+
+    @Test
+    public void testDownsampleFourImages() {
+        int[] topLeft = new int[SIZE_PIXELS * SIZE_PIXELS];
+        int[] topRight = new int[SIZE_PIXELS * SIZE_PIXELS];
+        int[] bottomLeft = new int[SIZE_PIXELS * SIZE_PIXELS];
+        setBlock(topLeft, 2, 4, 0x040404, 0x040404, 0x040404, 0x040404);
+        setBlock(topRight, SIZE_PIXELS - 2, 0, 0x080000, 0x080000, 0x080000, 0x080000);
+        setBlock(bottomLeft, 0, SIZE_PIXELS - 2, 0x0000ff, 0x0000ff, 0x000000, 0x000000);
+        int[] target = createTarget();
+
+        Downsampler.downsample(topLeft, topRight, bottomLeft, null, target);
+
+        assertPixel(0x000000, target, 0, 0);
+        assertPixel(0x040404, target, 1, 2);
+        assertPixel(0x080000, target, SIZE_PIXELS - 1, 0);
+        assertPixel(0x000080, target, 0, SIZE_PIXELS - 1);
+        for (int x = HALF_SIZE; x < SIZE_PIXELS; x++) {
+            for (int z = HALF_SIZE; z < SIZE_PIXELS; z++) {
+                assertPixel(0x000000, target, x, z);
+            }
+        }
+    }
+
+    @Test
+    public void testDownsampleQuadrant() {
+        int[] source = new int[SIZE_PIXELS * SIZE_PIXELS];
+        setBlock(source, 0, 0, 0xff0000, 0xff0000, 0xff0000, 0xff0000);
+        setBlock(source, SIZE_PIXELS - 2, SIZE_PIXELS - 2, 0x00ff00, 0x00ff00, 0x00ff00, 0x00ff00);
+        int[] target = createTarget();
+
+        Downsampler.downsampleQuadrant(source, 1, 1, target);
+
+        assertPixel(0xff0000, target, HALF_SIZE, HALF_SIZE);
+        assertPixel(0x00ff00, target, SIZE_PIXELS - 1, SIZE_PIXELS - 1);
+        assertPixel(0x000000, target, HALF_SIZE + 1, HALF_SIZE);
+        assertPixel(UNTOUCHED, target, HALF_SIZE - 1, HALF_SIZE);
+        assertPixel(UNTOUCHED, target, HALF_SIZE, HALF_SIZE - 1);
+        assertPixel(UNTOUCHED, target, 0, 0);
+
+        // Empty image
+        Downsampler.downsampleQuadrant(null, 0, 0, target);
+        assertPixel(0x000000, target, 0, 0);
+        assertPixel(0x000000, target, HALF_SIZE - 1, HALF_SIZE - 1);
+        assertPixel(UNTOUCHED, target, HALF_SIZE, 0);
+        assertPixel(UNTOUCHED, target, 0, HALF_SIZE);
+    }
+
+    @Test
+    public void testRounding() {
+        // A quarter rounds down, a half and three quarters round up
+        assertEquals(0x000000, downsampleBlock(0x010101, 0x000000, 0x000000, 0x000000));
+        assertEquals(0x010101, downsampleBlock(0x010101, 0x010101, 0x000000, 0x000000));
+        assertEquals(0x010101, downsampleBlock(0x030303, 0x000000, 0x000000, 0x000000));
+        assertEquals(0x808080, downsampleBlock(0xffffff, 0xffffff, 0x010101, 0x000000));
+        assertEquals(0x7f7f7f, downsampleBlock(0xfefefe, 0x000000, 0xffffff, 0x000000));
+    }
+}
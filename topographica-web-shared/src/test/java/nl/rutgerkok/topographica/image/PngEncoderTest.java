@@ -0,0 +1,123 @@
+package nl.rutgerkok.topographica.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import nl.rutgerkok.topographica.image.PngEncoder.RowFilter;
+
+public class PngEncoderTest {
+
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_RGB = 2;
+
+    /**
+     * Position of the color type in the file: after the signature, the length
+     * and type of the header chunk, the width, the height and the bit depth.
+     */
+    private static final int COLOR_TYPE_POSITION = 8 + 4 + 4 + 4 + 4 + 1;
+
+    private static final int HEIGHT = 23;
+    private static final int WIDTH = 37;
+
+    private void assertRoundTrip(String message, PngEncoder encoder, int[] pixels, int expectedColorType)
+            throws IOException {
+        byte[] png = encode(encoder, pixels);
+        assertEquals(message, expectedColorType, png[COLOR_TYPE_POSITION]);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(message, WIDTH, image.getWidth());
+        assertEquals(message, HEIGHT, image.getHeight());
+        assertFalse(message, image.getColorModel().hasAlpha());
+        int[] expected = new int[pixels.length];
+        int[] actual = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            expected[i] = pixels[i] & 0xffffff;
+            actual[i] = image.getRGB(i % WIDTH, i / WIDTH) & 0xffffff;
+        }
+        assertArrayEquals(message, expected, actual);
+    }
+
+    private byte[] encode(PngEncoder encoder, int[] pixels) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        encoder.write(pixels, WIDTH, HEIGHT, stream);
+        return stream.toByteArray();
+    }
+
+    private int[] randomPixels(Random random, int colorCount) {
+        int[] colors = new int[colorCount];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt(0x1000000);
+        }
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            // Use runs of the same color, like in map images
+            pixels[i] = i < colors.length ? colors[i] : random.nextInt(3) == 0 ? pixels[i - 1]
+                    : colors[random.nextInt(colors.length)];
+        }
+        return pixels;
+    }
+
+    @Test
+    public void testAllFilters() throws IOException {
+        Random random = new Random(1);
+        int[] fewColors = randomPixels(random, 200);
+        int[] manyColors = randomPixels(random, 800);
+        for (RowFilter rowFilter : RowFilter.values()) {
+            for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION }) {
+                String message = rowFilter + " at level " + level;
+                PngEncoder rgb = new PngEncoder(level, Deflater.DEFAULT_STRATEGY, rowFilter, false);
+                PngEncoder indexed = new PngEncoder(level, Deflater.DEFAULT_STRATEGY, rowFilter, true);
+                assertRoundTrip(message, rgb, fewColors, COLOR_TYPE_RGB);
+                assertRoundTrip(message, rgb, manyColors, COLOR_TYPE_RGB);
+                assertRoundTrip(message, indexed, fewColors, COLOR_TYPE_INDEXED);
+                assertRoundTrip(message, indexed, manyColors, COLOR_TYPE_RGB);
+            }
+        }
+    }
+
+    @Test
+    public void testPaletteLimit() throws IOException {
+        Random random = new Random(2);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i % 256 * 0x010101;
+        }
+        assertRoundTrip("256 colors", PngEncoder.FAST, pixels, COLOR_TYPE_INDEXED);
+
+        pixels[random.nextInt(pixels.length)] = 0x123456;
+        assertRoundTrip("257 colors", PngEncoder.FAST, pixels, COLOR_TYPE_RGB);
+    }
+
+    @Test
+    public void testTransparentPixels() throws IOException {
+        // The highest byte is ignored, so pixels of TYPE_INT_ARGB images are
+        // written as opaque pixels of the same color
+        Random random = new Random(3);
+        int[] fewColors = randomPixels(random, 100);
+        int[] manyColors = randomPixels(random, 800);
+        for (int i = 0; i < fewColors.length; i++) {
+            fewColors[i] |= random.nextInt(256) << 24;
+            manyColors[i] |= random.nextInt(256) << 24;
+        }
+        fewColors[0] = 0xffffffff;
+        fewColors[1] = 0x00000000;
+
+        assertRoundTrip("Indexed", PngEncoder.FAST, fewColors, COLOR_TYPE_INDEXED);
+        assertRoundTrip("RGB", PngEncoder.FAST, manyColors, COLOR_TYPE_RGB);
+        PngEncoder adaptive = new PngEncoder(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, RowFilter.ADAPTIVE,
+                false);
+        assertRoundTrip("Adaptive", adaptive, fewColors, COLOR_TYPE_RGB);
+    }
+}
@@ -0,0 +1,188 @@
+package nl.rutgerkok.topographica.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+public class TileArchiveTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private void assertImage(byte[] expected, TileArchive archive, int zoomLevel, int x, int z) throws IOException {
+        Optional<ByteBuffer> png = archive.read(zoomLevel, x, z);
+        assertTrue("Missing image " + zoomLevel + "/" + x + "," + z, png.isPresent());
+        byte[] actual = new byte[png.get().remaining()];
+        png.get().get(actual);
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    private Path copyWorldFolder(Path worldFolder) throws IOException {
+        Path copy = temporaryFolder.newFolder().toPath();
+        Files.createDirectory(copy.resolve("archive"));
+        Files.copy(getPackFile(worldFolder, 1), getPackFile(copy, 1));
+        return copy;
+    }
+
+    private Path getPackFile(Path worldFolder, long generation) {
+        return worldFolder.resolve("archive").resolve("zoom-1." + generation + ".pack");
+    }
+
+    private byte[] randomPng(Random random) {
+        byte[] png = new byte[1 + random.nextInt(100)];
+        random.nextBytes(png);
+        return png;
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        Random random = new Random(1);
+        TileArchive archive = new TileArchive(worldFolder);
+        byte[][] latest = new byte[10][];
+        for (int i = 0; i < 100; i++) {
+            latest[i % 10] = randomPng(random);
+            archive.write(1, i % 10, 0, latest[i % 10]);
+        }
+
+        archive.compact(1);
+        assertFalse(Files.exists(getPackFile(worldFolder, 1)));
+        assertTrue(Files.exists(getPackFile(worldFolder, 2)));
+        for (int i = 0; i < 10; i++) {
+            assertImage(latest[i], archive, 1, i, 0);
+        }
+
+        // Keeps working after the switch, also for other processes
+        byte[] png = randomPng(random);
+        archive.write(1, 20, 0, png);
+        TileArchive reopened = new TileArchive(worldFolder);
+        assertEquals(11, reopened.getImages(1).size());
+        for (int i = 0; i < 10; i++) {
+            assertImage(latest[i], reopened, 1, i, 0);
+        }
+        assertImage(png, reopened, 1, 20, 0);
+    }
+
+    @Test
+    public void testGarbledTail() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileArchive archive = new TileArchive(worldFolder);
+        byte[] png = { 1, 2, 3 };
+        archive.write(1, 0, 0, png);
+
+        // A record with a length of 0, as left behind by a crash that only
+        // extended the file, and one with a negative length
+        for (int length : new int[] { 0, -5 }) {
+            Path copy = copyWorldFolder(worldFolder);
+            ByteBuffer garbage = ByteBuffer.allocate(20);
+            garbage.putInt(8, length);
+            try (FileChannel channel = FileChannel.open(getPackFile(copy, 1), StandardOpenOption.APPEND)) {
+                channel.write(garbage);
+            }
+
+            TileArchive damaged = new TileArchive(copy);
+            assertEquals(Collections.singleton(IntPair.toLong(0, 0)), damaged.getImages(1));
+            assertImage(png, damaged, 1, 0, 0);
+
+            // Writing again must not replace the file, and the new record must
+            // be readable
+            byte[] newPng = { 4, 5 };
+            damaged.write(1, 1, 0, newPng);
+            TileArchive reopened = new TileArchive(copy);
+            assertImage(png, reopened, 1, 0, 0);
+            assertImage(newPng, reopened, 1, 1, 0);
+        }
+    }
+
+    @Test
+    public void testOverwrite() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileArchive archive = new TileArchive(worldFolder);
+        archive.write(1, 2, 3, new byte[] { 1, 2, 3 });
+        archive.write(1, 2, 3, new byte[] { 4, 5 });
+
+        assertImage(new byte[] { 4, 5 }, archive, 1, 2, 3);
+        assertEquals(Collections.singleton(IntPair.toLong(2, 3)), archive.getImages(1));
+        TileArchive reopened = new TileArchive(worldFolder);
+        assertImage(new byte[] { 4, 5 }, reopened, 1, 2, 3);
+        assertEquals(Collections.singleton(IntPair.toLong(2, 3)), reopened.getImages(1));
+    }
+
+    @Test
+    public void testTruncatedTail() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        Random random = new Random(2);
+        TileArchive archive = new TileArchive(worldFolder);
+        List<byte[]> pngs = new ArrayList<>();
+        List<Long> recordEnds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] png = randomPng(random);
+            archive.write(1, i, 0, png);
+            pngs.add(png);
+            recordEnds.add(Files.size(getPackFile(worldFolder, 1)));
+        }
+        long fileSize = recordEnds.get(recordEnds.size() - 1);
+
+        // Simulate crashes at random moments
+        for (int i = 0; i < 50; i++) {
+            long truncateAt = 4 + random.nextInt((int) fileSize - 3);
+            Path copy = copyWorldFolder(worldFolder);
+            try (FileChannel channel = FileChannel.open(getPackFile(copy, 1), StandardOpenOption.WRITE)) {
+                channel.truncate(truncateAt);
+            }
+
+            int completeRecords = 0;
+            while (completeRecords < recordEnds.size() && recordEnds.get(completeRecords) <= truncateAt) {
+                completeRecords++;
+            }
+            TileArchive crashed = new TileArchive(copy);
+            assertEquals("Truncated at " + truncateAt, completeRecords, crashed.getImages(1).size());
+            for (int j = 0; j < completeRecords; j++) {
+                assertImage(pngs.get(j), crashed, 1, j, 0);
+            }
+
+            // The writer removes the incomplete record before appending
+            byte[] png = randomPng(random);
+            crashed.write(1, 100, 0, png);
+            TileArchive reopened = new TileArchive(copy);
+            assertEquals(completeRecords + 1, reopened.getImages(1).size());
+            assertImage(png, reopened, 1, 100, 0);
+        }
+    }
+
+    @Test
+    public void testWriteThenReopen() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileArchive archive = new TileArchive(worldFolder);
+        archive.write(1, 0, 0, new byte[] { 1, 2, 3 });
+        archive.write(1, -1, 5, new byte[] { 4 });
+        archive.write(2, 0, 0, new byte[] { 5, 6 });
+
+        TileArchive reopened = new TileArchive(worldFolder);
+        assertImage(new byte[] { 1, 2, 3 }, reopened, 1, 0, 0);
+        assertImage(new byte[] { 4 }, reopened, 1, -1, 5);
+        assertImage(new byte[] { 5, 6 }, reopened, 2, 0, 0);
+        assertFalse(reopened.read(1, 1, 1).isPresent());
+        assertFalse(reopened.read(3, 0, 0).isPresent());
+        assertEquals(2, reopened.getImages(1).size());
+    }
+}
@@ -0,0 +1,69 @@
+package nl.rutgerkok.topographica.image;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileBitmapTest {
+
+    /**
+     * Changes by other processes are checked at most once a second.
+     */
+    private static final long REFRESH_WAIT_MILLIS = 1100;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path createFile(Path worldFolder, int x, int z) throws IOException {
+        Path file = TileImages.getFile(worldFolder, 1, x, z);
+        Files.createDirectories(file.getParent());
+        Files.createFile(file);
+        return file.getParent();
+    }
+
+    private void setModifiedSecondsAgo(Path folder, int seconds) throws IOException {
+        Files.setLastModifiedTime(folder, FileTime.fromMillis(System.currentTimeMillis() - seconds * 1000L));
+    }
+
+    @Test
+    public void testKnownMissing() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        createFile(worldFolder, 0, 0);
+        TileBitmap bitmap = TileBitmap.forWorldFolder(worldFolder);
+
+        // Only known once the folder is listed
+        assertFalse(bitmap.isKnownMissing(1, 1, 0));
+        assertFalse(bitmap.contains(1, 1, 0));
+        assertTrue(bitmap.isKnownMissing(1, 1, 0));
+        assertFalse(bitmap.isKnownMissing(1, 0, 0));
+        assertFalse(bitmap.isKnownMissing(2, 0, 0));
+    }
+
+    @Test
+    public void testWaitsUntilFolderIsQuiet() throws IOException, InterruptedException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        Path zoomFolder = createFile(worldFolder, 0, 0);
+        setModifiedSecondsAgo(zoomFolder, 60);
+        TileBitmap bitmap = TileBitmap.forWorldFolder(worldFolder);
+        assertTrue(bitmap.contains(1, 0, 0));
+
+        // Another process adds an image, and is still writing
+        createFile(worldFolder, 1, 0);
+        setModifiedSecondsAgo(zoomFolder, 0);
+        Thread.sleep(REFRESH_WAIT_MILLIS);
+        assertFalse(bitmap.contains(1, 1, 0));
+
+        // Once the folder is quiet, it's listed again
+        setModifiedSecondsAgo(zoomFolder, 5);
+        Thread.sleep(REFRESH_WAIT_MILLIS);
+        assertTrue(bitmap.contains(1, 1, 0));
+    }
+}
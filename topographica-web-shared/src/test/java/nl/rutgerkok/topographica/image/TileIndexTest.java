@@ -0,0 +1,105 @@
+package nl.rutgerkok.topographica.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.OptionalInt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.rutgerkok.topographica.webserver.IntPair;
+
+public class TileIndexTest {
+
+    /**
+     * Other processes check for changes at most once a second.
+     */
+    private static final long REFRESH_WAIT_MILLIS = 1100;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testCompactionByOtherProcess() throws IOException, InterruptedException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileIndex writer = new TileIndex(worldFolder);
+        for (int i = 0; i < 5000; i++) {
+            writer.setColor(1, i, 0, 1);
+        }
+        // More superseded records than a compaction is done for, but less
+        // than the current records, so the writer doesn't compact yet
+        for (int i = 0; i < 4200; i++) {
+            writer.setColor(1, i, 0, 2);
+        }
+        Path file = worldFolder.resolve(TileIndex.FILE_NAME);
+        byte[] contents = Files.readAllBytes(file);
+
+        // Reading must never change the file
+        TileIndex reader = new TileIndex(worldFolder);
+        assertEquals(OptionalInt.of(2), reader.getColor(1, 0, 0));
+        assertEquals(OptionalInt.of(1), reader.getColor(1, 4999, 0));
+        assertArrayEquals(contents, Files.readAllBytes(file));
+
+        // Follows appended records
+        writer.setColor(1, 0, 1, 0xabcdef);
+        Thread.sleep(REFRESH_WAIT_MILLIS);
+        assertEquals(OptionalInt.of(0xabcdef), reader.getColor(1, 0, 1));
+
+        // Follows a compaction
+        for (int i = 1; i < 5000; i++) {
+            writer.remove(1, i, 0);
+        }
+        assertTrue(Files.size(file) < contents.length);
+        Thread.sleep(REFRESH_WAIT_MILLIS);
+        assertEquals(OptionalInt.of(2), reader.getColor(1, 0, 0));
+        assertEquals(OptionalInt.empty(), reader.getColor(1, 1, 0));
+        assertEquals(OptionalInt.of(0xabcdef), reader.getColor(1, 0, 1));
+        assertEquals(2, reader.getImages(1).size());
+    }
+
+    @Test
+    public void testSetColorThenRemove() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileIndex index = new TileIndex(worldFolder);
+        index.setColor(1, 3, -4, 0xff0000);
+        assertEquals(OptionalInt.of(0xff0000), index.getColor(1, 3, -4));
+        assertEquals(Collections.singleton(IntPair.toLong(3, -4)), index.getImages(1));
+        assertEquals(OptionalInt.of(0xff0000), new TileIndex(worldFolder).getColor(1, 3, -4));
+
+        index.remove(1, 3, -4);
+        assertEquals(OptionalInt.empty(), index.getColor(1, 3, -4));
+        assertEquals(Collections.emptySet(), index.getImages(1));
+        assertEquals(OptionalInt.empty(), new TileIndex(worldFolder).getColor(1, 3, -4));
+    }
+
+    @Test
+    public void testSharedBlob() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileIndex index = new TileIndex(worldFolder);
+        byte[] png = { 1, 2, 3, 4 };
+        index.storeBlob(1, 0, 0, png);
+        index.storeBlob(1, 1, 0, png);
+        Path blobFile = index.getBlobFile(1, 0, 0).get();
+        assertEquals(blobFile, index.getBlobFile(1, 1, 0).get());
+
+        // Still used by the other image
+        index.setColor(1, 0, 0, 0x00ff00);
+        assertTrue(Files.exists(blobFile));
+        assertArrayEquals(png, Files.readAllBytes(blobFile));
+        assertEquals(blobFile, new TileIndex(worldFolder).getBlobFile(1, 1, 0).get());
+
+        // No longer used
+        index.remove(1, 1, 0);
+        assertFalse(Files.exists(blobFile));
+        assertFalse(index.hasBlobs());
+        assertFalse(new TileIndex(worldFolder).hasBlobs());
+    }
+}
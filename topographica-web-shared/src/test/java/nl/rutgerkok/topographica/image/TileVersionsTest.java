@@ -0,0 +1,166 @@
+package nl.rutgerkok.topographica.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.rutgerkok.topographica.image.TileVersions.TileVersion;
+
+public class TileVersionsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String toString(List<TileVersion> tileVersions) {
+        StringBuilder builder = new StringBuilder();
+        for (TileVersion tileVersion : tileVersions) {
+            builder.append(tileVersion.getZoomLevel()).append('/').append(tileVersion.getX()).append(',')
+                    .append(tileVersion.getZ()).append(' ');
+        }
+        return builder.toString().trim();
+    }
+
+    @Test
+    public void testChangedSince() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileVersions versions = new TileVersions(worldFolder);
+        versions.markChanged(1, 0, 0);
+        versions.markChanged(1, 1, 0);
+        versions.markChanged(2, 0, -1);
+        long first = versions.getVersion(1, 0, 0);
+
+        assertEquals("1/1,0 2/0,-1", toString(versions.getChangedSince(first)));
+
+        // Drawing an image again moves it to the end
+        versions.markChanged(1, 0, 0);
+        assertEquals("1/1,0 2/0,-1 1/0,0", toString(versions.getChangedSince(first)));
+        assertEquals("", toString(versions.getChangedSince(versions.getLatestVersion())));
+        assertEquals(versions.getLatestVersion(), versions.getVersion(1, 0, 0));
+        assertEquals(TileVersions.NO_VERSION, versions.getVersion(1, 5, 5));
+    }
+
+    @Test
+    public void testPartialLastRecord() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileVersions versions = new TileVersions(worldFolder);
+        versions.markChanged(1, 0, 0);
+        versions.markChanged(1, 1, 0);
+        long latestVersion = versions.getLatestVersion();
+
+        // Simulate a crash while writing a record
+        Files.write(worldFolder.resolve(TileVersions.FILE_NAME), new byte[] { 1, 0, 0 }, StandardOpenOption.APPEND);
+
+        TileVersions restarted = new TileVersions(worldFolder);
+        assertEquals(latestVersion, restarted.getLatestVersion());
+        assertEquals(latestVersion, restarted.getVersion(1, 1, 0));
+
+        // The partial record must not end up before the next record
+        restarted.markChanged(1, 2, 0);
+        TileVersions reader = new TileVersions(worldFolder);
+        assertEquals("1/0,0 1/1,0 1/2,0", toString(reader.getChangedSince(TileVersions.NO_VERSION)));
+        assertEquals(restarted.getLatestVersion(), reader.getLatestVersion());
+    }
+
+    @Test
+    public void testReaderNeverChangesFile() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileVersions writer = new TileVersions(worldFolder);
+        for (int i = 0; i < 5000; i++) {
+            writer.markChanged(1, i, 0);
+        }
+        // More superseded records than a compaction is done for, but less
+        // than the current records, so the writer doesn't compact yet
+        for (int i = 0; i < 4200; i++) {
+            writer.markChanged(1, i, 0);
+        }
+        Path file = worldFolder.resolve(TileVersions.FILE_NAME);
+        byte[] contents = Files.readAllBytes(file);
+
+        TileVersions reader = new TileVersions(worldFolder);
+        assertEquals(writer.getLatestVersion(), reader.getLatestVersion());
+        assertArrayEquals(contents, Files.readAllBytes(file));
+
+        // So versions of the writer are never given out twice
+        long latestVersion = writer.getLatestVersion();
+        writer.markChanged(1, 0, 1);
+        assertTrue(writer.getVersion(1, 0, 1) > latestVersion);
+        assertEquals(writer.getVersion(1, 0, 1), new TileVersions(worldFolder).getVersion(1, 0, 1));
+    }
+
+    @Test(timeout = 10000)
+    public void testRecentVersionDoesNotWait() throws InterruptedException, IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileVersions versions = new TileVersions(worldFolder);
+        versions.markChanged(1, 0, 0);
+        long version = versions.getVersion(1, 0, 0);
+
+        // The snapshot is made in the background
+        while (versions.getRecentVersion(1, 0, 0) != version) {
+            Thread.sleep(10);
+        }
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch unlock = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            synchronized (versions) {
+                locked.countDown();
+                try {
+                    unlock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        locked.await();
+        assertEquals(version, versions.getRecentVersion(1, 0, 0));
+        assertEquals(TileVersions.NO_VERSION, versions.getRecentVersion(1, 1, 0));
+        unlock.countDown();
+        thread.join();
+    }
+
+    @Test
+    public void testVersionsIncreaseAcrossRestarts() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileVersions versions = new TileVersions(worldFolder);
+        versions.markChanged(1, 0, 0);
+        long first = versions.getVersion(1, 0, 0);
+        versions.markChanged(1, 0, 0);
+        long second = versions.getVersion(1, 0, 0);
+        assertTrue(second > first);
+
+        TileVersions restarted = new TileVersions(worldFolder);
+        assertEquals(second, restarted.getVersion(1, 0, 0));
+        restarted.markChanged(1, 0, 0);
+        assertTrue(restarted.getVersion(1, 0, 0) > second);
+        restarted.markChanged(3, 4, 5);
+        assertEquals(restarted.getLatestVersion(), restarted.getVersion(3, 4, 5));
+    }
+
+    @Test
+    public void testWriterCompacts() throws IOException {
+        Path worldFolder = temporaryFolder.newFolder().toPath();
+        TileVersions versions = new TileVersions(worldFolder);
+        for (int i = 0; i < 10000; i++) {
+            versions.markChanged(1, i % 10, 0);
+        }
+        long latestVersion = versions.getLatestVersion();
+
+        // Header and at most a few thousand records
+        assertTrue(Files.size(worldFolder.resolve(TileVersions.FILE_NAME)) < 5000 * 17);
+        TileVersions restarted = new TileVersions(worldFolder);
+        assertEquals(latestVersion, restarted.getLatestVersion());
+        assertEquals(10, restarted.getChangedSince(TileVersions.NO_VERSION).size());
+    }
+}
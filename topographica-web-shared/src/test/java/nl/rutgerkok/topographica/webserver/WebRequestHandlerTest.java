@@ -0,0 +1,241 @@
+package nl.rutgerkok.topographica.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import nl.rutgerkok.topographica.image.PngEncoder;
+import nl.rutgerkok.topographica.image.TileImages;
+import nl.rutgerkok.topographica.image.TileStorage;
+import nl.rutgerkok.topographica.image.TileStore;
+import nl.rutgerkok.topographica.image.TileVersions;
+
+public class WebRequestHandlerTest {
+
+    private static final String IMAGE_URL = "/" + WebPaths.IMAGES + "/world/zoom-1/r.0.0.png";
+
+    private static final String SHORT_MAX_AGE = "public, max-age=" + ServerInfo.DEFAULT_IMAGE_MAX_AGE_SECONDS;
+
+    private long currentVersion;
+    private Path imagesFolder;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private WebRequestHandler createHandler(long imageCacheBytes) {
+        WebWorld world = (WebWorld) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { WebWorld.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getDisplayName":
+                        case "getFolderName":
+                            return "world";
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        ServerInfo serverInfo = new ServerInfo() {
+            @Override
+            public long getImageCacheBytes() {
+                return imageCacheBytes;
+            }
+
+            @Override
+            public Path getImagesFolder() {
+                return imagesFolder;
+            }
+
+            @Override
+            public Collection<? extends WebPlayer> getPlayers(WebWorld world) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+
+            @Override
+            public Collection<? extends WebWorld> getWorlds() {
+                return Collections.singleton(world);
+            }
+        };
+        BundledFiles files = name -> getClass().getResourceAsStream("/" + name);
+        return new WebRequestHandler(files, serverInfo, Logger.getLogger(getClass().getName()));
+    }
+
+    private FullHttpRequest get(String uri, String ifNoneMatch) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        if (ifNoneMatch != null) {
+            request.headers().set(HttpHeaderNames.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return request;
+    }
+
+    /**
+     * Releases the body of the response, closing the file if the body is sent
+     * from a file.
+     *
+     * @param response
+     *            The response.
+     * @return The same response.
+     */
+    private HttpResponse release(HttpResponse response) {
+        if (response instanceof FileRegionResponse) {
+            ((FileRegionResponse) response).getBody().release();
+        } else {
+            ReferenceCountUtil.release(response);
+        }
+        return response;
+    }
+
+    private HttpResponse respond(WebRequestHandler handler, String uri, String ifNoneMatch) throws IOException {
+        return release(handler.respond(get(uri, ifNoneMatch)));
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        imagesFolder = temporaryFolder.newFolder().toPath();
+        Path worldFolder = imagesFolder.resolve("world");
+        TileStore tileStore = TileStorage.FILES.open(worldFolder, PngEncoder.FAST, false);
+
+        // Written twice, so that the first version is stale
+        BufferedImage image = TileImages.createImage();
+        Arrays.fill(TileImages.getPixels(image), 0x4040ff);
+        tileStore.write(1, 0, 0, image);
+        Arrays.fill(TileImages.getPixels(image), 0x40ff40);
+        tileStore.write(1, 0, 0, image);
+
+        TileVersions versions = TileVersions.forWorldFolder(worldFolder);
+        currentVersion = versions.getVersion(1, 0, 0);
+        assertTrue(currentVersion > 1);
+
+        // The network threads use a snapshot, made in the background
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (versions.getRecentVersion(1, 0, 0) != currentVersion) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testCurrentVersionIsImmutable() throws IOException {
+        for (long cacheBytes : new long[] { 0, ServerInfo.DEFAULT_IMAGE_CACHE_BYTES }) {
+            WebRequestHandler handler = createHandler(cacheBytes);
+            HttpResponse response = respond(handler, IMAGE_URL + "?v=" + currentVersion, null);
+            assertEquals(HttpResponseStatus.OK, response.status());
+            assertTrue(response.headers().get(HttpHeaderNames.CACHE_CONTROL).contains("immutable"));
+
+            // Also when answered from memory
+            Optional<HttpResponse> fromMemory = handler
+                    .respondFromMemory(get(IMAGE_URL + "?v=" + currentVersion, null));
+            assertEquals(cacheBytes > 0, fromMemory.isPresent());
+            if (fromMemory.isPresent()) {
+                release(fromMemory.get());
+                assertEquals(HttpResponseStatus.OK, fromMemory.get().status());
+                assertTrue(fromMemory.get().headers().get(HttpHeaderNames.CACHE_CONTROL).contains("immutable"));
+            }
+        }
+    }
+
+    @Test
+    public void testIfNoneMatch() throws IOException {
+        for (long cacheBytes : new long[] { 0, ServerInfo.DEFAULT_IMAGE_CACHE_BYTES }) {
+            WebRequestHandler handler = createHandler(cacheBytes);
+            String url = IMAGE_URL + "?v=" + currentVersion;
+            String etag = respond(handler, url, null).headers().get(HttpHeaderNames.ETAG);
+            assertNotNull(etag);
+
+            // Weak comparison: a tag matches with and without the W/ prefix
+            String opaqueEtag = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String ifNoneMatch : new String[] { etag, opaqueEtag, "W/" + opaqueEtag, "\"other\", " + etag,
+                    "*" }) {
+                HttpResponse response = respond(handler, url, ifNoneMatch);
+                assertEquals(ifNoneMatch, HttpResponseStatus.NOT_MODIFIED, response.status());
+                assertEquals(etag, response.headers().get(HttpHeaderNames.ETAG));
+            }
+
+            HttpResponse response = respond(handler, url, "\"other\"");
+            assertEquals(HttpResponseStatus.OK, response.status());
+            assertEquals(etag, response.headers().get(HttpHeaderNames.ETAG));
+        }
+    }
+
+    @Test
+    public void testIfNoneMatchFromMemory() throws IOException {
+        WebRequestHandler handler = createHandler(ServerInfo.DEFAULT_IMAGE_CACHE_BYTES);
+        String url = IMAGE_URL + "?v=" + currentVersion;
+        String etag = respond(handler, url, null).headers().get(HttpHeaderNames.ETAG);
+
+        HttpResponse hit = release(handler.respondFromMemory(get(url, etag)).get());
+        assertEquals(HttpResponseStatus.NOT_MODIFIED, hit.status());
+        HttpResponse miss = release(handler.respondFromMemory(get(url, "\"other\"")).get());
+        assertEquals(HttpResponseStatus.OK, miss.status());
+    }
+
+    @Test
+    public void testMissingImageFromMemory() throws IOException {
+        WebRequestHandler handler = createHandler(0);
+        String url = "/" + WebPaths.IMAGES + "/world/zoom-1/r.5.5.png";
+
+        // The first request lists the folder
+        assertFalse(handler.respondFromMemory(get(url, null)).isPresent());
+        assertEquals(HttpResponseStatus.NOT_FOUND, respond(handler, url, null).status());
+
+        HttpResponse response = release(handler.respondFromMemory(get(url, null)).get());
+        assertEquals(HttpResponseStatus.NOT_FOUND, response.status());
+
+        // Existing images are still read by the request threads
+        assertFalse(handler.respondFromMemory(get(IMAGE_URL, null)).isPresent());
+    }
+
+    @Test
+    public void testStaleVersionGetsShortMaxAge() throws IOException {
+        for (long cacheBytes : new long[] { 0, ServerInfo.DEFAULT_IMAGE_CACHE_BYTES }) {
+            WebRequestHandler handler = createHandler(cacheBytes);
+            for (String url : new String[] { IMAGE_URL + "?v=1", IMAGE_URL, IMAGE_URL + "?v=foo" }) {
+                HttpResponse response = respond(handler, url, null);
+                assertEquals(url, HttpResponseStatus.OK, response.status());
+                String cacheControl = response.headers().get(HttpHeaderNames.CACHE_CONTROL);
+                assertEquals(url, SHORT_MAX_AGE, cacheControl);
+                assertFalse(url, cacheControl.contains("immutable"));
+
+                // The web browser may not keep a stale version forever when
+                // it checks whether its copy is still up to date either
+                String etag = response.headers().get(HttpHeaderNames.ETAG);
+                HttpResponse notModified = respond(handler, url, etag);
+                assertEquals(url, HttpResponseStatus.NOT_MODIFIED, notModified.status());
+                assertEquals(url, SHORT_MAX_AGE, notModified.headers().get(HttpHeaderNames.CACHE_CONTROL));
+            }
+        }
+    }
+}
@@ -3,12 +3,17 @@ package nl.rutgerkok.topographica.webserver;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.common.cache.CacheStats;
+
 final class Console extends Thread {
 
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
     private final WebServer webServer;
     private final Logger logger = ServerLogger.setup(Console.class);
 
@@ -18,7 +23,7 @@ final class Console extends Thread {
 
     @Override
     public void run() {
-        logger.info("Web server is running. Type stop + ENTER to quit.");
+        logger.info("Web server is running. Type stop + ENTER to quit, or status + ENTER for statistics.");
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         try {
             while (true) {
@@ -29,6 +34,21 @@ final class Console extends Thread {
                     logger.info("Web server stopped. Goodbye!");
                     break;
                 }
+                if (line.equals("status")) {
+                    CacheStats stats = webServer.getImageCacheStats();
+                    logger.info(String.format(Locale.ROOT,
+                            "Map images in memory: %.1f of %.1f MB used, %.0f%% hit rate (%d hits, %d misses)",
+                            webServer.getImageCacheUsedBytes() / BYTES_PER_MEGABYTE,
+                            webServer.getImageCacheMaxBytes() / BYTES_PER_MEGABYTE, stats.hitRate() * 100,
+                            stats.hitCount(), stats.missCount()));
+                    logger.info(String.format(Locale.ROOT,
+                            "Web requests: %d answered from memory, %d from disk, %d of %d waiting, "
+                                    + "queue full %d times",
+                            webServer.getAnsweredFromMemory(), webServer.getAnsweredFromDisk(),
+                            webServer.getRequestsWaiting(), webServer.getRequestQueueSize(),
+                            webServer.getQueueFullCount()));
+                    continue;
+                }
                 logger.info("Unknown command: " + line);
             }
         } catch (IOException e) {
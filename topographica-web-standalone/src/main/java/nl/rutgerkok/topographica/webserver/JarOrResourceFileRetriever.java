@@ -11,6 +11,12 @@ final class JarOrResourceFileRetriever implements BundledFiles {
     private final Path devDirectory = Paths.get("../topographica-web-shared/src/main/resources");
     private final boolean devDirectoryExists = Files.exists(devDirectory);
 
+    @Override
+    public boolean canChange() {
+        // Files in the development folder are edited while the server runs
+        return devDirectoryExists;
+    }
+
     @Override
     public InputStream getResource(String string) {
         if (devDirectoryExists) {
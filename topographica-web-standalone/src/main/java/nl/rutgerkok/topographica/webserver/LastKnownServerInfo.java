@@ -21,10 +21,12 @@ final class LastKnownServerInfo extends ServerInfo {
         private final String name;
         private final MarkerCollection markers = new MarkerCollection();
         private final int order;
+        private final int zoomLevels;
 
-        CachedWorld(String name, int order) {
+        CachedWorld(String name, int order, int zoomLevels) {
             this.name = Objects.requireNonNull(name, "name");
             this.order = order;
+            this.zoomLevels = zoomLevels;
         }
 
         @Override
@@ -53,8 +55,19 @@ final class LastKnownServerInfo extends ServerInfo {
             // Origin not yet supported
             return new int[] { 0, 0, 0 };
         }
+
+        @Override
+        public int getZoomLevels() {
+            return zoomLevels;
+        }
     }
 
+    /**
+     * Used if a world doesn't have any zoom folders yet.
+     */
+    private static final int DEFAULT_ZOOM_LEVELS = 4;
+    private static final String ZOOM_FOLDER_PREFIX = "zoom-";
+
     private static final Logger logger = ServerLogger.setup(LastKnownServerInfo.class);
     private final Path imagesFolder;
     private final int port;
@@ -70,7 +83,7 @@ final class LastKnownServerInfo extends ServerInfo {
             int order = 0;
             for (Path path : stream) {
                 if (Files.isDirectory(path)) {
-                    worlds.add(new CachedWorld(path.getFileName().toString(), order));
+                    worlds.add(new CachedWorld(path.getFileName().toString(), order, findZoomLevels(path)));
                     order++;
                 }
             }
@@ -80,6 +93,32 @@ final class LastKnownServerInfo extends ServerInfo {
         this.worlds = worlds.build();
     }
 
+    /**
+     * Finds the amount of zoom levels of a world by looking at the highest
+     * zoom folder.
+     *
+     * @param worldFolder
+     *            Images folder of the world.
+     * @return The amount of zoom levels.
+     */
+    private static int findZoomLevels(Path worldFolder) {
+        int zoomLevels = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(worldFolder, ZOOM_FOLDER_PREFIX + "*")) {
+            for (Path path : stream) {
+                try {
+                    int zoomLevel = Integer.parseInt(path.getFileName().toString()
+                            .substring(ZOOM_FOLDER_PREFIX.length()));
+                    zoomLevels = Math.max(zoomLevels, zoomLevel);
+                } catch (NumberFormatException e) {
+                    // Not a zoom folder, ignore
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error reading zoom levels of " + worldFolder.getFileName(), e);
+        }
+        return zoomLevels == 0 ? DEFAULT_ZOOM_LEVELS : zoomLevels;
+    }
+
     @Override
     public Path getImagesFolder() {
         return imagesFolder;
@@ -1,14 +1,43 @@
 package nl.rutgerkok.topographica.webserver;
 
+import java.io.IOException;
 import java.net.BindException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import nl.rutgerkok.topographica.image.PngEncoder;
+import nl.rutgerkok.topographica.image.PyramidBuilder;
+import nl.rutgerkok.topographica.image.TileIndex;
+import nl.rutgerkok.topographica.image.TileStorage;
+import nl.rutgerkok.topographica.image.TileStore;
+
 public final class Main {
 
+    /**
+     * Gets the images folder, or exits if it doesn't exist.
+     *
+     * @return The images folder.
+     */
+    private static Path findImagesFolder() {
+        Path imagesFolder = Paths.get(System.getProperty("webPaths.images", WebPaths.IMAGES));
+        if (!Files.exists(imagesFolder) || !Files.isDirectory(imagesFolder)) {
+            System.err.println("No " + WebPaths.IMAGES + " folder found at " + imagesFolder.toAbsolutePath());
+            System.exit(102);
+        }
+        return imagesFolder;
+    }
+
     public static void main(String... args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("rebuild")) {
+            rebuild(args);
+            return;
+        }
+
         int port = 8088;
         if (args.length > 1) {
             System.err.println("Args error. Correct syntax: java -jar Topographica-Webserver.jar <port>");
@@ -18,6 +47,8 @@ public final class Main {
             if (args[0].equalsIgnoreCase("help")) {
                 System.out.println("Runs a web server in the current working directory.");
                 System.out.println("java -jar Topographica-Webserver.jar <port>");
+                System.out.println("Rebuilds the zoomed out images of a world from the existing images.");
+                System.out.println("java -jar Topographica-Webserver.jar rebuild <world> [zoomLevels]");
             }
             try {
                 port = Integer.parseInt(args[0]);
@@ -27,12 +58,57 @@ public final class Main {
             }
         }
 
-        Path imagesFolder = Paths.get(System.getProperty("webPaths.images", WebPaths.IMAGES));
-        if (!Files.exists(imagesFolder) || !Files.isDirectory(imagesFolder)) {
-            System.err.println("No " + WebPaths.IMAGES + " folder found at " + imagesFolder.toAbsolutePath());
+        new Main(findImagesFolder(), port);
+    }
+
+    /**
+     * Rebuilds the zoomed out images of a world, using all processors.
+     *
+     * @param args
+     *            The program arguments: "rebuild", the world and optionally
+     *            the amount of zoom levels.
+     */
+    private static void rebuild(String... args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Args error. Correct syntax: java -jar Topographica-Webserver.jar rebuild <world> "
+                    + "[zoomLevels]");
+            System.exit(100);
+        }
+        Path worldFolder = findImagesFolder().resolve(args[1]);
+        if (!Files.isDirectory(worldFolder)) {
+            System.err.println("No world folder found at " + worldFolder.toAbsolutePath());
             System.exit(102);
         }
-        new Main(imagesFolder, port);
+        int zoomLevels = PyramidBuilder.AUTOMATIC_ZOOM_LEVELS;
+        if (args.length == 3) {
+            try {
+                zoomLevels = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                zoomLevels = 0;
+            }
+            if (zoomLevels <= 0) {
+                System.err.println("Args error. Invalid amount of zoom levels: " + args[2]);
+                System.exit(101);
+            }
+        }
+
+        // There's no config file here, so keep using deduplication if the
+        // plugin was already using it for this world
+        boolean deduplicate = TileIndex.forWorldFolder(worldFolder).hasBlobs();
+
+        Logger logger = ServerLogger.setup(PyramidBuilder.class);
+        logger.info("Rebuilding zoom levels of " + args[1] + "...");
+        try {
+            TileStore tileStore = TileStorage.detect(worldFolder).open(worldFolder, PngEncoder.SMALLEST, deduplicate);
+            PyramidBuilder.Result result = new PyramidBuilder(tileStore, zoomLevels).build(new ForkJoinPool());
+            logger.info(String.format(Locale.ROOT,
+                    "Rebuilt %d zoomed out images from %d images in %.1f seconds (%.0f images per second).",
+                    result.getImagesWritten(), result.getImagesRead(), result.getSeconds(),
+                    result.getImagesPerSecond()));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to rebuild zoom levels", e);
+            System.exit(1);
+        }
     }
 
     private final WebServer webServer;